@@ -0,0 +1,205 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * The release ZIP file benchmarks run against, the bundled test release unless another is given with
+ * <code>-p release=...</code>, or a release written by {@link SyntheticReleaseGenerator} at the size given with
+ * <code>-p scale=...</code>. Its RF2 files are extracted to a temporary directory once per trial, so benchmarks of
+ * reading a file measure parsing the memory mapped file rather than inflating the ZIP entry.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkRelease {
+
+    /**
+     * The RF2 files of a release, each with the filter and handler that load it and the files that must be loaded
+     * before it
+     */
+    public enum Rf2File {
+        CONCEPT {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return Collections.singletonList(files.getConceptFile());
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.CONCEPT_ROWS.test(row)) {
+                    cache.handleConceptRow(row);
+                }
+            }
+        },
+        RELATIONSHIP {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return Collections.singletonList(files.getRelationshipFile());
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.RELATIONSHIP_ROWS.test(row)) {
+                    cache.handleRelationshipRow(row);
+                }
+            }
+        },
+        LANGUAGE_REFSET {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return Collections.singletonList(files.getLanguageRefsetFile());
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.LANGUAGE_REFSET_ROWS.test(row)) {
+                    cache.handleLanguageRefsetRow(row);
+                }
+            }
+        },
+        DESCRIPTION {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return Collections.singletonList(files.getDescriptionFile());
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.DESCRIPTION_ROWS.test(row)) {
+                    cache.handleDescriptionRow(row);
+                }
+            }
+        },
+        ARTG_ID_REFSET {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return Collections.singletonList(files.getArtgIdRefsetFile());
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.AMT_REFSET_ROWS.test(row)) {
+                    cache.handleArtgIdRefsetRow(row);
+                }
+            }
+        },
+        HISTORICAL_ASSOCIATION_REFSET {
+            @Override
+            List<Path> getPaths(TerminologyFileVisitor files) {
+                return files.getHistoricalAssociationRefsetFiles();
+            }
+
+            @Override
+            void handle(AmtCache cache, Rf2Row row) {
+                if (AmtCache.AMT_REFSET_ROWS.test(row)) {
+                    cache.handleHistoricalAssociationRefsetRow(row);
+                }
+            }
+        };
+
+        abstract List<Path> getPaths(TerminologyFileVisitor files);
+
+        abstract void handle(AmtCache cache, Rf2Row row);
+
+        /**
+         * Loads the files this file's handler depends on into the cache, as {@link AmtCache} loads them before it
+         */
+        void loadPrerequisites(AmtCache cache, TerminologyFileVisitor files) throws IOException {
+            if (this != CONCEPT && this != LANGUAGE_REFSET) {
+                CONCEPT.read(files, row -> CONCEPT.handle(cache, row));
+            }
+            if (this == DESCRIPTION) {
+                LANGUAGE_REFSET.read(files, row -> LANGUAGE_REFSET.handle(cache, row));
+            }
+        }
+
+        void read(TerminologyFileVisitor files, Consumer<Rf2Row> consumer) throws IOException {
+            for (Path path : getPaths(files)) {
+                new Rf2FileReader(consumer, true).read(path);
+            }
+        }
+    }
+
+    @Param("src/test/resources/NCTS_SCT_RF2_DISTRIBUTION_32506021000036107-20180430-SNAPSHOT.zip")
+    public String release;
+
+    /** Size of a synthetic release to generate and use instead, relative to a current AMT release, 0 for none */
+    @Param("0")
+    public double scale;
+
+    private Path generated;
+
+    private FileSystem zip;
+
+    private TerminologyFileVisitor files;
+
+    private Path extractDirectory;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        Path path = Paths.get(release);
+        if (scale > 0) {
+            generated = Files.createTempFile("amt-benchmark-", ".zip");
+            new SyntheticReleaseGenerator().setScale(scale).write(generated);
+            path = generated;
+        }
+        zip = FileSystems.newFileSystem(URI.create("jar:file:" + path.toAbsolutePath()), new HashMap<>());
+        files = new TerminologyFileVisitor();
+        Files.walkFileTree(zip.getPath("/"), files);
+        files.ensureAllFilesExist();
+        extractDirectory = Files.createTempDirectory("amt-benchmark-");
+        files.extractTo(extractDirectory);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        zip.close();
+        if (generated != null) {
+            Files.delete(generated);
+        }
+        try (Stream<Path> extracted = Files.walk(extractDirectory)) {
+            extracted.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    /**
+     * @return the release ZIP file opened as a file system
+     */
+    FileSystem getZip() {
+        return zip;
+    }
+
+    /**
+     * @return the release's RF2 files, extracted from the ZIP file
+     */
+    TerminologyFileVisitor getFiles() {
+        return files;
+    }
+
+    /**
+     * @return a cache with the release's concepts and relationships loaded but no closure calculated
+     */
+    AmtCache loadHierarchy() throws IOException {
+        AmtCache cache = new AmtCache(new JUnitTestSuite_EXT(), false, new AmtCacheOptions());
+        Rf2File.RELATIONSHIP.loadPrerequisites(cache, files);
+        Rf2File.RELATIONSHIP.read(files, row -> Rf2File.RELATIONSHIP.handle(cache, row));
+        return cache;
+    }
+}
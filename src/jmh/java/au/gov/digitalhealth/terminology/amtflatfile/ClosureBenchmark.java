@@ -0,0 +1,42 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Calculating the transitive closure of a release's IS_A hierarchy. The closure replaces any ancestors already
+ * calculated, so the same loaded concepts are used for every invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms3g", "-Xmx3g" })
+public class ClosureBenchmark {
+
+    private AmtCache cache;
+
+    @Setup(Level.Trial)
+    public void load(BenchmarkRelease release) throws IOException {
+        cache = release.loadHierarchy();
+    }
+
+    @Benchmark
+    public AmtCache calculateTransitiveClosure() {
+        cache.calculateTransitiveClosure();
+        return cache;
+    }
+}
@@ -0,0 +1,110 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Loading a whole release into an {@link AmtCache}, and using a loaded cache to look up ancestors and write the flat
+ * file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms3g", "-Xmx3g" })
+public class FlatFileBenchmark {
+
+    /** Threads used to load the release and write the flat file */
+    @Param("1")
+    public int parallelism;
+
+    private AmtCache cache;
+
+    private Amt2FlatFile amt2FlatFile;
+
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void load(BenchmarkRelease release) throws IOException {
+        cache = new AmtCache(release.getZip(), new JUnitTestSuite_EXT(), false,
+            new AmtCacheOptions().setParallelism(parallelism));
+        amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setParallelism(parallelism);
+        output = Files.createTempFile("amt-benchmark-", ".csv");
+    }
+
+    /**
+     * Validation failures are added to the test suite by every write, so each iteration starts with an empty one
+     */
+    @Setup(Level.Iteration)
+    public void resetTestSuite() {
+        amt2FlatFile.setConceptCache(cache, new JUnitTestSuite_EXT());
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteOutput() throws IOException {
+        Files.deleteIfExists(output);
+    }
+
+    @Benchmark
+    public AmtCache loadRelease(BenchmarkRelease release) throws IOException {
+        return new AmtCache(release.getZip(), new JUnitTestSuite_EXT(), false,
+            new AmtCacheOptions().setParallelism(parallelism));
+    }
+
+    @Benchmark
+    public void getAncestors(Blackhole blackhole) {
+        for (Concept concept : cache.getConcepts()) {
+            blackhole.consume(concept.getAncestors());
+        }
+    }
+
+    @Benchmark
+    public void getAncestorsOfType(Blackhole blackhole) {
+        for (Concept ctpp : cache.getCtpps().values()) {
+            blackhole.consume(ctpp.getAncestors(AmtConcept.TPP));
+        }
+    }
+
+    /**
+     * Looks up the same parents as writing the flat file does for each CTPP
+     */
+    @Benchmark
+    public void getParents(Blackhole blackhole) {
+        for (Concept ctpp : cache.getCtpps().values()) {
+            for (Concept tpp : amt2FlatFile.getParents(AmtConcept.TPP, AmtConcept.CTPP, ctpp)) {
+                blackhole.consume(amt2FlatFile.getParents(AmtConcept.MPP, AmtConcept.TPP, tpp));
+                for (Concept tpuu : tpp.getUnits()) {
+                    blackhole.consume(amt2FlatFile.getParents(AmtConcept.TP, AmtConcept.TPUU, tpuu));
+                    for (Concept mpuu : amt2FlatFile.getParents(AmtConcept.MPUU, AmtConcept.TPUU, tpuu)) {
+                        blackhole.consume(amt2FlatFile.getParents(AmtConcept.MP, AmtConcept.MPUU, mpuu));
+                    }
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public Path writeFlatFile() throws IOException {
+        amt2FlatFile.writeFlatFile(output);
+        return output;
+    }
+}
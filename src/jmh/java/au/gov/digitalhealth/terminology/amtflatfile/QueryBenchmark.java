@@ -0,0 +1,110 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building an {@link AmtQueryIndex} over a loaded release, and single lookups against it. The index is shared by every
+ * benchmark thread, so running with <code>-t</code> greater than one measures concurrent readers, while each thread
+ * looks up its own sequence of keys drawn from the release.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms3g", "-Xmx3g" })
+public class QueryBenchmark {
+
+    private AmtCache cache;
+
+    private AmtQueryIndex index;
+
+    private long[] productIds;
+
+    private String[] artgIds;
+
+    private long[] inactiveIds;
+
+    @Setup(Level.Trial)
+    public void load(BenchmarkRelease release) throws IOException {
+        cache = new AmtCache(release.getZip(), new JUnitTestSuite_EXT(), false);
+        index = new AmtQueryIndex(cache);
+
+        List<Long> products = new ArrayList<>();
+        List<String> artg = new ArrayList<>();
+        for (Concept ctpp : cache.getCtpps().values()) {
+            for (Concept ancestor : ctpp.getAncestors()) {
+                for (Concept unit : ancestor.getUnits()) {
+                    products.add(unit.getId());
+                    unit.getAncestors(AmtConcept.MP).forEach(mp -> products.add(mp.getId()));
+                }
+            }
+            artg.addAll(ctpp.getArtgIds());
+        }
+        List<Long> inactive = new ArrayList<>();
+        for (Triple<Concept, Concept, Concept> replacement : cache.getReplacementConcepts()) {
+            inactive.add(replacement.getLeft().getId());
+        }
+        Random random = new Random(1);
+        Collections.shuffle(products, random);
+        Collections.shuffle(artg, random);
+        Collections.shuffle(inactive, random);
+        productIds = products.stream().mapToLong(Long::longValue).toArray();
+        artgIds = artg.toArray(new String[artg.size()]);
+        inactiveIds = inactive.stream().mapToLong(Long::longValue).toArray();
+    }
+
+    /** Each thread's position in the keys, so threads look up different keys at the same time */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = (int) Thread.currentThread().getId() * 7919;
+
+        int next(int length) {
+            return Math.floorMod(next++, length);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AmtQueryIndex buildIndex() {
+        return new AmtQueryIndex(cache);
+    }
+
+    @Benchmark
+    public List<Concept> getCtppsByProduct(Cursor cursor) {
+        return index.getCtpps(productIds[cursor.next(productIds.length)]);
+    }
+
+    @Benchmark
+    public List<Concept> getCtppsByArtgId(Cursor cursor) {
+        return index.getCtppsByArtgId(artgIds[cursor.next(artgIds.length)]);
+    }
+
+    @Benchmark
+    public Concept getConcept(Cursor cursor) {
+        return index.getConcept(productIds[cursor.next(productIds.length)]);
+    }
+
+    @Benchmark
+    public List<Triple<Concept, Concept, Concept>> getReplacements(Cursor cursor) {
+        return index.getReplacements(inactiveIds[cursor.next(inactiveIds.length)]);
+    }
+}
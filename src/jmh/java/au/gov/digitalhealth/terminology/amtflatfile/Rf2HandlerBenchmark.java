@@ -0,0 +1,53 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.gov.digitalhealth.terminology.amtflatfile.BenchmarkRelease.Rf2File;
+
+/**
+ * Loading each type of RF2 file into a cache with the handler {@link AmtCache} uses for it, which compared with
+ * {@link Rf2ReadBenchmark} gives the cost of the handler itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms3g", "-Xmx3g" })
+public class Rf2HandlerBenchmark {
+
+    @Param
+    public Rf2File file;
+
+    private AmtCache cache;
+
+    /**
+     * Handlers add to the cache, so each invocation gets a new one with only the files it depends on loaded. Files
+     * take milliseconds to read at the least, which is long enough for a per invocation setup not to skew the results.
+     */
+    @Setup(Level.Invocation)
+    public void createCache(BenchmarkRelease release) throws IOException {
+        cache = new AmtCache(new JUnitTestSuite_EXT(), false, new AmtCacheOptions());
+        file.loadPrerequisites(cache, release.getFiles());
+    }
+
+    @Benchmark
+    public AmtCache handleRows(BenchmarkRelease release) throws IOException {
+        file.read(release.getFiles(), row -> file.handle(cache, row));
+        return cache;
+    }
+}
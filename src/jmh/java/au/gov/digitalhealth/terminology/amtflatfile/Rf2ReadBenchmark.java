@@ -0,0 +1,40 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import au.gov.digitalhealth.terminology.amtflatfile.BenchmarkRelease.Rf2File;
+
+/**
+ * Splitting each type of RF2 file into rows, with nothing done with the rows. Files are read the way
+ * {@link AmtCache#readFile(java.nio.file.Path, java.util.function.Consumer, boolean)} reads them, without its logging.
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = { "-Xms3g", "-Xmx3g" })
+public class Rf2ReadBenchmark {
+
+    @Param
+    public Rf2File file;
+
+    @Benchmark
+    public long readRows(BenchmarkRelease release) throws IOException {
+        long[] fields = new long[1];
+        file.read(release.getFiles(), row -> fields[0] += row.getFieldCount());
+        return fields[0];
+    }
+}
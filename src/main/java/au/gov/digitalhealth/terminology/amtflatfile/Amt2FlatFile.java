@@ -1,23 +1,39 @@
 package au.gov.digitalhealth.terminology.amtflatfile;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
-import java.net.URI;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -25,6 +41,7 @@ import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.MissingOptionException;
 import org.apache.commons.cli.Option;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
@@ -56,6 +73,53 @@ public class Amt2FlatFile extends AbstractMojo {
 
 	private static final String JUNIT_FILE_PATH = "j";
 
+    private static final String PARALLELISM_OPTION = "p";
+
+    private static final String EXTRACT_OPTION = "x";
+
+    private static final String LAZY_TERMS_OPTION = "l";
+
+    private static final String SNAPSHOT_DIRECTORY_OPTION = "s";
+
+    private static final String RUN_REPORT_FILE_OPTION = "m";
+
+    private static final String DELTA_BASE_OPTION = "d";
+
+    private static final String PREVIOUS_FLAT_FILE_OPTION = "f";
+
+    private static final String COMPARE_WITH_OPTION = "c";
+
+    private static final String DIFF_FILE_OPTION = "g";
+
+    private static final String SERVE_OPTION = "w";
+
+    private static final String COMPRESSION_OPTION = "z";
+
+    private static final String CHUNK_ROWS_OPTION = "k";
+
+    private static final String MANIFEST_FILE_OPTION = "n";
+
+    static final String FLAT_FILE_HEADER = String.join(",", "CTPP SCTID", "CTPP PT", "ARTG_ID", "TPP SCTID",
+        "TPP PT", "TPUU SCTID", "TPUU PT", "TPP TP SCTID", "TPP TP PT", "TPUU TP SCTID", "TPUU TP PT", "MPP SCTID",
+        "MPP PT", "MPUU SCTID", "MPUU PT", "MP SCTID", "MP PT");
+
+    /** Name of the flat file output in the manifest, and similarly for the other CSV outputs */
+    private static final String FLAT_FILE = "flatFile";
+
+    private static final String REPLACEMENTS_FILE = "replacementsFile";
+
+    private static final String DIFF_FILE = "diffFile";
+
+    static final String REPLACEMENTS_HEADER = String.join(",", "INACTIVE SCTID", "INACTIVE PT",
+        "REPLACEMENT TYPE SCTID", "REPLACEMENT TYPE PT", "REPLACEMENT SCTID", "REPLACEMENT PT");
+
+    /** Number of CTPPs whose rows are resolved together by one task when writing the flat file in parallel */
+    private static final int ROW_BLOCK_SIZE = 256;
+
+    private static final int BLOCKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
 	private static final Logger logger = Logger.getLogger(Amt2FlatFile.class.getCanonicalName());
 
 	private JUnitTestSuite_EXT testSuite;
@@ -75,6 +139,71 @@ public class Amt2FlatFile extends AbstractMojo {
 	@Parameter(property = "exitOnError", required = false, defaultValue = "false")
     private boolean exitOnError;
 
+    @Parameter(property = "parallelism", required = false, defaultValue = "1")
+    private int parallelism = 1;
+
+    @Parameter(property = "extract", required = false, defaultValue = "false")
+    private boolean extract;
+
+    @Parameter(property = "extractDirectory", required = false)
+    private String extractDirectory;
+
+    @Parameter(property = "lazyTerms", required = false, defaultValue = "false")
+    private boolean lazyTerms;
+
+    @Parameter(property = "snapshotDirectory", required = false)
+    private String snapshotDirectory;
+
+    @Parameter(property = "runReportFilePath", required = false, defaultValue = "target/RunReport.json")
+    private String runReportFilePath;
+
+    @Parameter(property = "deltaBaseSnapshot", required = false)
+    private String deltaBaseSnapshot;
+
+    @Parameter(property = "previousFlatFilePath", required = false)
+    private String previousFlatFilePath;
+
+    @Parameter(property = "previousInputZipFilePath", required = false)
+    private String previousInputZipFilePath;
+
+    @Parameter(property = "diffFilePath", required = false)
+    private String diffFilePath;
+
+    @Parameter(property = "compression", required = false, defaultValue = "none")
+    private String compression = "none";
+
+    @Parameter(property = "chunkRows", required = false, defaultValue = "0")
+    private int chunkRows;
+
+    @Parameter(property = "manifestFilePath", required = false)
+    private String manifestFilePath;
+
+    private OutputOptions outputOptions = new OutputOptions();
+
+    /** Every CSV output written, by name, whether or not a manifest is written */
+    private OutputManifest outputManifest = new OutputManifest(outputOptions);
+
+    private RunReport runReport;
+
+    /** Rows are copied from this for CTPPs not in changedCtpps, null if every CTPP's rows are resolved */
+    private PreviousFlatFile previousFlatFile;
+
+    private LongSet changedCtpps;
+
+    private long rowsCopied;
+
+    /**
+     * What each TPP and TPUU resolves to, by id, worked out the first time rows are resolved from it. These are shared
+     * by the threads resolving rows in parallel.
+     */
+    private final ConcurrentHashMap<Long, TppResolution> tppResolutions = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<Long, TpuuResolution> tpuuResolutions = new ConcurrentHashMap<>();
+
+    private final LongAdder resolutionCacheHits = new LongAdder();
+
+    private final LongAdder resolutionCacheMisses = new LongAdder();
+
 	private AmtCache conceptCache;
 
     private Tika tika = new Tika();
@@ -94,8 +223,7 @@ public class Amt2FlatFile extends AbstractMojo {
             .longOpt("outputFile")
             .argName("OUTPUT_FILE")
             .hasArg()
-            .desc("Output file path to write out the flat file")
-            .required()
+            .desc("Output file path to write out the flat file, required unless serving lookups")
             .build());
         options.addOption(Option.builder(EXIT_ON_ERROR_OPTION)
             .longOpt("exit-on-error")
@@ -114,10 +242,102 @@ public class Amt2FlatFile extends AbstractMojo {
             .hasArg()
             .desc("Output file path to write out the file listing inactive AMT concepts and their replacement active concepts")
             .build());
+        options.addOption(Option.builder(PARALLELISM_OPTION)
+            .longOpt("parallel")
+            .argName("THREADS")
+            .hasArg()
+            .optionalArg(true)
+            .desc("Read the RF2 files and resolve the flat file rows concurrently using the specified number of threads, or one "
+                    + "per available processor if no number is given")
+            .build());
+        options.addOption(Option.builder(EXTRACT_OPTION)
+            .longOpt("extract")
+            .argName("EXTRACT_DIRECTORY")
+            .hasArg()
+            .optionalArg(true)
+            .desc("Extract the RF2 files to the specified directory and memory map them rather than reading them from the ZIP "
+                    + "file, files extracted by an earlier run are reused. A temporary directory is used if none is given")
+            .build());
+        options.addOption(Option.builder(LAZY_TERMS_OPTION)
+            .longOpt("lazy-terms")
+            .argName("LAZY_TERMS")
+            .desc("Only keep the preferred terms of concepts that can be written out, reading FSNs only if an error needs them")
+            .build());
+        options.addOption(Option.builder(SNAPSHOT_DIRECTORY_OPTION)
+            .longOpt("snapshotDir")
+            .argName("SNAPSHOT_DIRECTORY")
+            .hasArg()
+            .desc("Directory to keep snapshots of loaded releases in, a release with a snapshot is loaded from it rather "
+                    + "than from its RF2 files")
+            .build());
+        options.addOption(Option.builder(RUN_REPORT_FILE_OPTION)
+            .longOpt("runReportFile")
+            .argName("RUN_REPORT_FILE")
+            .hasArg()
+            .desc("Output file path to write out a JSON report of the time, CPU and memory taken by each phase of the run, "
+                    + "and the rows read and kept from each RF2 file")
+            .build());
+        options.addOption(Option.builder(DELTA_BASE_OPTION)
+            .longOpt("deltaBase")
+            .argName("BASE_SNAPSHOT_FILE")
+            .hasArg()
+            .desc("Read the input file as an RF2 Delta release and apply it to the earlier release in this snapshot file, "
+                    + "written using the snapshot directory option. Requires the earlier release's flat file")
+            .build());
+        options.addOption(Option.builder(PREVIOUS_FLAT_FILE_OPTION)
+            .longOpt("previousFlatFile")
+            .argName("FLAT_FILE")
+            .hasArg()
+            .desc("Flat file written for the earlier release a Delta release is applied to, whose rows are copied for the "
+                    + "CTPPs the Delta release does not change. May be the same file as the output file")
+            .build());
+        options.addOption(Option.builder(COMPARE_WITH_OPTION)
+            .longOpt("compareWith")
+            .argName("PREVIOUS_AMT_ZIP_FILE_PATH")
+            .hasArg()
+            .desc("Previous AMT release ZIP file to compare the input release with, writing the flat file rows that differ "
+                    + "to the diff file")
+            .build());
+        options.addOption(Option.builder(DIFF_FILE_OPTION)
+            .longOpt("diffFile")
+            .argName("DIFF_FILE")
+            .hasArg()
+            .desc("Output file path to write out the flat file rows added, removed and changed since the previous release")
+            .build());
+        options.addOption(Option.builder(SERVE_OPTION)
+            .longOpt("serve")
+            .argName("PORT")
+            .hasArg()
+            .desc("Load the input release once and serve flat file rows, replacements and concepts over HTTP on this "
+                    + "local port rather than writing files, until stopped")
+            .build());
+        options.addOption(Option.builder(COMPRESSION_OPTION)
+            .longOpt("compression")
+            .argName("FORMAT")
+            .hasArg()
+            .desc("Compress the CSV output files as they are written, either none or gzip")
+            .build());
+        options.addOption(Option.builder(CHUNK_ROWS_OPTION)
+            .longOpt("chunkRows")
+            .argName("ROWS")
+            .hasArg()
+            .desc("Split each CSV output file into numbered chunk files of at most this many rows, each starting with the "
+                    + "header")
+            .build());
+        options.addOption(Option.builder(MANIFEST_FILE_OPTION)
+            .longOpt("manifestFile")
+            .argName("MANIFEST_FILE")
+            .hasArg()
+            .desc("Output file path to write out a JSON manifest of the CSV files written, with their row counts, sizes "
+                    + "and SHA-256 checksums")
+            .build());
 
 		CommandLineParser parser = new DefaultParser();
 		try {
 			CommandLine line = parser.parse(options, args);
+            if (!line.hasOption(SERVE_OPTION) && !line.hasOption(OUTPUT_FILE_OPTION)) {
+                throw new MissingOptionException(Collections.singletonList(OUTPUT_FILE_OPTION));
+            }
 
 			Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
 			amt2FlatFile.setInputZipFilePath(line.getOptionValue(INPUT_FILE_OPTION));
@@ -125,9 +345,34 @@ public class Amt2FlatFile extends AbstractMojo {
 			amt2FlatFile.setExitOnError(line.hasOption(EXIT_ON_ERROR_OPTION));
             amt2FlatFile.setJunitFilePath(line.getOptionValue(JUNIT_FILE_PATH));
             amt2FlatFile.setReplacementsFilePath(line.getOptionValue(REPLACEMENT_FILE_PATH));
+            if (line.hasOption(PARALLELISM_OPTION)) {
+                amt2FlatFile.setParallelism(line.getOptionValue(PARALLELISM_OPTION) == null
+                        ? Runtime.getRuntime().availableProcessors()
+                        : Integer.parseInt(line.getOptionValue(PARALLELISM_OPTION)));
+            }
+            amt2FlatFile.setExtract(line.hasOption(EXTRACT_OPTION));
+            amt2FlatFile.setExtractDirectory(line.getOptionValue(EXTRACT_OPTION));
+            amt2FlatFile.setLazyTerms(line.hasOption(LAZY_TERMS_OPTION));
+            amt2FlatFile.setSnapshotDirectory(line.getOptionValue(SNAPSHOT_DIRECTORY_OPTION));
+            amt2FlatFile.setRunReportFilePath(line.getOptionValue(RUN_REPORT_FILE_OPTION));
+            amt2FlatFile.setDeltaBaseSnapshot(line.getOptionValue(DELTA_BASE_OPTION));
+            amt2FlatFile.setPreviousFlatFilePath(line.getOptionValue(PREVIOUS_FLAT_FILE_OPTION));
+            amt2FlatFile.setPreviousInputZipFilePath(line.getOptionValue(COMPARE_WITH_OPTION));
+            amt2FlatFile.setDiffFilePath(line.getOptionValue(DIFF_FILE_OPTION));
+            if (line.hasOption(COMPRESSION_OPTION)) {
+                amt2FlatFile.setCompression(line.getOptionValue(COMPRESSION_OPTION));
+            }
+            if (line.hasOption(CHUNK_ROWS_OPTION)) {
+                amt2FlatFile.setChunkRows(Integer.parseInt(line.getOptionValue(CHUNK_ROWS_OPTION)));
+            }
+            amt2FlatFile.setManifestFilePath(line.getOptionValue(MANIFEST_FILE_OPTION));
+            if (line.hasOption(SERVE_OPTION)) {
+                amt2FlatFile.serve(Integer.parseInt(line.getOptionValue(SERVE_OPTION)));
+                return;
+            }
 			amt2FlatFile.execute();
 
-		} catch (ParseException exp) {
+		} catch (ParseException | NumberFormatException exp) {
             logger.severe("Parsing failed.  Reason: " + exp.getMessage());
 			HelpFormatter formatter = new HelpFormatter();
 			formatter.printHelp("Amt2FlatFile", options);
@@ -139,26 +384,96 @@ public class Amt2FlatFile extends AbstractMojo {
 	}
 
     @Override
+    @SuppressWarnings("try")
 	public void execute() throws MojoExecutionException, MojoFailureException {
         logger.info("Input file is " + inputZipFilePath);
         logger.info("Output will be written to " + outputFilePath);
 
-        validateInputZipFile(inputZipFilePath);
+        runReport = new RunReport();
 
-        validateOutputPath(outputFilePath, "text/csv");
-        
-        if (replacementsOutputFilePath == null || replacementsOutputFilePath.isEmpty()) {
-            logger.info("Replacement file was not requested and will not be written");
-        } else {
-            validateOutputPath(replacementsOutputFilePath, "text/csv");
-            logger.info("Replacement file will be written to " + replacementsOutputFilePath);
+        try (RunReport.Phase phase = runReport.start("Check input and output files")) {
+            validateInputZipFile(inputZipFilePath);
+
+            outputOptions = new OutputOptions().setCompression(Compression.fromName(compression))
+                .setChunkRows(chunkRows)
+                .setChecksums(isSet(manifestFilePath));
+            outputManifest = new OutputManifest(outputOptions);
+            String csvMimeType = outputOptions.getCompression().getMimeType();
+            if (outputOptions.getCompression() != Compression.NONE) {
+                logger.info("CSV files will be compressed with " + compression);
+            }
+            if (chunkRows > 0) {
+                logger.info("CSV files will be split into chunks of " + chunkRows + " rows");
+            }
+
+            validateOutputPath(outputFilePath, csvMimeType);
+
+            if (replacementsOutputFilePath == null || replacementsOutputFilePath.isEmpty()) {
+                logger.info("Replacement file was not requested and will not be written");
+            } else {
+                validateOutputPath(replacementsOutputFilePath, csvMimeType);
+                logger.info("Replacement file will be written to " + replacementsOutputFilePath);
+            }
+
+            if (junitFilePath == null || junitFilePath.isEmpty()) {
+                logger.info("JUnit file was not requested and will not be written");
+            } else {
+                validateOutputPath(junitFilePath, "application/xml");
+                logger.info("JUnit file will be written to " + junitFilePath);
+            }
+
+            if (runReportFilePath != null && !runReportFilePath.isEmpty()) {
+                validateOutputPath(runReportFilePath, "application/json");
+                logger.info("Run report will be written to " + runReportFilePath);
+            }
+
+            if (isSet(manifestFilePath)) {
+                validateOutputPath(manifestFilePath, "application/json");
+                logger.info("Manifest of the CSV files will be written to " + manifestFilePath);
+            }
+
+            if (deltaBaseSnapshot != null && !deltaBaseSnapshot.isEmpty()) {
+                if (previousFlatFilePath == null || previousFlatFilePath.isEmpty()) {
+                    throw new IllegalArgumentException(
+                        "The flat file of the earlier release is required to apply a Delta release to it");
+                }
+                validateSnapshotFile(deltaBaseSnapshot);
+                validateInputFile(previousFlatFilePath, "text/csv", "application/gzip");
+                logger.info("Delta release will be applied to snapshot " + deltaBaseSnapshot
+                        + " and unchanged rows copied from " + previousFlatFilePath);
+            }
+
+            if (isSet(previousInputZipFilePath) != isSet(diffFilePath)) {
+                throw new IllegalArgumentException(
+                    "Both the previous release to compare with and the diff file to write must be given, or neither");
+            } else if (isSet(previousInputZipFilePath)) {
+                validateInputZipFile(previousInputZipFilePath);
+                validateOutputPath(diffFilePath, csvMimeType);
+                logger.info("Differences from " + previousInputZipFilePath + " will be written to " + diffFilePath);
+            }
         }
 
-        if (junitFilePath == null || junitFilePath.isEmpty()) {
-            logger.info("JUnit file was not requested and will not be written");
-        } else {
-            validateOutputPath(junitFilePath, "application/xml");
-            logger.info("JUnit file will be written to " + junitFilePath);
+        if (parallelism > 1) {
+            logger.info("RF2 files will be read and flat file rows resolved using " + parallelism + " threads");
+        }
+
+        AmtCacheOptions options = getCacheOptions().setRunReport(runReport);
+        if (extractDirectory != null && !extractDirectory.isEmpty()) {
+            logger.info("RF2 files will be extracted to and memory mapped from " + extractDirectory);
+        } else if (extract) {
+            logger.info("RF2 files will be extracted to a temporary directory and memory mapped");
+        }
+
+        if (lazyTerms) {
+            logger.info("Only terms needed for the output will be loaded");
+        }
+
+        if (snapshotDirectory != null && !snapshotDirectory.isEmpty()) {
+            logger.info("Release snapshots will be kept in " + snapshotDirectory);
+        }
+
+        if (deltaBaseSnapshot != null && !deltaBaseSnapshot.isEmpty()) {
+            options.setDeltaBase(Paths.get(deltaBaseSnapshot));
         }
 
         if (exitOnError) {
@@ -177,26 +492,212 @@ public class Amt2FlatFile extends AbstractMojo {
 
 		//initialise test suite	
 		this.testSuite = new JUnitTestSuite_EXT();
-        try (FileSystem zipFileSystem = FileSystems.newFileSystem(URI.create(
-            "jar:file:" + FileSystems.getDefault().getPath(inputZipFilePath).toAbsolutePath().toString()),
-                    new HashMap<>());) {
+        try (FileSystem zipFileSystem = openZipFile(inputZipFilePath);
+                FileSystem previousZipFileSystem =
+                        isSet(previousInputZipFilePath) ? openZipFile(previousInputZipFilePath) : null) {
 
-            conceptCache = new AmtCache(zipFileSystem, this.testSuite, exitOnError);
-            writeFlatFile(FileSystems.getDefault().getPath(outputFilePath));
+            FutureTask<AmtCache> previousRelease = null;
+            if (previousZipFileSystem != null) {
+                previousRelease = loadPreviousRelease(previousZipFileSystem, options);
+            }
+            try (RunReport.Phase phase = runReport.start("Load release")) {
+                conceptCache = new AmtCache(zipFileSystem, this.testSuite, exitOnError, options);
+            }
+            changedCtpps = conceptCache.getChangedCtpps();
+            if (changedCtpps != null) {
+                try (RunReport.Phase phase = runReport.start("Read previous flat file")) {
+                    // read in full before the flat file is written, as it may be written over the previous one
+                    previousFlatFile = new PreviousFlatFile(Paths.get(previousFlatFilePath), FLAT_FILE_HEADER);
+                    phase.add("ctpps", previousFlatFile.size());
+                }
+            }
+            try (RunReport.Phase phase = runReport.start("Write flat file")) {
+                Path path = FileSystems.getDefault().getPath(outputFilePath);
+                long rows = writeFlatFile(path);
+                phase.add("rowsWritten", rows)
+                    .add("rowsCopied", rowsCopied)
+                    .add("resolutionCacheHits", getResolutionCacheHits())
+                    .add("resolutionCacheMisses", getResolutionCacheMisses())
+                    .add("bytesWritten", outputManifest.get(FLAT_FILE).getBytesWritten());
+                runReport.add("flatFileRows", rows);
+            }
+            if (previousRelease != null) {
+                Amt2FlatFile previous = new Amt2FlatFile();
+                previous.setConceptCache(getPreviousRelease(previousRelease), new JUnitTestSuite_EXT());
+                try (RunReport.Phase phase = runReport.start("Write diff file")) {
+                    Path path = FileSystems.getDefault().getPath(diffFilePath);
+                    FlatFileDiff diff = writeDiffFile(path, previous);
+                    phase.add("rowsWritten", diff.getRows())
+                        .add("added", diff.getAdded())
+                        .add("removed", diff.getRemoved())
+                        .add("changed", diff.getChanged())
+                        .add("bytesWritten", outputManifest.get(DIFF_FILE).getBytesWritten());
+                }
+            }
             if (replacementsOutputFilePath != null && !replacementsOutputFilePath.isEmpty()) {
-                writeReplacementsFile(FileSystems.getDefault().getPath(replacementsOutputFilePath));
+                try (RunReport.Phase phase = runReport.start("Write replacements file")) {
+                    Path path = FileSystems.getDefault().getPath(replacementsOutputFilePath);
+                    long rows = writeReplacementsFile(path);
+                    phase.add("rowsWritten", rows)
+                        .add("bytesWritten", outputManifest.get(REPLACEMENTS_FILE).getBytesWritten());
+                }
             }
 			if (junitFilePath == null || junitFilePath.trim().isEmpty()) {
 				junitFilePath = "target/ValidationErrors.xml";
 			}
-			BufferedWriter outputJunitXml = new BufferedWriter(new FileWriter(junitFilePath));
-			testSuite.writeToFile(outputJunitXml);
+            try (RunReport.Phase phase = runReport.start("Write JUnit file");
+                    BufferedWriter outputJunitXml = new BufferedWriter(new FileWriter(junitFilePath))) {
+                testSuite.writeToFile(outputJunitXml);
+            }
 			logger.info("Output junit results to: " + new File(junitFilePath).getAbsolutePath());
+            runReport.add("validationFailures", testSuite.getTestCases() == null ? 0
+                    : testSuite.getTestCases().stream().mapToInt(c -> c.getFailures().size()).sum());
+            if (isSet(manifestFilePath)) {
+                writeManifest(Paths.get(manifestFilePath));
+            }
+            if (runReportFilePath != null && !runReportFilePath.isEmpty()) {
+                writeRunReport(Paths.get(runReportFilePath));
+            }
 		} catch (IOException e) {
 			throw new MojoExecutionException("Failed due to IO error executing transformation", e);
 		}
 	}
 
+    /**
+     * @return the options for loading a release that are the same for every release this loads
+     */
+    private AmtCacheOptions getCacheOptions() {
+        AmtCacheOptions options = new AmtCacheOptions().setParallelism(parallelism)
+            .setExtract(extract)
+            .setLazyTerms(lazyTerms);
+        if (extractDirectory != null && !extractDirectory.isEmpty()) {
+            options.setExtractDirectory(Paths.get(extractDirectory));
+        }
+        if (snapshotDirectory != null && !snapshotDirectory.isEmpty()) {
+            options.setSnapshotDirectory(Paths.get(snapshotDirectory));
+        }
+        return options;
+    }
+
+    /**
+     * Loads the input release and serves lookups over HTTP on the loopback interface, returning once the server has
+     * started. The server keeps running on its own threads until the JVM is stopped.
+     */
+    public void serve(int port) throws IOException {
+        validateInputZipFile(inputZipFilePath);
+        AmtLookupServer server =
+                new AmtLookupServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), this::loadRelease);
+        server.load(Paths.get(inputZipFilePath));
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(AmtLookupServer.STOP_DELAY_SECONDS)));
+        logger.info("Serving lookups at http://" + server.getAddress().getHostString() + ":"
+                + server.getAddress().getPort() + "/");
+    }
+
+    /**
+     * Loads a release to serve lookups from, with every term loaded as concepts are looked up by any id. Validation
+     * failures are logged rather than written out, and stop the release loading if exiting on errors.
+     */
+    private Amt2FlatFile loadRelease(Path zip) throws IOException {
+        validateInputZipFile(zip.toString());
+        JUnitTestSuite_EXT suite = new JUnitTestSuite_EXT();
+        Amt2FlatFile release = new Amt2FlatFile();
+        try (FileSystem zipFileSystem = openZipFile(zip.toString())) {
+            release.setConceptCache(
+                new AmtCache(zipFileSystem, suite, exitOnError, getCacheOptions().setLazyTerms(false)),
+                new JUnitTestSuite_EXT());
+        }
+        if (suite.getTestCases() != null && !suite.getTestCases().isEmpty()) {
+            logger.warning(zip + " has " + suite.getTestCases().size() + " validation failures");
+        }
+        return release;
+    }
+
+    private static boolean isSet(String value) {
+        return value != null && !value.isEmpty();
+    }
+
+    /**
+     * Opens a ZIP file as a file system of its own, so the same file can be both the input and previous release
+     */
+    private static FileSystem openZipFile(String path) throws IOException {
+        return FileSystems.newFileSystem(FileSystems.getDefault().getPath(path).toAbsolutePath(), (ClassLoader) null);
+    }
+
+    /**
+     * Starts loading the previous release to compare with on its own thread, while the input release is loaded. Its
+     * validation failures are not reported and never stop the run, as it is only compared with. It is loaded with the
+     * same options as the input release except that it is never extracted to the same directory and is never a Delta
+     * release, and only its total load time is added to the run report so its counts don't replace the input
+     * release's.
+     */
+    @SuppressWarnings("try")
+    private FutureTask<AmtCache> loadPreviousRelease(FileSystem zipFileSystem, AmtCacheOptions options) {
+        AmtCacheOptions previousOptions = new AmtCacheOptions().setParallelism(options.getParallelism())
+            .setExtract(options.isExtract())
+            .setLazyTerms(options.isLazyTerms())
+            .setSnapshotDirectory(options.getSnapshotDirectory());
+        FutureTask<AmtCache> task = new FutureTask<>(() -> {
+            try (RunReport.Phase phase = runReport.start("Load previous release")) {
+                return new AmtCache(zipFileSystem, new JUnitTestSuite_EXT(), false, previousOptions);
+            }
+        });
+        Thread thread = new Thread(task, "amt-previous-release");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    private AmtCache getPreviousRelease(FutureTask<AmtCache> previousRelease) throws IOException {
+        try {
+            return previousRelease.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted loading the previous release", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Could not load the previous release", e.getCause());
+        }
+    }
+
+    private FlatFileDiff writeDiffFile(Path path, Amt2FlatFile previous) throws IOException {
+        if (path.getParent() != null && !Files.exists(path.getParent())) {
+            Files.createDirectory(path.getParent());
+        }
+        FlatFileDiff diff = new FlatFileDiff(previous, this);
+        try (OutputStream out = newOutputStream(path, DIFF_FILE)) {
+            diff.write(out, FLAT_FILE_HEADER);
+        }
+        return diff;
+    }
+
+    @SuppressWarnings("try")
+    private void writeManifest(Path path) throws IOException {
+        try (RunReport.Phase phase = runReport.start("Write manifest")) {
+            if (path.getParent() != null && !Files.exists(path.getParent())) {
+                Files.createDirectories(path.getParent());
+            }
+            try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+                outputManifest.writeJson(path, writer);
+            }
+        }
+        logger.info("Wrote manifest to " + path.toAbsolutePath());
+    }
+
+    private void writeRunReport(Path path) throws IOException {
+        if (path.getParent() != null && !Files.exists(path.getParent())) {
+            Files.createDirectories(path.getParent());
+        }
+        try (Writer writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8)) {
+            runReport.writeJson(writer);
+        }
+        logger.info("Wrote run report to " + path.toAbsolutePath());
+    }
+
     private void validateOutputPath(String outputPath, String expectedMimeType) {
         try {
             Path path = Paths.get(outputPath);
@@ -223,6 +724,55 @@ public class Amt2FlatFile extends AbstractMojo {
         }
     }
 
+    private void validateInputFile(String inputFilePath, String... expectedMimeTypes) {
+        try {
+            Path path = validateRegularInputFile(inputFilePath);
+
+            if (!Arrays.asList(expectedMimeTypes).contains(tika.detect(path))) {
+                throw new SecurityException("The input file " + inputFilePath + " is not a "
+                        + String.join(" or ", expectedMimeTypes) + " file as expected, detected type was "
+                        + tika.detect(path));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not validate input file path " + inputFilePath, e);
+        }
+    }
+
+    /**
+     * Checks a snapshot by its header rather than with Tika, which detects the terms making up most of a snapshot as
+     * plain text.
+     */
+    private void validateSnapshotFile(String snapshotFilePath) {
+        Path path;
+        try {
+            path = validateRegularInputFile(snapshotFilePath);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not validate input file path " + snapshotFilePath, e);
+        }
+        try {
+            AmtCacheSnapshot.checkHeader(path);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(
+                "The input file " + snapshotFilePath + " is not a snapshot this version can read. " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the path of the input file, once checked that it exists and is a regular file rather than a symlink
+     */
+    private Path validateRegularInputFile(String inputFilePath) throws IOException {
+        Path path = Paths.get(inputFilePath);
+
+        if (Files.isSymbolicLink(path)) {
+            throw new SecurityException("The input file " + inputFilePath + " must not be a symlink for security reasons");
+        } else if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IllegalArgumentException("Specified input file " + inputFilePath + " does not exist");
+        } else if (!Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isRegularFile()) {
+            throw new SecurityException("The input file " + inputFilePath + " must be a regular file");
+        }
+        return path;
+    }
+
     private void validateInputZipFile(String inputZipFilePath) {
         try {
             Path path = Paths.get(inputZipFilePath);
@@ -251,150 +801,393 @@ public class Amt2FlatFile extends AbstractMojo {
         }
     }
 
-    private void writeFlatFile(Path path) throws IOException {
+    /**
+     * @return the number of rows written, not counting the header
+     */
+    long writeFlatFile(Path path) throws IOException {
         if (path.getParent() != null && !Files.exists(path.getParent())) {
             Files.createDirectory(path.getParent());
         }
-        try (
-                BufferedWriter writer = Files.newBufferedWriter(path, StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        try (OutputStream out = newOutputStream(path, FLAT_FILE)) {
+            CsvRowWriter writer = new CsvRowWriter(out);
 
-            writer.write(
-                String.join(",", "CTPP SCTID", "CTPP PT", "ARTG_ID", "TPP SCTID", "TPP PT", "TPUU SCTID", "TPUU PT",
-                    "TPP TP SCTID", "TPP TP PT", "TPUU TP SCTID", "TPUU TP PT", "MPP SCTID", "MPP PT", "MPUU SCTID",
-                    "MPUU PT", "MP SCTID", "MP PT"));
-            writer.newLine();
+            writer.write(FLAT_FILE_HEADER);
+            writer.endRow();
 
+            if (parallelism > 1) {
+                return writeRowsInParallel(out);
+            }
             for (Concept ctpp : conceptCache.getCtpps().values()) {
-                Concept tpp = getParent(AmtConcept.TPP, AmtConcept.CTPP, ctpp);
-                Concept tppTp = null;
-                if (tpp.getTps().size() == 1) {
-                    tppTp = tpp.getTps().iterator().next();
-                } else {
-                	String message = "TPUU " + tpp + " has too many TPs " + tpp.getTps();
-                    testSuite.addTestCase("TPUU error", message, "TPUU has too many TPs (" + tpp + ")", "ERROR");
-                    if (exitOnError) {
-                		throw new RuntimeException(message);
-                    }
-                	continue;
+                writeOrCopyRows(ctpp, writer, testSuite);
+            }
+            rowsCopied = writer.getCopiedRows();
+            return writer.getRows() - 1;
+        }
+	}
+
+    /**
+     * Resolves the rows for blocks of CTPPs on a fork join pool, each block writing its rows and validation failures to
+     * its own buffers. Blocks are written out in the order the CTPPs are iterated when writing sequentially, so the flat
+     * file and JUnit results are the same whatever the number of threads. Only a few blocks per thread are in flight at
+     * once to limit the rows held in memory.
+     */
+    private long writeRowsInParallel(OutputStream out) throws IOException {
+        long rows = 0;
+        List<Concept> ctpps = new ArrayList<>(conceptCache.getCtpps().values());
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Deque<ForkJoinTask<RowBlock>> inFlight = new ArrayDeque<>();
+            int next = 0;
+            while (next < ctpps.size() || !inFlight.isEmpty()) {
+                while (next < ctpps.size() && inFlight.size() < parallelism * BLOCKS_IN_FLIGHT_PER_THREAD) {
+                    List<Concept> blockCtpps = ctpps.subList(next, Math.min(next + ROW_BLOCK_SIZE, ctpps.size()));
+                    inFlight.add(pool.submit(() -> writeBlock(blockCtpps)));
+                    next += blockCtpps.size();
                 }
-                
-                Concept mpp = getParent(AmtConcept.MPP, AmtConcept.TPP, tpp);
-                Set<Concept> tpuus = tpp.getUnits();
-
-                Set<Concept> addedMpuus = new HashSet<>();
-                for (Concept tpuu : tpuus) {
-                    Concept tpuuTp = getParent(AmtConcept.TP, AmtConcept.TPUU, tpuu);
-                    Concept mpuu = getParent(AmtConcept.MPUU, AmtConcept.TPUU, tpuu);
-                    addedMpuus.add(mpuu);
-
-                    Set<Concept> mps = getParents(AmtConcept.MP, AmtConcept.MPUU, mpuu);
-
-                    Set<String> artgids = ctpp.getArtgIds();
-                    if (artgids == null || artgids.size() == 0) {
-                        artgids = Collections.singleton("");
-                    }
-
-                    artgids = artgids.stream().map(String::trim).collect(Collectors.toSet());;
-
-                    if(tpuuTp == null || mpuu == null) {
-                    	continue;
-                    }
-                    
-                    for (Concept mp : mps) {
-                        for (String artgid : artgids) {
-                            writer.write(
-                                String.join(",",
-                                    ctpp.getId() + "", "\"" + ctpp.getPreferredTerm() + "\"",
-                                    artgid,
-                                    tpp.getId() + "", "\"" + tpp.getPreferredTerm() + "\"",
-                                    tpuu.getId() + "", "\"" + tpuu.getPreferredTerm() + "\"",
-                                    tppTp.getId() + "", "\"" + tppTp.getPreferredTerm() + "\"",
-                                    tpuuTp.getId() + "", "\"" + tpuuTp.getPreferredTerm() + "\"",
-                                    mpp.getId() + "", "\"" + mpp.getPreferredTerm() + "\"",
-                                    mpuu.getId() + "", "\"" + mpuu.getPreferredTerm() + "\"",
-                                    mp.getId() + "", "\"" + mp.getPreferredTerm() + "\""));
-                            writer.newLine();
-                        }
-                    }
+
+                RowBlock block = inFlight.remove().join();
+                block.rows.writeTo(out);
+                rows += block.rowCount;
+                rowsCopied += block.copiedRowCount;
+                testSuite.addTestCases(block.failures);
+                if (block.error != null) {
+                    // the rows and failures before the error are kept, as they would be writing sequentially
+                    throw block.error;
                 }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return rows;
+    }
 
-                if (!mpp.getUnits().containsAll(addedMpuus) || !addedMpuus.containsAll(mpp.getUnits())) {
-                    
-                	String message = "Mismatch between MPUUs from MPP "
-                            + mpp.getUnits().stream().map(c -> c.getId()).collect(Collectors.toList())
-                            + " and MPUUs added from TPUUs "
-                            + addedMpuus.stream().map(c -> c.getId()).collect(Collectors.toList())
-                            + " for MPP " + mpp;
-                	logger.warning(message);
+    private RowBlock writeBlock(List<Concept> ctpps) {
+        RowBlock block = new RowBlock();
+        CsvRowWriter writer = new CsvRowWriter(block.rows);
+        try {
+            for (Concept ctpp : ctpps) {
+                writeOrCopyRows(ctpp, writer, block.failures);
+            }
+        } catch (RuntimeException e) {
+            block.error = e;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        block.rowCount = writer.getRows();
+        block.copiedRowCount = writer.getCopiedRows();
+        return block;
+    }
 
-                    testSuite.addTestCase("Mismatch", message, "MPP mismatch (" + mpp.getId() + ")", "ERROR");
+    /**
+     * Copies the CTPP's rows from the previous flat file if a Delta release was applied that did not change them,
+     * otherwise resolves them. Validation failures found resolving rows are only reported for the CTPPs resolved.
+     */
+    private void writeOrCopyRows(Concept ctpp, CsvRowWriter writer, JUnitTestSuite_EXT suite) throws IOException {
+        if (previousFlatFile == null || changedCtpps.contains(ctpp.getId())
+                || !previousFlatFile.copyRows(ctpp.getId(), writer)) {
+            writeRows(ctpp, writer, suite);
+        }
+    }
+
+    void writeRows(Concept ctpp, CsvRowWriter writer, JUnitTestSuite_EXT suite) throws IOException {
+        resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> writer.write(ctpp)
+            .write(artgid)
+            .write(tpp)
+            .write(tpuu)
+            .write(tppTp)
+            .write(tpuuTp)
+            .write(mpp)
+            .write(mpuu)
+            .write(mp)
+            .endRow(), suite);
+    }
+
+    /**
+     * Resolves the flat file rows of a CTPP, passing the concepts in each to <code>rows</code> and adding any
+     * validation failures found to <code>suite</code>. What the CTPP's TPP and its TPUUs resolve to is looked up in
+     * {@link #tppResolutions}, so it is only worked out for the first CTPP of each TPP, with the failures found then
+     * added again for each later one.
+     */
+    void resolveRows(Concept ctpp, RowConsumer rows, JUnitTestSuite_EXT suite) throws IOException {
+        List<Failure> failures = new ArrayList<>(0);
+        Concept tpp = getParent(suite, failures, AmtConcept.TPP, AmtConcept.CTPP, ctpp);
+        addFailures(suite, failures);
+
+        TppResolution resolution = getTppResolution(tpp, suite);
+        addFailures(suite, resolution.failures);
+        if (resolution.tp == null) {
+            return;
+        }
+
+        Set<String> artgids = ctpp.getArtgIds();
+        if (artgids == null || artgids.size() == 0) {
+            artgids = Collections.singleton("");
+        }
+        artgids = artgids.stream().map(String::trim).collect(Collectors.toSet());
+
+        for (TpuuResolution unit : resolution.units) {
+            addFailures(suite, unit.failures);
+            if (unit.tp == null || unit.mpuu == null) {
+                continue;
+            }
+
+            for (Concept mp : unit.mps) {
+                for (String artgid : artgids) {
+                    rows.accept(artgid, tpp, unit.tpuu, resolution.tp, unit.tp, resolution.mpp, unit.mpuu, mp);
                 }
             }
         }
-	}
+        addFailures(suite, resolution.mismatches);
+    }
+
+    private TppResolution getTppResolution(Concept tpp, JUnitTestSuite_EXT suite) {
+        TppResolution resolution = tppResolutions.get(tpp.getId());
+        if (resolution != null) {
+            resolutionCacheHits.increment();
+            return resolution;
+        }
+        resolutionCacheMisses.increment();
+        resolution = resolveTpp(tpp, suite);
+        // another thread may have resolved the TPP too, to the same thing, so keep whichever was first
+        TppResolution existing = tppResolutions.putIfAbsent(tpp.getId(), resolution);
+        return existing == null ? resolution : existing;
+    }
+
+    private TpuuResolution getTpuuResolution(Concept tpuu, JUnitTestSuite_EXT suite) {
+        TpuuResolution resolution = tpuuResolutions.get(tpuu.getId());
+        if (resolution != null) {
+            resolutionCacheHits.increment();
+            return resolution;
+        }
+        resolutionCacheMisses.increment();
+        resolution = resolveTpuu(tpuu, suite);
+        TpuuResolution existing = tpuuResolutions.putIfAbsent(tpuu.getId(), resolution);
+        return existing == null ? resolution : existing;
+    }
+
+    /**
+     * Works out the TP, MPP and units of a TPP, and the failures found doing so. If exiting on errors the first
+     * failure is added to <code>suite</code> and stops the run, so nothing is cached for the TPP.
+     */
+    private TppResolution resolveTpp(Concept tpp, JUnitTestSuite_EXT suite) {
+        List<Failure> failures = new ArrayList<>(0);
+        if (tpp.getTps().size() != 1) {
+            conceptCache.loadFullySpecifiedNames();
+            String message = "TPUU " + tpp + " has too many TPs " + tpp.getTps();
+            addFailure(suite, failures,
+                new Failure("TPUU error", message, "TPUU has too many TPs (" + tpp + ")", false));
+            return new TppResolution(null, null, Collections.emptyList(), failures, Collections.emptyList());
+        }
+        Concept tp = tpp.getTps().iterator().next();
 
+        Concept mpp = getParent(suite, failures, AmtConcept.MPP, AmtConcept.TPP, tpp);
 
-    private void writeReplacementsFile(Path path) throws IOException {
+        List<TpuuResolution> units = new ArrayList<>(tpp.getUnits().size());
+        Set<Concept> addedMpuus = new HashSet<>();
+        for (Concept tpuu : tpp.getUnits()) {
+            TpuuResolution unit = getTpuuResolution(tpuu, suite);
+            units.add(unit);
+            addedMpuus.add(unit.mpuu);
+        }
+
+        List<Failure> mismatches = Collections.emptyList();
+        if (!mpp.getUnits().containsAll(addedMpuus) || !addedMpuus.containsAll(mpp.getUnits())) {
+            conceptCache.loadFullySpecifiedNames();
+            String message = "Mismatch between MPUUs from MPP "
+                    + mpp.getUnits().stream().map(c -> c.getId()).collect(Collectors.toList())
+                    + " and MPUUs added from TPUUs "
+                    + addedMpuus.stream().map(c -> c.getId()).collect(Collectors.toList())
+                    + " for MPP " + mpp;
+            mismatches = Collections.singletonList(
+                new Failure("Mismatch", message, "MPP mismatch (" + mpp.getId() + ")", true));
+        }
+        return new TppResolution(tp, mpp, units, failures, mismatches);
+    }
+
+    private TpuuResolution resolveTpuu(Concept tpuu, JUnitTestSuite_EXT suite) {
+        List<Failure> failures = new ArrayList<>(0);
+        Concept tp = getParent(suite, failures, AmtConcept.TP, AmtConcept.TPUU, tpuu);
+        Concept mpuu = getParent(suite, failures, AmtConcept.MPUU, AmtConcept.TPUU, tpuu);
+        Set<Concept> mps = getParents(AmtConcept.MP, AmtConcept.MPUU, mpuu);
+        return new TpuuResolution(tpuu, tp, mpuu, mps, failures);
+    }
+
+    /**
+     * Records a validation failure, and if exiting on errors adds it to <code>suite</code> and stops the run
+     */
+    private void addFailure(JUnitTestSuite_EXT suite, List<Failure> failures, Failure failure) {
+        failures.add(failure);
+        if (exitOnError) {
+            failure.addTo(suite);
+            throw new RuntimeException(failure.detail);
+        }
+    }
+
+    private void addFailures(JUnitTestSuite_EXT suite, List<Failure> failures) {
+        for (Failure failure : failures) {
+            if (failure.warn) {
+                logger.warning(failure.detail);
+            }
+            failure.addTo(suite);
+        }
+    }
+
+    /**
+     * @return the number of TPP and TPUU resolutions looked up while resolving rows that had already been worked out
+     */
+    long getResolutionCacheHits() {
+        return resolutionCacheHits.sum();
+    }
+
+    /**
+     * @return the number of TPP and TPUU resolutions looked up while resolving rows that had to be worked out
+     */
+    long getResolutionCacheMisses() {
+        return resolutionCacheMisses.sum();
+    }
+
+    /**
+     * A validation failure found resolving a TPP or TPUU, added to the JUnit results for every CTPP resolved from it
+     * as it was when each CTPP's rows were resolved in full
+     */
+    private static class Failure {
+        private final String message;
+
+        private final String detail;
+
+        private final String testCaseName;
+
+        /** Logged as a warning each time it is added */
+        private final boolean warn;
+
+        Failure(String message, String detail, String testCaseName, boolean warn) {
+            this.message = message;
+            this.detail = detail;
+            this.testCaseName = testCaseName;
+            this.warn = warn;
+        }
+
+        void addTo(JUnitTestSuite_EXT suite) {
+            suite.addTestCase(message, detail, testCaseName, "ERROR");
+        }
+    }
+
+    /**
+     * What a TPP resolves to for every CTPP of it. The TP is null if the TPP doesn't have exactly one, in which case
+     * it has no rows.
+     */
+    private static class TppResolution {
+        private final Concept tp;
+
+        private final Concept mpp;
+
+        private final List<TpuuResolution> units;
+
+        private final List<Failure> failures;
+
+        /** Failures found checking the units against the MPP's, added after the units' */
+        private final List<Failure> mismatches;
+
+        TppResolution(Concept tp, Concept mpp, List<TpuuResolution> units, List<Failure> failures,
+                List<Failure> mismatches) {
+            this.tp = tp;
+            this.mpp = mpp;
+            this.units = units;
+            this.failures = failures;
+            this.mismatches = mismatches;
+        }
+    }
+
+    /**
+     * What a TPUU resolves to for every TPP it is a unit of
+     */
+    private static class TpuuResolution {
+        private final Concept tpuu;
+
+        private final Concept tp;
+
+        private final Concept mpuu;
+
+        private final Set<Concept> mps;
+
+        private final List<Failure> failures;
+
+        TpuuResolution(Concept tpuu, Concept tp, Concept mpuu, Set<Concept> mps, List<Failure> failures) {
+            this.tpuu = tpuu;
+            this.tp = tp;
+            this.mpuu = mpuu;
+            this.mps = mps;
+            this.failures = failures;
+        }
+    }
+
+    /**
+     * Receives the concepts of each flat file row resolved for a CTPP, in column order after the CTPP itself
+     */
+    interface RowConsumer {
+        void accept(String artgid, Concept tpp, Concept tpuu, Concept tppTp, Concept tpuuTp, Concept mpp, Concept mpuu,
+                Concept mp) throws IOException;
+    }
+
+    /**
+     * The rows and validation failures for a block of CTPPs resolved in parallel, and the exception that stopped the
+     * block if there was one
+     */
+    private static class RowBlock {
+        private final ByteArrayOutputStream rows = new ByteArrayOutputStream();
+
+        private final JUnitTestSuite_EXT failures = new JUnitTestSuite_EXT();
+
+        private long rowCount;
+
+        private long copiedRowCount;
+
+        private RuntimeException error;
+    }
+
+
+    private long writeReplacementsFile(Path path) throws IOException {
         if (path.getParent() != null && !Files.exists(path.getParent())) {
             Files.createDirectory(path.getParent());
         }
-        try (
-                BufferedWriter writer = Files.newBufferedWriter(path, StandardOpenOption.CREATE,
-                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+        try (OutputStream out = newOutputStream(path, REPLACEMENTS_FILE)) {
+            CsvRowWriter writer = new CsvRowWriter(out);
 
-            writer.write(
-                String.join(",", "INACTIVE SCTID", "INACTIVE PT", "REPLACEMENT TYPE SCTID", "REPLACEMENT TYPE PT", "REPLACEMENT SCTID",
-                    "REPLACEMENT PT"));
-            writer.newLine();
+            writer.write(REPLACEMENTS_HEADER);
+            writer.endRow();
             for (Triple<Concept, Concept, Concept> entry : conceptCache.getReplacementConcepts()) {
-                writer.write(
-                    String.join(",",
-                        entry.getLeft().getId() + "", "\"" + entry.getLeft().getPreferredTerm() + "\"",
-                        entry.getMiddle().getId() + "", "\"" + entry.getMiddle().getPreferredTerm() + "\"",
-                        entry.getRight().getId() + "", "\"" + entry.getRight().getPreferredTerm() + "\""));
-                writer.newLine();
+                writer.write(entry.getLeft()).write(entry.getMiddle()).write(entry.getRight()).endRow();
             }
+            return writer.getRows() - 1;
         }
     }
 
 
-	private Concept getParent(AmtConcept parentType, AmtConcept current, Concept concept) {
-		Set<Concept> parents = getParents(parentType, current, concept).stream()
-				.collect(Collectors.toSet());
+    /**
+     * Opens a CSV output file written as the output options say, adding it to the manifest under the name
+     */
+    private OutputStream newOutputStream(Path path, String name) throws IOException {
+        CsvOutput output = new CsvOutput(path, outputOptions);
+        outputManifest.add(name, output);
+        return new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+    }
+
+	private Concept getParent(JUnitTestSuite_EXT suite, List<Failure> failures, AmtConcept parentType,
+            AmtConcept current, Concept concept) {
+		Set<Concept> parents = getParents(parentType, current, concept);
 		
 		if (parents.size() != 1) {
+            conceptCache.loadFullySpecifiedNames();
 			String message = "Expected 1 parent of type " + parentType + " for concept " + concept + " but got " + parents;
-            testSuite.addTestCase("multiple parents", message, "Multiple parents (" + concept.getId() + ")", "ERROR");
-			
-            if (exitOnError) {
-				throw new RuntimeException(message);
-            }
+            addFailure(suite, failures,
+                new Failure("multiple parents", message, "Multiple parents (" + concept.getId() + ")", false));
 			return null;
 		}
 		return parents.iterator().next();
 	}
 
-	private Set<Concept> getParents(AmtConcept parentType, AmtConcept current, Concept concept) {
-		return getParents(parentType, current, Collections.singleton(concept));
-	}
-
-	private Set<Concept> getParents(AmtConcept parentType, AmtConcept current, Set<Concept> concepts) {
-		Set<Concept> leafParents = new HashSet<>();
-
-		leafParents.addAll(concepts.stream()
-				.flatMap(c -> c.getAncestors(parentType).stream())
-				.filter(p -> !AmtConcept.isEnumValue(p.getId()))
-				.filter(p -> p.hasAtLeastOneMatchingAncestor(parentType))
-				.filter(p -> !p.hasAtLeastOneMatchingAncestor(current))
-				.collect(Collectors.toSet()));
-
-		Set<Concept> redunantAncestors =
-				leafParents.stream().flatMap(p -> p.getAncestors(parentType).stream()).collect(Collectors.toSet());
-
-		leafParents.removeAll(redunantAncestors);
-
-		return leafParents;
+	Set<Concept> getParents(AmtConcept parentType, AmtConcept current, Concept concept) {
+		return conceptCache.getProximalAncestors(parentType, current, concept);
 	}
 
 	public String getInputZipFilePath() {
@@ -424,4 +1217,71 @@ public class Amt2FlatFile extends AbstractMojo {
     public void setReplacementsFilePath(String path) {
         this.replacementsOutputFilePath = path;
     }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public void setExtract(boolean extract) {
+        this.extract = extract;
+    }
+
+    public void setExtractDirectory(String extractDirectory) {
+        this.extractDirectory = extractDirectory;
+    }
+
+    public void setLazyTerms(boolean lazyTerms) {
+        this.lazyTerms = lazyTerms;
+    }
+
+    public void setSnapshotDirectory(String snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+    }
+
+    public void setRunReportFilePath(String runReportFilePath) {
+        this.runReportFilePath = runReportFilePath;
+    }
+
+    public void setDeltaBaseSnapshot(String deltaBaseSnapshot) {
+        this.deltaBaseSnapshot = deltaBaseSnapshot;
+    }
+
+    public void setPreviousFlatFilePath(String previousFlatFilePath) {
+        this.previousFlatFilePath = previousFlatFilePath;
+    }
+
+    public void setPreviousInputZipFilePath(String previousInputZipFilePath) {
+        this.previousInputZipFilePath = previousInputZipFilePath;
+    }
+
+    public void setDiffFilePath(String diffFilePath) {
+        this.diffFilePath = diffFilePath;
+    }
+
+    public void setCompression(String compression) {
+        this.compression = compression;
+    }
+
+    public void setChunkRows(int chunkRows) {
+        this.chunkRows = chunkRows;
+    }
+
+    public void setManifestFilePath(String manifestFilePath) {
+        this.manifestFilePath = manifestFilePath;
+    }
+
+    /**
+     * Uses an already loaded cache rather than loading one in {@link #execute()}, so files can be written from it
+     * directly, for example by benchmarks
+     */
+    void setConceptCache(AmtCache conceptCache, JUnitTestSuite_EXT testSuite) {
+        this.conceptCache = conceptCache;
+        this.testSuite = testSuite;
+        tppResolutions.clear();
+        tpuuResolutions.clear();
+    }
+
+    AmtCache getConceptCache() {
+        return conceptCache;
+    }
 }
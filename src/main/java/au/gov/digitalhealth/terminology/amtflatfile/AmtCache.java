@@ -1,15 +1,28 @@
 package au.gov.digitalhealth.terminology.amtflatfile;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystem;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.logging.Logger;
@@ -17,86 +30,174 @@ import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.commons.lang3.tuple.Triple;
-import org.jgrapht.alg.TransitiveClosure;
-import org.jgrapht.graph.SimpleDirectedGraph;
 import org.openmbee.junit.model.JUnitFailure;
 
 public class AmtCache {
 
-    private static final String AU_METADATA_MODULE = "161771000036108";
+    /**
+     * Increment whenever what is loaded from the same RF2 files changes, such as the rows each handler is given, what
+     * a handler does with them or how the transitive closure is calculated. It is part of every snapshot key, so
+     * snapshots of releases loaded the old way aren't reused.
+     */
+    static final int LOADER_VERSION = 1;
 
-    private static final String INTERNATIONAL_METADATA_MODULE = "900000000000012004";
+    private static final byte[] AU_METADATA_MODULE = ascii("161771000036108");
 
-    private static final String PREFERRED = "900000000000548007";
+    private static final byte[] INTERNATIONAL_METADATA_MODULE = ascii("900000000000012004");
 
-    private static final String FSN = "900000000000003001";
+    static final byte[] PREFERRED = ascii("900000000000548007");
 
-    private static final String AMT_MODULE_ID = "900062011000036108";
+    static final byte[] FSN = ascii("900000000000003001");
+
+    private static final byte[] AMT_MODULE_ID = ascii("900062011000036108");
+
+    private static final byte[] ACTIVE = ascii("1");
+
+    private static final byte[][] AMT_OR_METADATA_MODULES =
+            { AMT_MODULE_ID, INTERNATIONAL_METADATA_MODULE, AU_METADATA_MODULE };
+
+    /** The rows each handler loading a release is given, see {@link Rf2RowFilter} */
+    static final Rf2RowFilter CONCEPT_ROWS = Rf2RowFilter.where(3, AMT_OR_METADATA_MODULES);
+
+    static final Rf2RowFilter RELATIONSHIP_ROWS = Rf2RowFilter.where(3, AMT_MODULE_ID)
+        .and(2, ACTIVE)
+        .and(7, ascii(AttributeType.IS_A.getIdString()), ascii(AttributeType.HAS_MPUU.getIdString()),
+            ascii(AttributeType.HAS_TPUU.getIdString()), ascii(AttributeType.HAS_TP.getIdString()));
+
+    static final Rf2RowFilter DESCRIPTION_ROWS = Rf2RowFilter.where(3, AMT_OR_METADATA_MODULES).and(2, ACTIVE);
+
+    static final Rf2RowFilter FULLY_SPECIFIED_NAME_ROWS = DESCRIPTION_ROWS.and(6, FSN);
+
+    static final Rf2RowFilter LANGUAGE_REFSET_ROWS =
+            Rf2RowFilter.where(3, AMT_OR_METADATA_MODULES).and(2, ACTIVE).and(6, PREFERRED);
+
+    static final Rf2RowFilter AMT_REFSET_ROWS = Rf2RowFilter.where(3, AMT_MODULE_ID).and(2, ACTIVE);
 
     private static final Logger logger = Logger.getLogger(AmtCache.class.getCanonicalName());
 
-    private SimpleDirectedGraph<Long, Edge> graph = new SimpleDirectedGraph<>(Edge.class);
+    private LongObjectMap<Concept> conceptCache = new LongObjectMap<>();
 
-    private Map<Long, Concept> conceptCache = new HashMap<>();
+    private LongSet preferredDescriptionIdCache = new LongSet();
 
-    private Set<Long> preferredDescriptionIdCache = new HashSet<>();
+    private TermStore terms = new TermStore();
 
     private Map<Long, Concept> ctpps = new HashMap<>();
 
     private Set<Triple<Concept, Concept, Concept>> replacements = new HashSet<>();
 
+    private ProximalAncestorIndex proximalAncestors;
+
+    /** Ids of the concepts a Delta release changed, null unless one was applied */
+    private LongSet changedConcepts;
+
+    /** Ids of the CTPPs whose rows may have changed, null if they all may have */
+    private LongSet changedCtpps;
+
+    /** Description file FSNs are read from on demand when terms are loaded lazily, null once they have been read */
+    private Path pendingFullySpecifiedNames;
+
     private boolean exitOnError;
 
+    private AmtCacheOptions options;
+
+    private RunReport report;
+
     private JUnitTestSuite_EXT testSuite;
     private JUnitTestCase_EXT graphCase;
 
     public AmtCache(FileSystem amtZip, JUnitTestSuite_EXT testSuite, boolean exitOnError) throws IOException {
+        this(amtZip, testSuite, exitOnError, new AmtCacheOptions());
+    }
+
+    public AmtCache(FileSystem amtZip, JUnitTestSuite_EXT testSuite, boolean exitOnError, AmtCacheOptions options)
+            throws IOException {
+        this(testSuite, exitOnError, options);
+        processAmtFiles(amtZip);
+    }
+
+    /**
+     * Creates an empty cache which loads nothing, so its rows can be handled and its closure calculated step by step,
+     * for example by benchmarks
+     */
+    AmtCache(JUnitTestSuite_EXT testSuite, boolean exitOnError, AmtCacheOptions options) {
         this.testSuite = testSuite;
         this.exitOnError = exitOnError;
-        processAmtFiles(amtZip);
+        this.options = options;
+        this.report = options.getRunReport() == null ? new RunReport() : options.getRunReport();
     }
 
+    @SuppressWarnings("try")
     private void processAmtFiles(FileSystem amtZip) throws IOException {
 
         graphCase = new JUnitTestCase_EXT().setName("Graph errors");
 
-        TerminologyFileVisitor visitor = new TerminologyFileVisitor();
+        Path deltaBase = options.getDeltaBase();
+        TerminologyFileVisitor visitor = new TerminologyFileVisitor(
+            deltaBase == null ? TerminologyFileVisitor.SNAPSHOT : TerminologyFileVisitor.DELTA);
 
-        Files.walkFileTree(amtZip.getPath("/"), visitor);
-        
-        visitor.ensureAllFilesExist();
+        try (RunReport.Phase phase = report.start("Find RF2 files")) {
+            Files.walkFileTree(amtZip.getPath("/"), visitor);
+            visitor.ensureAllFilesExist();
+        }
 
-        readFile(visitor.getConceptFile(), s -> handleConceptRow(s), true, "\t");
-        readFile(visitor.getRelationshipFile(), s -> handleRelationshipRow(s), true, "\t");
-        readFile(visitor.getLanguageRefsetFile(), s -> handleLanguageRefsetRow(s), true, "\t");
-        readFile(visitor.getDescriptionFile(), s -> handleDescriptionRow(s), true, "\t");
-        readFile(visitor.getArtgIdRefsetFile(), s -> handleArtgIdRefsetRow(s), true, "\t");
-        for (Path historicalFile : visitor.getHistoricalAssociationRefsetFiles()) {
-            readFile(historicalFile, s -> handleHistoricalAssociationRefsetRow(s), true, "\t");
+        Path snapshot = null;
+        boolean lazyTerms = options.isLazyTerms();
+        if (options.getSnapshotDirectory() != null) {
+            snapshot = AmtCacheSnapshot.getFile(options.getSnapshotDirectory(), visitor, deltaBase);
+            if (lazyTerms) {
+                logger.info("All terms are loaded when using a snapshot, so that the snapshot is complete");
+                lazyTerms = false;
+            }
+        }
+        if (deltaBase != null && lazyTerms) {
+            logger.info("All terms are loaded when applying a Delta release, as the snapshot it is applied to has them");
+            lazyTerms = false;
         }
 
-        try {
-            calculateTransitiveClosure();
-        } catch (Exception e) {
-            String message = "Could not close graph. Elements missing";
-            JUnitFailure fail = new JUnitFailure();
-            fail.setMessage(message);
-            graphCase.addFailure(fail);
-            if (exitOnError) {
-                throw new RuntimeException(message);
+        boolean fromSnapshot = snapshot != null && readSnapshot(snapshot);
+        boolean closed = fromSnapshot
+                || (deltaBase == null ? loadRelease(visitor, lazyTerms) : loadDelta(visitor, deltaBase));
+
+        terms.compact();
+        logger.info("Stored terms in " + terms.size() + " bytes");
+
+        if (snapshot != null && !fromSnapshot) {
+            if (closed) {
+                writeSnapshot(snapshot);
+            } else {
+                logger.warning("Not writing snapshot " + snapshot + " as the transitive closure could not be calculated");
             }
         }
 
-        graph.incomingEdgesOf(AmtConcept.CTPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .forEach(id -> ctpps.put(id, conceptCache.get(id)));
+        getDescendants(AmtConcept.CTPP).forEach(c -> ctpps.put(c.getId(), c));
+
+        if (changedConcepts != null && closed) {
+            changedCtpps = new LongSet();
+            LongSet dependencies = new LongSet();
+            for (Concept ctpp : ctpps.values()) {
+                if (rowsDependOnAny(ctpp, changedConcepts)) {
+                    changedCtpps.add(ctpp.getId());
+                    addRowDependencies(ctpp, dependencies);
+                }
+            }
+            report.add("changedConcepts", changedConcepts.size()).add("changedCtpps", changedCtpps.size());
+            logger.info(changedCtpps.size() + " of " + ctpps.size() + " CTPPs changed");
+
+            // only the rows of the changed CTPPs are resolved, any other lookup falls back to walking the ancestors
+            List<Concept> indexed = new ArrayList<>(dependencies.size());
+            for (long id : dependencies.toArray()) {
+                indexed.add(conceptCache.get(id));
+            }
+            proximalAncestors = new ProximalAncestorIndex(indexed);
+        } else {
+            proximalAncestors = new ProximalAncestorIndex(conceptCache.values());
+        }
 
         Iterator<Entry<Long, Concept>> it = ctpps.entrySet().iterator();
         while (it.hasNext()) {
             Entry<Long, Concept> entry = it.next();
             if (!entry.getValue().isActive()) {
+                loadFullySpecifiedNames();
                 String message = "Found inactive CTPP! " + entry.getValue();
                 logger.warning(message);
                 testSuite.addTestCase("Inactive CTPP found", entry.getValue().toString(), "Inactive_CTPP", "ERROR");
@@ -107,128 +208,371 @@ public class AmtCache {
             }
         }
 
-        conceptCache.values().stream().forEach(c -> {
-            c.addAncestors(
-                graph.outgoingEdgesOf(c.getId())
-                    .stream()
-                    .map(e -> e.getTarget())
-                    .collect(Collectors.<Long, Long, Concept> toMap(id -> id, id -> conceptCache.get(id))));
+        try (RunReport.Phase phase = report.start("Validate concepts")) {
+            validate();
+        }
+        report.add("concepts", conceptCache.size()).add("ctpps", ctpps.size()).add("termBytes", terms.size());
+
+        logger.info("Validated cached concepts ");
+    }
+
+    /**
+     * Reads the RF2 files and calculates the transitive closure.
+     *
+     * @return true if the transitive closure was calculated
+     */
+    @SuppressWarnings("try")
+    private boolean loadRelease(TerminologyFileVisitor visitor, boolean lazyTerms) throws IOException {
+        // FSNs needed later are read from the release rather than any temporary copy, which will have been removed
+        pendingFullySpecifiedNames = lazyTerms ? visitor.getDescriptionFile() : null;
+
+        Path temporaryDirectory = null;
+        if (options.isExtract()) {
+            Path extractDirectory = options.getExtractDirectory();
+            if (extractDirectory == null) {
+                temporaryDirectory = Files.createTempDirectory("amt-rf2-");
+                extractDirectory = temporaryDirectory;
+            } else if (pendingFullySpecifiedNames != null) {
+                pendingFullySpecifiedNames = extractDirectory.resolve(pendingFullySpecifiedNames.getFileName().toString());
+            }
+            try (RunReport.Phase phase = report.start("Extract RF2 files")) {
+                visitor.extractTo(extractDirectory, options.getParallelism());
+            }
+        }
+
+        boolean closed = false;
+        try {
+            if (options.getParallelism() > 1) {
+                readFilesInParallel(visitor, lazyTerms);
+            } else {
+                read(visitor.getConceptFile(), CONCEPT_ROWS, s -> handleConceptRow(s));
+                read(visitor.getRelationshipFile(), RELATIONSHIP_ROWS, s -> handleRelationshipRow(s));
+                read(visitor.getLanguageRefsetFile(), LANGUAGE_REFSET_ROWS, s -> handleLanguageRefsetRow(s));
+                if (!lazyTerms) {
+                    read(visitor.getDescriptionFile(), DESCRIPTION_ROWS, s -> handleDescriptionRow(s));
+                }
+                read(visitor.getArtgIdRefsetFile(), AMT_REFSET_ROWS, s -> handleArtgIdRefsetRow(s));
+                readHistoricalAssociationFiles(visitor);
+            }
+
+            try {
+                calculateTransitiveClosure();
+                closed = true;
+            } catch (Exception e) {
+                String message = "Could not close graph. " + e.getMessage();
+                JUnitFailure fail = new JUnitFailure();
+                fail.setMessage(message);
+                graphCase.addFailure(fail);
+                if (exitOnError) {
+                    throw new RuntimeException(message);
+                }
+            }
+
+            if (lazyTerms && !closed) {
+                // without complete ancestors the concepts needing terms can't be worked out, so load them all
+                read(visitor.getDescriptionFile(), DESCRIPTION_ROWS, s -> handleDescriptionRow(s));
+                pendingFullySpecifiedNames = null;
+            } else if (lazyTerms) {
+                LongSet termsNeeded = getConceptsNeedingTerms();
+                read(visitor.getDescriptionFile(), DESCRIPTION_ROWS, s -> handleDescriptionRow(s, termsNeeded));
+                logger.info("Loaded preferred terms for " + termsNeeded.size() + " concepts");
+                preferredDescriptionIdCache = null;
+            }
+        } finally {
+            if (temporaryDirectory != null) {
+                deleteDirectory(temporaryDirectory);
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Restores the state of an earlier release from its snapshot and applies the Delta release found by the visitor
+     * to it, recording which concepts changed.
+     *
+     * @return true if the transitive closure was calculated
+     */
+    @SuppressWarnings("try")
+    private boolean loadDelta(TerminologyFileVisitor visitor, Path deltaBase) throws IOException {
+        try (RunReport.Phase phase = report.start("Read snapshot")) {
+            AmtCacheSnapshot contents = AmtCacheSnapshot.read(deltaBase);
+            conceptCache = contents.getConcepts();
+            replacements = contents.getReplacements();
+            terms = contents.getTerms();
+            preferredDescriptionIdCache = contents.getPreferredDescriptionIds();
+            logger.info("Loaded " + conceptCache.size() + " concepts from snapshot " + deltaBase
+                    + " to apply the Delta release to");
+        } catch (IOException e) {
+            throw new IOException("Could not read snapshot " + deltaBase + " to apply the Delta release to", e);
+        }
+
+        AmtCacheDelta delta = new AmtCacheDelta(conceptCache, replacements, terms, preferredDescriptionIdCache);
+        read(visitor.getConceptFile(), s -> delta.handleConceptRow(s));
+        read(visitor.getRelationshipFile(), s -> delta.handleRelationshipRow(s));
+        read(visitor.getDescriptionFile(), s -> delta.handleDescriptionRow(s));
+        read(visitor.getLanguageRefsetFile(), s -> delta.handleLanguageRefsetRow(s));
+        read(visitor.getArtgIdRefsetFile(), s -> delta.handleArtgIdRefsetRow(s));
+        for (Path historicalFile : visitor.getHistoricalAssociationRefsetFiles()) {
+            read(historicalFile, s -> delta.handleHistoricalAssociationRefsetRow(s));
+        }
+
+        try (RunReport.Phase phase = report.start("Apply delta")) {
+            delta.apply();
+            try {
+                delta.recalculateTransitiveClosure();
+            } catch (Exception e) {
+                String message = "Could not close graph. " + e.getMessage();
+                JUnitFailure fail = new JUnitFailure();
+                fail.setMessage(message);
+                graphCase.addFailure(fail);
+                if (exitOnError) {
+                    throw new RuntimeException(message);
+                }
+                return false;
+            }
+            phase.add("changedConcepts", delta.getChanged().size());
+        }
+        changedConcepts = delta.getChanged();
+        return true;
+    }
+
+    @SuppressWarnings("try")
+    private boolean readSnapshot(Path snapshot) {
+        if (!Files.isRegularFile(snapshot)) {
+            logger.info("No snapshot " + snapshot + " found, loading from RF2");
+            return false;
+        }
+        try (RunReport.Phase phase = report.start("Read snapshot")) {
+            AmtCacheSnapshot contents = AmtCacheSnapshot.read(snapshot);
+            conceptCache = contents.getConcepts();
+            replacements = contents.getReplacements();
+            terms = contents.getTerms();
+            preferredDescriptionIdCache = contents.getPreferredDescriptionIds();
+            logger.info("Loaded " + conceptCache.size() + " concepts from snapshot " + snapshot);
+            return true;
+        } catch (IOException e) {
+            logger.warning("Could not read snapshot " + snapshot + ", loading from RF2. " + e.getMessage());
+            return false;
+        }
+    }
+
+    @SuppressWarnings("try")
+    private void writeSnapshot(Path snapshot) {
+        try (RunReport.Phase phase = report.start("Write snapshot")) {
+            new AmtCacheSnapshot(conceptCache, replacements, terms, preferredDescriptionIdCache).write(snapshot);
+            logger.info("Wrote snapshot " + snapshot);
+        } catch (IOException e) {
+            logger.warning("Could not write snapshot " + snapshot + ". " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the RF2 files concurrently, ordered by what each handler depends on. Concepts must be loaded before
+     * anything that looks them up, and the preferred description ids from the language refset must be loaded before
+     * the descriptions. The concept cache and preferred description ids are only written by their own file's handler,
+     * before anything that reads them starts. The relationship, ARTG id and description handlers then update the same
+     * concepts at the same time, which is only safe without locking because each writes different fields of them:
+     * the relationship handler a concept's parents, units and TPs, the ARTG id handler its ARTG ids and the description
+     * handler its terms, which only it adds to the term store. The historical association handler only writes the
+     * replacements. A handler writing a field another handler writes would be a data race. What the handlers wrote is
+     * visible once their futures are joined, and because every file is still read in order the resulting caches are
+     * identical to a sequential load.
+     */
+    private void readFilesInParallel(TerminologyFileVisitor visitor, boolean lazyTerms) throws IOException {
+        // numbered so the threads can be told apart in thread dumps and the run report's phases
+        AtomicInteger readers = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(options.getParallelism(), r -> {
+            Thread thread = new Thread(r, "amt-rf2-reader-" + readers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
         });
+        try {
+            CompletableFuture<Void> concepts =
+                    readFileAsync(executor, visitor.getConceptFile(), CONCEPT_ROWS, s -> handleConceptRow(s));
+            CompletableFuture<Void> language =
+                    readFileAsync(executor, visitor.getLanguageRefsetFile(), LANGUAGE_REFSET_ROWS,
+                        s -> handleLanguageRefsetRow(s));
+
+            CompletableFuture<Void> relationships =
+                    readFileAsync(executor, visitor.getRelationshipFile(), RELATIONSHIP_ROWS,
+                        s -> handleRelationshipRow(s), concepts);
+            CompletableFuture<Void> artgIds =
+                    readFileAsync(executor, visitor.getArtgIdRefsetFile(), AMT_REFSET_ROWS,
+                        s -> handleArtgIdRefsetRow(s), concepts);
+            CompletableFuture<Void> descriptions = lazyTerms
+                    ? CompletableFuture.completedFuture(null)
+                    : readFileAsync(executor, visitor.getDescriptionFile(), DESCRIPTION_ROWS,
+                        s -> handleDescriptionRow(s), concepts, language);
+            CompletableFuture<Void> history = concepts.thenRunAsync(() -> {
+                try {
+                    readHistoricalAssociationFiles(visitor);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, executor);
+
+            CompletableFuture.allOf(relationships, artgIds, descriptions, history).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-        validateConceptCache();
+    private CompletableFuture<Void> readFileAsync(ExecutorService executor, Path path, Rf2RowFilter filter,
+            Predicate<Rf2Row> handler, CompletableFuture<?>... dependencies) {
+        return CompletableFuture.allOf(dependencies).thenRunAsync(() -> {
+            try {
+                read(path, filter, handler);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor);
+    }
 
-        logger.info("Loaded " + ctpps.size() + " CTPPs " + conceptCache.size() + " concepts ");
+    /**
+     * Reads an RF2 file with a header row, handing every row to the handler
+     */
+    private void read(Path path, Predicate<Rf2Row> handler) throws IOException {
+        read(path, Rf2RowFilter.ALL, handler);
+    }
 
-        validateUnits();
+    /**
+     * Reads an RF2 file with a header row, recording in the run report how long it took, how many of its rows the
+     * filter dropped and how many of the rest the handler kept
+     */
+    private void read(Path path, Rf2RowFilter filter, Predicate<Rf2Row> handler) throws IOException {
+        try (RunReport.Phase phase = report.start("Read " + path.getFileName())) {
+            long[] kept = new long[1];
+            Rf2FileReader reader = new Rf2FileReader(row -> {
+                if (handler.test(row)) {
+                    kept[0]++;
+                }
+            }, true).setFilter(filter).setStaged(options.getParallelism() > 1);
+            reader.read(path);
+            phase.add("rowsRead", reader.getRowsRead())
+                .add("rowsFiltered", reader.getRowsFiltered())
+                .add("rowsKept", kept[0])
+                .add("bytesRead", reader.getBytesRead());
+            if (reader.hasStageTimes()) {
+                phase.add("inflateMillis", TimeUnit.NANOSECONDS.toMillis(reader.getInflateNanos()))
+                    .add("splitMillis", TimeUnit.NANOSECONDS.toMillis(reader.getSplitNanos()))
+                    .add("handleMillis", TimeUnit.NANOSECONDS.toMillis(reader.getHandleNanos()));
+            }
+        }
+        logger.info("Processed " + path);
+    }
 
-        logger.info("Validated cached concepts ");
+    private void readHistoricalAssociationFiles(TerminologyFileVisitor visitor) throws IOException {
+        for (Path historicalFile : visitor.getHistoricalAssociationRefsetFiles()) {
+            read(historicalFile, AMT_REFSET_ROWS, s -> handleHistoricalAssociationRefsetRow(s));
+        }
+    }
+
+    private void deleteDirectory(Path directory) {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> {
+                try {
+                    Files.delete(file);
+                } catch (IOException e) {
+                    // mapped files can't be deleted on some platforms until they are garbage collected
+                    file.toFile().deleteOnExit();
+                }
+            });
+        } catch (IOException e) {
+            logger.warning("Could not remove temporary directory " + directory + " " + e.getMessage());
+        }
     }
 
-    private void validateConceptCache() {
+    /**
+     * Checks the loaded concepts against every validation rule in one pass, then reports and fixes each rule's
+     * violations in turn
+     */
+    private void validate() {
+        ConceptValidator validator = new ConceptValidator();
+
         // inactive concepts shouldn't have references to other things
-        assertConceptCache(c -> !c.isActive() && !c.getParents().isEmpty(), "Inactive concepts with parents", "Inactive_with_parents",
-            c -> c.getParents().clear());
-        assertConceptCache(c -> !c.isActive() && !c.getTps().isEmpty(), "Inactive concepts with TPs", "Inactive_with_TPs",
-            c -> c.getTps().clear());
-        assertConceptCache(c -> !c.isActive() && !c.getUnits().isEmpty(), "Inactive concepts with Units", "Inactive_with_Units",
-            c -> c.getUnits().clear());
-        assertConceptCache(c -> !c.isActive() && !c.getArtgIds().isEmpty(), "Inactive concepts with ARTGIDs", "Inactive_with_ARTGIDs",
-            c -> c.getArtgIds().clear());
+        validator.addRule("Inactive concepts with parents", "Inactive_with_parents",
+            c -> !c.isActive() && !c.getParentMap().isEmpty(), c -> c.getParentMap().clear());
+        validator.addRule("Inactive concepts with TPs", "Inactive_with_TPs",
+            c -> !c.isActive() && !c.getTps().isEmpty(), c -> c.getTps().clear());
+        validator.addRule("Inactive concepts with Units", "Inactive_with_Units",
+            c -> !c.isActive() && !c.getUnits().isEmpty(), c -> c.getUnits().clear());
+        validator.addRule("Inactive concepts with ARTGIDs", "Inactive_with_ARTGIDs",
+            c -> !c.isActive() && !c.getArtgIds().isEmpty(), c -> c.getArtgIds().clear());
 
         // all concepts should have PTs and FSNs
-        assertConceptCache(c -> c.getFullSpecifiedName() == null || c.getFullSpecifiedName().isEmpty(), "Concepts with null or empty FSN",
-            "Null_or_empty_FSN", c -> c.setFullSpecifiedName("Concept " + c.getId() + " has not FSN!!!")); // fix is a no-op
-        assertConceptCache(c -> c.getPreferredTerm() == null || c.getPreferredTerm().isEmpty(), "Concepts with null or empty PT",
-            "Null_or_empty_PT", c -> c.setPreferredTerm("Concept " + c.getId() + " has not Preferred Term!!!"));
+        validator.addRule("Concepts with null or empty FSN", "Null_or_empty_FSN", c -> !c.hasFullySpecifiedName(),
+            c -> c.setFullSpecifiedName("Concept " + c.getId() + " has not FSN!!!")); // fix is a no-op
+        validator.addRule("Concepts with null or empty PT", "Null_or_empty_PT", c -> !c.hasPreferredTerm(),
+            c -> c.setPreferredTerm("Concept " + c.getId() + " has not Preferred Term!!!"));
 
         // active concepts should only reference active things
-        assertConceptCache(c -> c.isActive() && c.getUnits().stream().anyMatch(u -> !u.isActive()),
-            "Active concept with inactive linked unit/s", "Active_concept_inactive_units",
+        validator.addRule("Active concept with inactive linked unit/s", "Active_concept_inactive_units",
+            c -> c.isActive() && c.getUnits().stream().anyMatch(u -> !u.isActive()),
             c -> c.getUnits().removeAll(c.getUnits().stream().filter(u -> !u.isActive()).collect(Collectors.toSet())));
-        assertConceptCache(c -> c.isActive() && c.getTps().stream().anyMatch(u -> !u.isActive()),
-            "Active concept with inactive linked TP/s", "Active_concept_inactive_TP",
-            c -> c.getTps().remove(c.getTps()
-                .stream()
-                .filter(t -> !t.isActive())
-                .collect(Collectors.toSet())));
-        assertConceptCache(c -> c.isActive() && c.getParents().values().stream().anyMatch(u -> !u.isActive()),
-            "Active concept with inactive linked parent/s", "Active_concept_inactive_parents",
-            c -> c.getParents().remove(c.getParents()
-                .entrySet()
-                .stream()
-                .filter(e -> !e.getValue().isActive())
-                .map(e -> e.getValue())
-                .collect(Collectors.toSet())));
-    }
-
-    private void assertConceptCache(Predicate<Concept> predicate, String message, String testCaseName, Consumer<Concept> fix) {
-        Set<Concept> errors =
-                conceptCache.values().stream().filter(predicate).collect(Collectors.toSet());
-
-        if (!errors.isEmpty()) {
-            logger.warning(message + " " + errors);
-            testSuite.addTestCase(message, errors.toString(), testCaseName, "ERROR");
-
-            if (exitOnError || fix == null) {
-                throw new RuntimeException(message + " " + errors);
-            } else {
-                logger.warning(
-                    "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                logger.warning(
-                    "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                logger.warning(
-                    "FIX APPLIED FOR ERRONEOUS INPUT DATA - continuing as requested, however RESULTS MAY BE UNRELIABLE AS A RESULT!!!!");
-                logger.warning(
-                    "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                logger.warning(
-                    "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
-                errors.stream().forEach(fix);
-            }
-        }
-    }
+        // these have only ever been reported, their fixes passed a set to remove which removed nothing, so the fixes
+        // are no-ops which keep the inactive TPs and parents and leave the flat file unchanged
+        validator.addRule("Active concept with inactive linked TP/s", "Active_concept_inactive_TP",
+            c -> c.isActive() && c.getTps().stream().anyMatch(u -> !u.isActive()), c -> {});
+        validator.addRule("Active concept with inactive linked parent/s", "Active_concept_inactive_parents",
+            c -> c.isActive() && c.getParentMap().values().stream().anyMatch(u -> !u.isActive()), c -> {});
+
+        // packs should have units, MPPs only MPUUs and TPPs only TPUUs, checked once the fixes above are applied
+        ConceptValidator.Rule packsWithNoUnits = validator.addCheck(c -> isDescendant(c, AmtConcept.MPP)
+                && c.getUnits().isEmpty());
+        ConceptValidator.Rule mppsWithTpuus = validator.addCheck(c -> isDescendant(c, AmtConcept.MPP)
+                && !c.hasAtLeastOneMatchingAncestor(AmtConcept.TPP)
+                && c.getUnits().stream().anyMatch(unit -> unit.hasAtLeastOneMatchingAncestor(AmtConcept.TPUU)));
+        ConceptValidator.Rule tppsWithMpuus = validator.addCheck(c -> isDescendant(c, AmtConcept.TPP)
+                && c.getUnits().stream().anyMatch(unit -> !unit.hasAtLeastOneMatchingAncestor(AmtConcept.TPUU)));
+
+        validator.validate(new ArrayList<>(conceptCache.values()), options.getParallelism());
+        validator.report(this::reportViolations);
 
-    private void validateUnits() {
-        Set<Concept> packConceptsWithNoUnits = graph.incomingEdgesOf(AmtConcept.MPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .map(id -> conceptCache.get(id))
-            .filter(concept -> concept.getUnits() == null || concept.getUnits().size() == 0)
-            .collect(Collectors.toSet());
+        logger.info("Loaded " + ctpps.size() + " CTPPs " + conceptCache.size() + " concepts ");
 
-        Set<Concept> mppsWithTpuus = graph.incomingEdgesOf(AmtConcept.MPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .map(id -> conceptCache.get(id))
-            .filter(concept -> !concept.hasAtLeastOneMatchingAncestor(AmtConcept.TPP))
-            .filter(concept -> concept.getUnits()
-                .stream()
-                .anyMatch(unit -> unit.hasAtLeastOneMatchingAncestor(AmtConcept.TPUU)))
-            .collect(Collectors.toSet());
-
-        Set<Concept> tppsWithMpuus = graph.incomingEdgesOf(AmtConcept.TPP.getId())
-            .stream()
-            .map(e -> e.getSource())
-            .filter(id -> !AmtConcept.isEnumValue(Long.toString(id)))
-            .map(id -> conceptCache.get(id))
-            .filter(concept -> concept.getUnits()
-                .stream()
-                .anyMatch(unit -> !unit.hasAtLeastOneMatchingAncestor(AmtConcept.TPUU)))
-            .collect(Collectors.toSet());
+        reportUnitErrors(validator.getViolations(packsWithNoUnits), validator.getViolations(mppsWithTpuus),
+            validator.getViolations(tppsWithMpuus));
+    }
 
+    private void reportViolations(ConceptValidator.Rule rule, Set<Concept> errors) {
+        String message = rule.getMessage();
+        loadFullySpecifiedNames();
+        logger.warning(message + " " + errors);
+        testSuite.addTestCase(message, errors.toString(), rule.getTestCaseName(), "ERROR");
+
+        if (exitOnError || !rule.hasFix()) {
+            throw new RuntimeException(message + " " + errors);
+        } else {
+            logger.warning(
+                "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            logger.warning(
+                "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            logger.warning(
+                "FIX APPLIED FOR ERRONEOUS INPUT DATA - continuing as requested, however RESULTS MAY BE UNRELIABLE AS A RESULT!!!!");
+            logger.warning(
+                "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+            logger.warning(
+                "!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!!");
+        }
+    }
+
+    private void reportUnitErrors(Set<Concept> packConceptsWithNoUnits, Set<Concept> mppsWithTpuus,
+            Set<Concept> tppsWithMpuus) {
         if (!packConceptsWithNoUnits.isEmpty() || !mppsWithTpuus.isEmpty() || !tppsWithMpuus.isEmpty()) {
 
             String detail = "Detected pack concepts with no units "
-                    + packConceptsWithNoUnits.stream().map(c -> c.getId() + " |" + c.getPreferredTerm() + "|\n").collect(Collectors.toSet())
+                    + describeUnitErrors(packConceptsWithNoUnits)
                     + " and/or MPPs with TPUU units "
-                    + mppsWithTpuus.stream()
-                        .map(c -> c.getId() + " |" + c.getPreferredTerm() + "|\n")
-                        .collect(Collectors.toSet())
+                    + describeUnitErrors(mppsWithTpuus)
                     + " and/or TPP/CTPPs with MPUU units "
-                    + tppsWithMpuus.stream()
-                        .map(c -> c.getId() + " |" + c.getPreferredTerm() + "|\n")
-                        .collect(Collectors.toSet());
+                    + describeUnitErrors(tppsWithMpuus);
 
             testSuite.addTestCase("Detected pack concepts with no units and/or MPPs with TPUU units and/or TPP/CTPPs with MPUU units",
                 detail, "heirarchy_error", "ERROR");
@@ -239,141 +583,358 @@ public class AmtCache {
         }
     }
 
+    /**
+     * @return the id and preferred term of each of the concepts, in ascending order of their ids
+     */
+    private Set<String> describeUnitErrors(Set<Concept> concepts) {
+        return concepts.stream()
+            .sorted(Comparator.comparingLong(Concept::getId))
+            .map(c -> c.getId() + " |" + c.getPreferredTerm() + "|\n")
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * @return the concepts below the specified AMT concept in the IS_A hierarchy, excluding the other AMT concepts
+     *         themselves, sorted by id
+     */
+    private List<Concept> getDescendants(AmtConcept amtConcept) {
+        return conceptCache.values()
+            .stream()
+            .filter(c -> isDescendant(c, amtConcept))
+            .sorted(Comparator.comparingLong(Concept::getId))
+            .collect(Collectors.toList());
+    }
+
+    private static boolean isDescendant(Concept concept, AmtConcept amtConcept) {
+        return concept.hasAncestor(amtConcept.getId()) && !AmtConcept.isEnumValue(concept.getId());
+    }
+
+    /**
+     * @return the most proximal ancestors of <code>concept</code> that are of the <code>parentType</code> AMT class
+     *         but are not themselves of the <code>current</code> class, for example the MPUUs of a TPUU, in ascending
+     *         order of their ids
+     */
+    public Set<Concept> getProximalAncestors(AmtConcept parentType, AmtConcept current, Concept concept) {
+        return proximalAncestors.get(parentType, current, concept);
+    }
+
+    /**
+     * @return the ids of the concepts whose preferred terms may be written out, which are the CTPPs with the concepts
+     *         their rows are built from, the concepts in the replacements file and the packs checked for units
+     */
+    private LongSet getConceptsNeedingTerms() {
+        LongSet needed = new LongSet();
+        for (Concept ctpp : getDescendants(AmtConcept.CTPP)) {
+            addRowDependencies(ctpp, needed);
+        }
+        for (Triple<Concept, Concept, Concept> replacement : replacements) {
+            Stream.of(replacement.getLeft(), replacement.getMiddle(), replacement.getRight())
+                .filter(c -> c != null)
+                .forEach(c -> needed.add(c.getId()));
+        }
+        getDescendants(AmtConcept.MPP).forEach(c -> needed.add(c.getId()));
+        getDescendants(AmtConcept.TPP).forEach(c -> needed.add(c.getId()));
+        return needed;
+    }
+
+    /**
+     * Adds the ids of the concepts a CTPP's rows are built from, which are the CTPP and its ancestors, their TPs, and
+     * their units with the units' ancestors
+     */
+    private void addRowDependencies(Concept ctpp, LongSet ids) {
+        addWithAncestors(ctpp, ids);
+        for (Concept ancestor : ctpp.getAncestors()) {
+            ancestor.getTps().forEach(tp -> ids.add(tp.getId()));
+            ancestor.getUnits().forEach(unit -> addWithAncestors(unit, ids));
+        }
+    }
+
+    private void addWithAncestors(Concept concept, LongSet ids) {
+        if (ids.add(concept.getId())) {
+            concept.getAncestors().forEach(ancestor -> ids.add(ancestor.getId()));
+        }
+    }
+
+    /**
+     * @return true if any of the concepts added by {@link #addRowDependencies(Concept, LongSet)} are in
+     *         <code>ids</code>
+     */
+    private static boolean rowsDependOnAny(Concept ctpp, LongSet ids) {
+        if (containsWithAncestors(ctpp, ids)) {
+            return true;
+        }
+        for (Concept ancestor : ctpp.getAncestors()) {
+            for (Concept tp : ancestor.getTps()) {
+                if (ids.contains(tp.getId())) {
+                    return true;
+                }
+            }
+            for (Concept unit : ancestor.getUnits()) {
+                if (containsWithAncestors(unit, ids)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsWithAncestors(Concept concept, LongSet ids) {
+        if (ids.contains(concept.getId())) {
+            return true;
+        }
+        for (Concept ancestor : concept.getAncestors()) {
+            if (ids.contains(ancestor.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the FSNs of every concept if terms are being loaded lazily and they have not been read yet. Anything
+     * describing concepts using {@link Concept#toString()}, such as a validation failure, must call this first.
+     */
+    public synchronized void loadFullySpecifiedNames() {
+        if (pendingFullySpecifiedNames != null) {
+            try {
+                read(pendingFullySpecifiedNames, FULLY_SPECIFIED_NAME_ROWS, s -> handleFullySpecifiedNameRow(s));
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read FSNs from " + pendingFullySpecifiedNames, e);
+            }
+            pendingFullySpecifiedNames = null;
+        }
+    }
+
     public Map<Long, Concept> getCtpps() {
         return ctpps;
     }
 
-    private void handleConceptRow(String[] row) {
+    /**
+     * @return the ids of the CTPPs whose rows may differ from those of the release a Delta release was applied to, or
+     *         null if no Delta release was applied, or it was loaded from a snapshot, and every CTPP must be written
+     */
+    LongSet getChangedCtpps() {
+        return changedCtpps;
+    }
+
+    Collection<Concept> getConcepts() {
+        return conceptCache.values();
+    }
+
+    /**
+     * Each handler is only given the rows passing its filter, here {@link #CONCEPT_ROWS}, so only checks what the
+     * filter can't.
+     *
+     * @return true if the row was kept, here and for every other handler
+     */
+    boolean handleConceptRow(Rf2Row row) {
         try {
-            if (isAmtOrMetadataModule(row)) {
-                long conceptId = Long.parseLong(row[0]);
-                graph.addVertex(conceptId);
-                conceptCache.put(conceptId, new Concept(conceptId, isActive(row)));
-            }
+            long conceptId = row.getLong(0);
+            conceptCache.put(conceptId, new Concept(conceptId, isActive(row), terms));
+            return true;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of Concepts file", e);
         }
     }
 
-    private void handleRelationshipRow(String[] row) {
+    /**
+     * @param row a row passing {@link #RELATIONSHIP_ROWS}
+     */
+    boolean handleRelationshipRow(Rf2Row row) {
 
         try {
-            long source = Long.parseLong(row[4]);
-            long destination = Long.parseLong(row[5]);
-            String type = row[7];
+            Concept sourceConcept = conceptCache.get(row.getLong(4));
+            Concept destinationConcept = conceptCache.get(row.getLong(5));
 
-            if (isActive(row) && isAmtModule(row) && AttributeType.isEnumValue(type) && graph.containsVertex(source)
-                    && graph.containsVertex(destination)) {
-                Concept sourceConcept = conceptCache.get(source);
-
-                switch (AttributeType.fromIdString(type)) {
+            if (sourceConcept != null && destinationConcept != null) {
+                switch (AttributeType.fromId(row.getLong(7))) {
                     case IS_A:
-                        graph.addEdge(source, destination);
-                        sourceConcept.addParent(conceptCache.get(destination));
-                        break;
+                        if (sourceConcept.equals(destinationConcept)) {
+                            throw new IllegalArgumentException("Concept " + sourceConcept.getId() + " IS_A itself");
+                        }
+                        sourceConcept.addParent(destinationConcept);
+                        return true;
 
                     case HAS_MPUU:
                     case HAS_TPUU:
-                        sourceConcept.addUnit(conceptCache.get(destination));
-                        break;
+                        sourceConcept.addUnit(destinationConcept);
+                        return true;
 
                     case HAS_TP:
-                        sourceConcept.addTp(conceptCache.get(destination));
+                        sourceConcept.addTp(destinationConcept);
+                        return true;
 
                     default:
                         break;
                 }
             }
+            return false;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of Relationships file", e);
         }
 
     }
 
-    private void handleDescriptionRow(String[] row) {
+    /**
+     * @param row a row passing {@link #DESCRIPTION_ROWS}
+     */
+    boolean handleDescriptionRow(Rf2Row row) {
 
         try {
+            Concept concept = conceptCache.get(row.getLong(4));
+            if (concept != null) {
+                if (row.fieldEquals(6, FSN)) {
+                    concept.setFullSpecifiedName(row, 7);
+                    return true;
+                } else if (preferredDescriptionIdCache.contains(row.getLong(0))) {
+                    concept.setPreferredTerm(row, 7);
+                    return true;
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Descriptions file", e);
+        }
+    }
 
-            Long conceptId = Long.parseLong(row[4]);
+    /**
+     * Handles a description row when terms are loaded lazily, keeping only the preferred terms of the concepts needed
+     * and recording which concepts have terms for validation
+     *
+     * @param row a row passing {@link #DESCRIPTION_ROWS}
+     * @return true if the row's term was kept
+     */
+    boolean handleDescriptionRow(Rf2Row row, LongSet termsNeeded) {
 
-            if (isActive(row) && isAmtOrMetadataModule(row) && conceptCache.containsKey(conceptId)) {
-                String descriptionId = row[0];
-                String term = row[7];
+        try {
+            if (row.getFieldLength(7) > 0) {
+                long conceptId = row.getLong(4);
                 Concept concept = conceptCache.get(conceptId);
-                if (row[6].equals(FSN)) {
-                    concept.setFullSpecifiedName(term);
-                } else if (preferredDescriptionIdCache.contains(Long.parseLong(descriptionId))) {
-                    concept.setPreferredTerm(term);
+                if (concept != null) {
+                    if (row.fieldEquals(6, FSN)) {
+                        concept.setFullySpecifiedNameNotLoaded();
+                    } else if (preferredDescriptionIdCache.contains(row.getLong(0))) {
+                        if (termsNeeded.contains(conceptId)) {
+                            concept.setPreferredTerm(row, 7);
+                            return true;
+                        } else {
+                            concept.setPreferredTermNotLoaded();
+                        }
+                    }
                 }
             }
+            return false;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of Descriptions file", e);
         }
     }
 
-    private void handleLanguageRefsetRow(String[] row) {
+    /**
+     * @param row a row passing {@link #FULLY_SPECIFIED_NAME_ROWS}
+     */
+    boolean handleFullySpecifiedNameRow(Rf2Row row) {
 
         try {
-            if (isActive(row) && isAmtOrMetadataModule(row) && row[6].equals(PREFERRED)) {
-                preferredDescriptionIdCache.add(Long.parseLong(row[5]));
+            Concept concept = conceptCache.get(row.getLong(4));
+            if (concept != null) {
+                concept.setFullSpecifiedName(row, 7);
+                return true;
             }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Descriptions file", e);
+        }
+    }
+
+    /**
+     * @param row a row passing {@link #LANGUAGE_REFSET_ROWS}
+     */
+    boolean handleLanguageRefsetRow(Rf2Row row) {
+
+        try {
+            preferredDescriptionIdCache.add(row.getLong(5));
+            return true;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of Language file", e);
         }
 
     }
 
-    private void handleArtgIdRefsetRow(String[] row) {
+    /**
+     * @param row a row passing {@link #AMT_REFSET_ROWS}
+     */
+    boolean handleArtgIdRefsetRow(Rf2Row row) {
         try {
-            long conceptId = Long.parseLong(row[5]);
-            if (isActive(row) && isAmtModule(row)) {
-                conceptCache.get(conceptId).addArtgIds(row[6]);
-            }
+            conceptCache.get(row.getLong(5)).addArtgIds(row.getString(6));
+            return true;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of ARTG file", e);
         }
     }
 
-    private void handleHistoricalAssociationRefsetRow(String[] row) {
+    /**
+     * @param row a row passing {@link #AMT_REFSET_ROWS}
+     */
+    boolean handleHistoricalAssociationRefsetRow(Rf2Row row) {
         try {
-            if (isActive(row) && isAmtModule(row) && !isDescriptionId(row[5])) {
-                Concept replacementType = conceptCache.get(Long.parseLong(row[4]));
-                Concept inactiveConcept = conceptCache.get(Long.parseLong(row[5]));
-                Concept replacementConcept = conceptCache.get(Long.parseLong(row[6]));
+            if (!isDescriptionId(row.getField(5))) {
+                Concept replacementType = conceptCache.get(row.getLong(4));
+                Concept inactiveConcept = conceptCache.get(row.getLong(5));
+                Concept replacementConcept = conceptCache.get(row.getLong(6));
 
                 replacements.add(Triple.of(inactiveConcept, replacementType, replacementConcept));
+                return true;
             }
+            return false;
         } catch (Exception e) {
             throw new RuntimeException("Failed processing row: " + row + " of History file", e);
         }
     }
 
-    private boolean isDescriptionId(String id) {
-        return id.substring(id.length() - 2, id.length() - 1).equals("1");
+    static boolean isDescriptionId(CharSequence id) {
+        return id.charAt(id.length() - 2) == '1';
     }
 
-    private void calculateTransitiveClosure() {
+    @SuppressWarnings("try")
+    void calculateTransitiveClosure() {
         logger.info("Calculating transitive closure");
-        TransitiveClosure.INSTANCE.closeSimpleDirectedGraph(graph);
+        try (RunReport.Phase phase = report.start("Calculate transitive closure")) {
+            IsaClosure.calculate(conceptCache.values());
+        }
         logger.info("Calculated transitive closure");
     }
 
-    private boolean isActive(String[] row) {
-        return row[2].equals("1");
+    static boolean isActive(Rf2Row row) {
+        return row.fieldEquals(2, ACTIVE);
     }
 
-    private boolean isAmtModule(String[] row) {
-        return row[3].equals(AMT_MODULE_ID);
+    static boolean isAmtModule(Rf2Row row) {
+        return row.fieldEquals(3, AMT_MODULE_ID);
     }
 
-    private boolean isAmtOrMetadataModule(String[] row) {
-        return row[3].equals(AMT_MODULE_ID) || row[3].equals(INTERNATIONAL_METADATA_MODULE) || row[3].equals(AU_METADATA_MODULE);
+    static boolean isAmtOrMetadataModule(Rf2Row row) {
+        return row.fieldEquals(3, AMT_MODULE_ID) || row.fieldEquals(3, INTERNATIONAL_METADATA_MODULE)
+                || row.fieldEquals(3, AU_METADATA_MODULE);
     }
 
     public Set<Triple<Concept, Concept, Concept>> getReplacementConcepts() {
         return replacements;
     }
 
+    /**
+     * Reads a tab delimited RF2 file, passing each row to the consumer as an {@link Rf2Row} cursor over the file's
+     * bytes. The same cursor instance is reused for every row, so consumers must not hold on to it. Files on the
+     * default file system are memory mapped rather than streamed.
+     */
+    public static void readFile(Path path, Consumer<Rf2Row> consumer, boolean hasHeader) throws IOException {
+        new Rf2FileReader(consumer, hasHeader).read(path);
+        logger.info("Processed " + path);
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
     @SuppressWarnings("resource")
     public static void readFile(Path path, Consumer<String[]> consumer, boolean hasHeader, String delimiter)
             throws IOException {
@@ -0,0 +1,292 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.tuple.Triple;
+
+/**
+ * Applies the rows of an RF2 Delta release to the state of an {@link AmtCache} restored from an
+ * {@link AmtCacheSnapshot} of an earlier release, recording which concepts change so that only the flat file rows built
+ * from them need to be written again.
+ * <p>
+ * A Delta release holds the current state of every component changed since the earlier release, so a row that is no
+ * longer active undoes what the earlier active row added. Relationships and refset members are assumed to keep the
+ * same source, destination, type and referenced components once released, as RF2 requires, so an inactive row removes
+ * exactly what it names. Rows removing things are applied before rows adding them, so a component replaced by another
+ * with the same content in one release is kept.
+ * <p>
+ * The terms of descriptions which become preferred are only known if the descriptions are also in the Delta release,
+ * which they are when they are new or changed. A description that was already released becoming preferred with no
+ * other change can't be applied, and the Snapshot release must be loaded instead.
+ */
+class AmtCacheDelta {
+
+    private final LongObjectMap<Concept> concepts;
+
+    private final Set<Triple<Concept, Concept, Concept>> replacements;
+
+    private final TermStore terms;
+
+    private final LongSet preferredDescriptionIds;
+
+    private final LongSet changed = new LongSet();
+
+    private final List<Concept> reparented = new ArrayList<>();
+
+    private final LongSet reparentedIds = new LongSet();
+
+    private final List<Runnable> removals = new ArrayList<>();
+
+    private final List<Runnable> additions = new ArrayList<>();
+
+    /** Description rows by description id, applied once the preferred descriptions are known */
+    private final Map<Long, Description> descriptions = new LinkedHashMap<>();
+
+    /** Whether each description in the language refset rows is now preferred, by description id */
+    private final Map<Long, Boolean> preferred = new LinkedHashMap<>();
+
+    AmtCacheDelta(LongObjectMap<Concept> concepts, Set<Triple<Concept, Concept, Concept>> replacements,
+            TermStore terms, LongSet preferredDescriptionIds) {
+        this.concepts = concepts;
+        this.replacements = replacements;
+        this.terms = terms;
+        this.preferredDescriptionIds = preferredDescriptionIds;
+    }
+
+    /**
+     * @return true if the row was kept, here and for every other handler
+     */
+    boolean handleConceptRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtOrMetadataModule(row)) {
+                long conceptId = row.getLong(0);
+                boolean active = AmtCache.isActive(row);
+                Concept concept = concepts.get(conceptId);
+                if (concept == null) {
+                    concept = new Concept(conceptId, active, terms);
+                    concepts.put(conceptId, concept);
+                    reparent(concept);
+                } else if (concept.isActive() != active) {
+                    concept.setActive(active);
+                    changed.add(conceptId);
+                } else {
+                    return false;
+                }
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Concepts Delta file", e);
+        }
+    }
+
+    boolean handleRelationshipRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtModule(row)) {
+                long type = row.getLong(7);
+                if (!AttributeType.isEnumValue(type)) {
+                    return false;
+                }
+
+                Concept source = concepts.get(row.getLong(4));
+                Concept destination = concepts.get(row.getLong(5));
+                if (source == null || destination == null) {
+                    return false;
+                }
+                boolean active = AmtCache.isActive(row);
+                switch (AttributeType.fromId(type)) {
+                    case IS_A:
+                        if (source.equals(destination)) {
+                            throw new IllegalArgumentException("Concept " + source.getId() + " IS_A itself");
+                        }
+                        change(active, () -> source.addParent(destination),
+                            () -> source.getParentMap().remove(destination.getId()));
+                        reparent(source);
+                        return true;
+
+                    case HAS_MPUU:
+                    case HAS_TPUU:
+                        change(active, () -> source.addUnit(destination), () -> source.getUnits().remove(destination));
+                        changed.add(source.getId());
+                        return true;
+
+                    case HAS_TP:
+                        change(active, () -> source.addTp(destination), () -> source.getTps().remove(destination));
+                        changed.add(source.getId());
+                        return true;
+
+                    default:
+                        break;
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Relationships Delta file", e);
+        }
+    }
+
+    boolean handleDescriptionRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtOrMetadataModule(row)) {
+                Concept concept = concepts.get(row.getLong(4));
+                if (concept != null) {
+                    descriptions.put(row.getLong(0), new Description(concept, row.fieldEquals(6, AmtCache.FSN),
+                        AmtCache.isActive(row), row.getString(7)));
+                    return true;
+                }
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Descriptions Delta file", e);
+        }
+    }
+
+    boolean handleLanguageRefsetRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtOrMetadataModule(row) && row.fieldEquals(6, AmtCache.PREFERRED)) {
+                preferred.put(row.getLong(5), AmtCache.isActive(row));
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of Language Delta file", e);
+        }
+    }
+
+    boolean handleArtgIdRefsetRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtModule(row)) {
+                Concept concept = concepts.get(row.getLong(5));
+                String artgId = row.getString(6);
+                change(AmtCache.isActive(row), () -> concept.addArtgIds(artgId),
+                    () -> concept.getArtgIds().remove(artgId));
+                changed.add(concept.getId());
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of ARTG Delta file", e);
+        }
+    }
+
+    boolean handleHistoricalAssociationRefsetRow(Rf2Row row) {
+        try {
+            if (AmtCache.isAmtModule(row) && !AmtCache.isDescriptionId(row.getField(5))) {
+                Triple<Concept, Concept, Concept> replacement = Triple.of(concepts.get(row.getLong(5)),
+                    concepts.get(row.getLong(4)), concepts.get(row.getLong(6)));
+                change(AmtCache.isActive(row), () -> replacements.add(replacement),
+                    () -> replacements.remove(replacement));
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed processing row: " + row + " of History Delta file", e);
+        }
+    }
+
+    /**
+     * Applies the rows handled, once every Delta file has been read
+     *
+     * @throws IllegalStateException if a description became preferred but is not in the Delta release
+     */
+    void apply() {
+        removals.forEach(Runnable::run);
+        additions.forEach(Runnable::run);
+
+        for (Map.Entry<Long, Boolean> entry : preferred.entrySet()) {
+            long descriptionId = entry.getKey();
+            if (entry.getValue()) {
+                if (preferredDescriptionIds.add(descriptionId) && !descriptions.containsKey(descriptionId)) {
+                    throw new IllegalStateException("Description " + descriptionId
+                            + " became preferred but is not in the Delta release, load the Snapshot release instead");
+                }
+            } else {
+                preferredDescriptionIds.remove(descriptionId);
+            }
+        }
+
+        // clear terms that are no longer active before setting the new ones, which may be the same
+        for (Description description : descriptions.values()) {
+            if (!description.active) {
+                Concept concept = description.concept;
+                if (description.fullySpecifiedName && description.term.equals(concept.getFullSpecifiedName())) {
+                    concept.setFullSpecifiedName(null);
+                    changed.add(concept.getId());
+                } else if (!description.fullySpecifiedName && description.term.equals(concept.getPreferredTerm())) {
+                    concept.setPreferredTerm(null);
+                    changed.add(concept.getId());
+                }
+            }
+        }
+        for (Map.Entry<Long, Description> entry : descriptions.entrySet()) {
+            Description description = entry.getValue();
+            if (description.active) {
+                Concept concept = description.concept;
+                if (description.fullySpecifiedName) {
+                    concept.setFullSpecifiedName(description.term);
+                    changed.add(concept.getId());
+                } else if (preferredDescriptionIds.contains(entry.getKey())) {
+                    concept.setPreferredTerm(description.term);
+                    changed.add(concept.getId());
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Recalculates the ancestors of the concepts whose parents changed and of their descendants, once the rows have
+     * been applied, recording all of them as changed
+     *
+     * @throws IllegalStateException if the IS_A hierarchy now contains a cycle
+     */
+    void recalculateTransitiveClosure() {
+        for (Concept concept : IsaClosure.recalculate(concepts.values(), reparented)) {
+            changed.add(concept.getId());
+        }
+    }
+
+    /**
+     * @return the ids of the concepts changed by the Delta release, including those whose ancestors changed
+     */
+    LongSet getChanged() {
+        return changed;
+    }
+
+    private void change(boolean active, Runnable addition, Runnable removal) {
+        if (active) {
+            additions.add(addition);
+        } else {
+            removals.add(removal);
+        }
+    }
+
+    private void reparent(Concept concept) {
+        changed.add(concept.getId());
+        if (reparentedIds.add(concept.getId())) {
+            reparented.add(concept);
+        }
+    }
+
+    private static class Description {
+
+        private final Concept concept;
+
+        private final boolean fullySpecifiedName;
+
+        private final boolean active;
+
+        private final String term;
+
+        Description(Concept concept, boolean fullySpecifiedName, boolean active, String term) {
+            this.concept = concept;
+            this.fullySpecifiedName = fullySpecifiedName;
+            this.active = active;
+            this.term = term;
+        }
+    }
+}
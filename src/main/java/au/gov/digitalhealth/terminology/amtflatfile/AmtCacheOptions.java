@@ -0,0 +1,127 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.nio.file.Path;
+
+/**
+ * Settings controlling how an {@link AmtCache} loads a release. These only change how the release is read and what is
+ * held in memory, never the flat file produced from it.
+ */
+public class AmtCacheOptions {
+
+    private int parallelism = 1;
+
+    private boolean extract;
+
+    private Path extractDirectory;
+
+    private boolean lazyTerms;
+
+    private Path snapshotDirectory;
+
+    private RunReport runReport;
+
+    private Path deltaBase;
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism number of threads used to read the RF2 files, 1 reads the files one at a time on the calling
+     *            thread
+     */
+    public AmtCacheOptions setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    public boolean isExtract() {
+        return extract;
+    }
+
+    /**
+     * If set the RF2 files needed are copied out of the ZIP file once and memory mapped, rather than being inflated
+     * and decoded through the ZIP file system as they are read. Unless an extract directory is also set they are
+     * extracted to a temporary directory which is removed once the release is loaded.
+     */
+    public AmtCacheOptions setExtract(boolean extract) {
+        this.extract = extract;
+        return this;
+    }
+
+    public Path getExtractDirectory() {
+        return extractDirectory;
+    }
+
+    /**
+     * Extracts the RF2 files into this directory and leaves them there, so that later loads of the same release can
+     * reuse them without extracting them again.
+     */
+    public AmtCacheOptions setExtractDirectory(Path extractDirectory) {
+        this.extractDirectory = extractDirectory;
+        this.extract = extractDirectory != null || extract;
+        return this;
+    }
+
+    public boolean isLazyTerms() {
+        return lazyTerms;
+    }
+
+    /**
+     * If set descriptions are read once the IS_A hierarchy is known, and preferred terms are only kept for the concepts
+     * that can be written out, those of the CTPPs' rows, the replacements file and the packs checked for units. Only
+     * the presence of the other concepts' terms is recorded for validation. FSNs are not kept at all unless a
+     * validation failure needs them to describe a concept, in which case they are read for every concept. The
+     * release's file system must stay open while the cache is in use for that to work.
+     */
+    public AmtCacheOptions setLazyTerms(boolean lazyTerms) {
+        this.lazyTerms = lazyTerms;
+        return this;
+    }
+
+    public Path getSnapshotDirectory() {
+        return snapshotDirectory;
+    }
+
+    /**
+     * If set the loaded state of each release, before validation, is kept in a snapshot file in this directory. Later
+     * loads of the same release memory map the snapshot rather than reading the RF2 files and calculating the
+     * transitive closure again. All terms are loaded when a snapshot is used, regardless of
+     * {@link #setLazyTerms(boolean)}.
+     */
+    public AmtCacheOptions setSnapshotDirectory(Path snapshotDirectory) {
+        this.snapshotDirectory = snapshotDirectory;
+        return this;
+    }
+
+    public RunReport getRunReport() {
+        return runReport;
+    }
+
+    /**
+     * If set the time and memory taken by each phase of loading the release, and the rows read and kept from each RF2
+     * file, are recorded in this report.
+     */
+    public AmtCacheOptions setRunReport(RunReport runReport) {
+        this.runReport = runReport;
+        return this;
+    }
+
+    public Path getDeltaBase() {
+        return deltaBase;
+    }
+
+    /**
+     * If set the release is read as an RF2 Delta release and applied to the state of the earlier release held in this
+     * snapshot file, written using {@link #setSnapshotDirectory(Path)}, rather than being read as a Snapshot release.
+     * The ids of the CTPPs whose rows may have changed are recorded so that the rows of the others can be copied from
+     * the earlier release's flat file. All terms are loaded, regardless of {@link #setLazyTerms(boolean)}.
+     */
+    public AmtCacheOptions setDeltaBase(Path deltaBase) {
+        this.deltaBase = deltaBase;
+        return this;
+    }
+}
@@ -0,0 +1,360 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import org.apache.commons.lang3.tuple.Triple;
+
+/**
+ * A binary snapshot of the state an {@link AmtCache} has once the RF2 files are read and the transitive closure is
+ * calculated, before any validation. That is the concepts with their parents, ancestors, units, TPs, ARTG ids and
+ * terms, the historical replacements, and the ids of the preferred descriptions so that a Delta release can be applied
+ * to the snapshot later. Loading a snapshot restores exactly the same state, including the iteration
+ * order of every collection, so validation and output are the same as for a load from RF2.
+ * <p>
+ * Snapshots are named by a key calculated from the snapshot format version, the {@link AmtCache#LOADER_VERSION} and
+ * the name, size and CRC-32 of each RF2 file read, taken from the ZIP file's directory, so a snapshot is only ever
+ * used for the release it was made from and by a loader that would load the same from it. A snapshot of a Delta
+ * release applied to another snapshot is also keyed by the name of that snapshot.
+ * Concepts refer to each other in the file by their position in the snapshot.
+ */
+class AmtCacheSnapshot {
+
+    /** Increment whenever the format written changes, which also changes every key */
+    static final int VERSION = 2;
+
+    private static final int MAGIC = 0x414D5443;
+
+    private static final int NONE = -1;
+
+    private final LongObjectMap<Concept> concepts;
+
+    private final Set<Triple<Concept, Concept, Concept>> replacements;
+
+    private final TermStore terms;
+
+    private final LongSet preferredDescriptionIds;
+
+    AmtCacheSnapshot(LongObjectMap<Concept> concepts, Set<Triple<Concept, Concept, Concept>> replacements,
+            TermStore terms, LongSet preferredDescriptionIds) {
+        this.concepts = concepts;
+        this.replacements = replacements;
+        this.terms = terms;
+        this.preferredDescriptionIds = preferredDescriptionIds;
+    }
+
+    LongObjectMap<Concept> getConcepts() {
+        return concepts;
+    }
+
+    Set<Triple<Concept, Concept, Concept>> getReplacements() {
+        return replacements;
+    }
+
+    TermStore getTerms() {
+        return terms;
+    }
+
+    LongSet getPreferredDescriptionIds() {
+        return preferredDescriptionIds;
+    }
+
+    /**
+     * @return the snapshot file in <code>directory</code> for the release whose RF2 files were found by the visitor
+     */
+    static Path getFile(Path directory, TerminologyFileVisitor visitor) throws IOException {
+        return getFile(directory, visitor, null);
+    }
+
+    /**
+     * @param base the snapshot a Delta release found by the visitor is applied to, or null for a Snapshot release
+     * @return the snapshot file in <code>directory</code> for the release whose RF2 files were found by the visitor
+     */
+    static Path getFile(Path directory, TerminologyFileVisitor visitor, Path base) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+        digest.update((VERSION + "|" + AmtCache.LOADER_VERSION).getBytes(StandardCharsets.US_ASCII));
+        if (base != null) {
+            digest.update(("|" + base.getFileName()).getBytes(StandardCharsets.UTF_8));
+        }
+        List<Path> files = new ArrayList<>(Arrays.asList(visitor.getConceptFile(), visitor.getRelationshipFile(),
+            visitor.getDescriptionFile(), visitor.getLanguageRefsetFile(), visitor.getArtgIdRefsetFile()));
+        files.addAll(visitor.getHistoricalAssociationRefsetFiles());
+        for (Path file : files) {
+            digest.update(("|" + file.getFileName() + "|" + Files.size(file) + "|" + crc(file))
+                .getBytes(StandardCharsets.UTF_8));
+        }
+
+        StringBuilder name = new StringBuilder("amt-cache-");
+        for (byte b : digest.digest()) {
+            name.append(String.format("%02x", b));
+        }
+        return directory.resolve(name.append(".snapshot").toString());
+    }
+
+    /**
+     * @return the CRC-32 recorded for a ZIP entry, or calculated from the file's content for any other file
+     */
+    private static long crc(Path file) throws IOException {
+        try {
+            Object crc = Files.getAttribute(file, "zip:crc");
+            if (crc instanceof Long) {
+                return (Long) crc;
+            }
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // not a ZIP file system
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] buffer = new byte[Rf2FileReader.READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Writes the snapshot to a temporary file which is then moved into place, so an interrupted write never leaves
+     * a partial snapshot to be read by a later run.
+     */
+    void write(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        Path temporary = Files.createTempFile(file.toAbsolutePath().getParent(), "amt-cache-", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(temporary), Rf2FileReader.READ_BUFFER_SIZE))) {
+                write(out);
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private void write(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+
+        out.writeInt(terms.size());
+        terms.writeTo(out);
+
+        long[] ids = concepts.keysInLayoutOrder();
+        LongObjectMap<Integer> positions = new LongObjectMap<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            positions.put(ids[i], i);
+        }
+
+        out.writeInt(concepts.capacity());
+        out.writeInt(ids.length);
+        for (long id : ids) {
+            Concept concept = concepts.get(id);
+            out.writeLong(id);
+            out.writeBoolean(concept.isActive());
+            out.writeLong(concept.getFullSpecifiedNameHandle());
+            out.writeLong(concept.getPreferredTermHandle());
+        }
+
+        for (long id : ids) {
+            Concept concept = concepts.get(id);
+
+            LongObjectMap<Concept> parents = concept.getParentMap();
+            out.writeInt(parents.capacity());
+            long[] parentIds = parents.keysInLayoutOrder();
+            out.writeInt(parentIds.length);
+            for (long parentId : parentIds) {
+                out.writeInt(positions.get(parentId));
+            }
+
+            Concept[] ancestors = concept.getAncestorArray();
+            if (ancestors == null) {
+                out.writeInt(NONE);
+            } else {
+                out.writeInt(ancestors.length);
+                for (Concept ancestor : ancestors) {
+                    out.writeInt(positions.get(ancestor.getId()));
+                }
+            }
+
+            writePositions(out, concept.getUnits(), positions);
+            writePositions(out, concept.getTps(), positions);
+
+            out.writeInt(concept.getArtgIds().size());
+            for (String artgId : concept.getArtgIds()) {
+                writeString(out, artgId);
+            }
+        }
+
+        out.writeInt(replacements.size());
+        for (Triple<Concept, Concept, Concept> replacement : replacements) {
+            writePosition(out, replacement.getLeft(), positions);
+            writePosition(out, replacement.getMiddle(), positions);
+            writePosition(out, replacement.getRight(), positions);
+        }
+
+        long[] preferredIds = preferredDescriptionIds.toArray();
+        out.writeInt(preferredIds.length);
+        for (long preferredId : preferredIds) {
+            out.writeLong(preferredId);
+        }
+    }
+
+    private static void writePositions(DataOutputStream out, Collection<Concept> concepts,
+            LongObjectMap<Integer> positions) throws IOException {
+        out.writeInt(concepts.size());
+        for (Concept concept : concepts) {
+            writePosition(out, concept, positions);
+        }
+    }
+
+    private static void writePosition(DataOutputStream out, Concept concept, LongObjectMap<Integer> positions)
+            throws IOException {
+        out.writeInt(concept == null ? NONE : positions.get(concept.getId()));
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Memory maps and reads a snapshot written by {@link #write(Path)}.
+     *
+     * @throws IOException if the file can't be read, or isn't a snapshot of the current version
+     */
+    static AmtCacheSnapshot read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file + " is too large to map");
+            }
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            throw new IOException("Snapshot " + file + " is truncated or corrupt", e);
+        }
+    }
+
+    /**
+     * Checks that a file starts with the header of a snapshot of the current version, without reading the rest of it.
+     *
+     * @throws IOException if the file can't be read, or isn't a snapshot of the current version
+     */
+    static void checkHeader(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            checkHeader(in.readInt(), in.readInt());
+        } catch (EOFException e) {
+            throw new IOException("Snapshot " + file + " is truncated or corrupt", e);
+        }
+    }
+
+    private static void checkHeader(int magic, int version) throws IOException {
+        if (magic != MAGIC) {
+            throw new IOException("Not an AMT cache snapshot");
+        }
+        if (version != VERSION) {
+            throw new IOException("Snapshot is version " + version + ", expected " + VERSION);
+        }
+    }
+
+    private static AmtCacheSnapshot read(MappedByteBuffer in) throws IOException {
+        checkHeader(in.getInt(), in.getInt());
+
+        byte[] termBytes = new byte[in.getInt()];
+        in.get(termBytes);
+        TermStore terms = new TermStore(termBytes);
+
+        LongObjectMap<Concept> concepts = LongObjectMap.withCapacity(in.getInt());
+        Concept[] byPosition = new Concept[in.getInt()];
+        for (int i = 0; i < byPosition.length; i++) {
+            Concept concept = new Concept(in.getLong(), in.get() != 0, terms);
+            concept.setTermHandles(in.getLong(), in.getLong());
+            byPosition[i] = concept;
+            concepts.put(concept.getId(), concept);
+        }
+
+        for (Concept concept : byPosition) {
+            LongObjectMap<Concept> parents = LongObjectMap.withCapacity(in.getInt());
+            int parentCount = in.getInt();
+            for (int i = 0; i < parentCount; i++) {
+                Concept parent = byPosition[in.getInt()];
+                parents.put(parent.getId(), parent);
+            }
+            concept.setParents(parents);
+
+            int ancestorCount = in.getInt();
+            if (ancestorCount != NONE) {
+                Concept[] ancestors = new Concept[ancestorCount];
+                for (int i = 0; i < ancestorCount; i++) {
+                    ancestors[i] = byPosition[in.getInt()];
+                }
+                concept.setAncestors(ancestors);
+            }
+
+            int unitCount = in.getInt();
+            for (int i = 0; i < unitCount; i++) {
+                concept.addUnit(byPosition[in.getInt()]);
+            }
+            int tpCount = in.getInt();
+            for (int i = 0; i < tpCount; i++) {
+                concept.addTp(byPosition[in.getInt()]);
+            }
+            int artgIdCount = in.getInt();
+            for (int i = 0; i < artgIdCount; i++) {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                concept.addArtgIds(new String(bytes, StandardCharsets.UTF_8));
+            }
+        }
+
+        int replacementCount = in.getInt();
+        Set<Triple<Concept, Concept, Concept>> replacements = new HashSet<>();
+        for (int i = 0; i < replacementCount; i++) {
+            replacements.add(Triple.of(readPosition(in, byPosition), readPosition(in, byPosition),
+                readPosition(in, byPosition)));
+        }
+
+        int preferredIdCount = in.getInt();
+        LongSet preferredDescriptionIds = new LongSet(preferredIdCount);
+        for (int i = 0; i < preferredIdCount; i++) {
+            preferredDescriptionIds.add(in.getLong());
+        }
+
+        if (in.hasRemaining()) {
+            throw new IOException("Snapshot has " + in.remaining() + " unexpected trailing bytes");
+        }
+        return new AmtCacheSnapshot(concepts, replacements, terms, preferredDescriptionIds);
+    }
+
+    private static Concept readPosition(MappedByteBuffer in, Concept[] byPosition) {
+        int position = in.getInt();
+        return position == NONE ? null : byPosition[position];
+    }
+}
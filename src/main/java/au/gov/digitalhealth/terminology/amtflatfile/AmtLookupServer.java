@@ -0,0 +1,424 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.tuple.Triple;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves flat file rows, replacements and concepts from a loaded release over HTTP, so a release loaded once can answer
+ * any number of lookups. Responses are written as they are resolved, as CSV with the same columns as the output files
+ * or as JSON with <code>format=json</code>, and SCTIDs are written to JSON as strings as they don't fit in a double.
+ * <p>
+ * A new release can be loaded while lookups are being served, and replaces the current one once it has loaded. Each
+ * request uses the release that was current when it started until it finishes, so requests in flight when a release is
+ * replaced are answered in full from the release they started with.
+ * <ul>
+ * <li><code>GET /rows</code> the whole flat file, or with <code>ctpp</code>, <code>artgId</code> or <code>product</code>
+ * the rows of a CTPP, of the CTPPs with an ARTG id or of the CTPPs built from an MP, MPUU, MPP, TP, TPUU or TPP</li>
+ * <li><code>GET /replacements</code> the whole replacements file, or with <code>sctid</code> the rows for an inactive
+ * concept</li>
+ * <li><code>GET /concept?sctid=</code> a concept's status and terms</li>
+ * <li><code>GET /status</code> the release being served</li>
+ * <li><code>POST /reload</code> loads the release being served again, or if release selection has been turned on
+ * with <code>release</code> the release in another ZIP file, and replaces the current release with it</li>
+ * </ul>
+ * Releases are loaded one at a time on a thread of their own, so lookups are answered while one loads, and the reload
+ * is answered once it has loaded. As the server has no authentication, reloads sent by a browser on behalf of another
+ * site, which carry an <code>Origin</code> header, are refused.
+ */
+class AmtLookupServer {
+
+    static final int STOP_DELAY_SECONDS = 5;
+
+    private static final Logger logger = Logger.getLogger(AmtLookupServer.class.getCanonicalName());
+
+    private static final int OUTPUT_BUFFER_SIZE = 1 << 16;
+
+    private static final String CSV = "text/csv; charset=utf-8";
+
+    private static final String JSON = "application/json; charset=utf-8";
+
+    private static final String[] ROW_COLUMNS = { "ctpp", "tpp", "tpuu", "tppTp", "tpuuTp", "mpp", "mpuu", "mp" };
+
+    /**
+     * Loads the release in a ZIP file into an {@link Amt2FlatFile} that rows can be resolved with
+     */
+    interface ReleaseLoader {
+        Amt2FlatFile load(Path zip) throws IOException;
+    }
+
+    /** A loaded release with its indexes, which is never changed once loaded */
+    private static class Release {
+
+        private final Path zip;
+
+        private final Instant loaded = Instant.now();
+
+        private final Amt2FlatFile rows;
+
+        private final AmtQueryIndex index;
+
+        Release(Path zip, Amt2FlatFile rows) {
+            this.zip = zip;
+            this.rows = rows;
+            this.index = new AmtQueryIndex(rows.getConceptCache());
+        }
+
+        AmtCache getCache() {
+            return rows.getConceptCache();
+        }
+    }
+
+    /** Thrown for a request that can't be answered, with the status to answer it with */
+    private static class RequestException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int status;
+
+        RequestException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /** Answers a request from the release current when it started */
+    private interface Handler {
+        void handle(HttpExchange exchange, Map<String, String> parameters, Release release) throws IOException;
+    }
+
+    private final AtomicReference<Release> release = new AtomicReference<>();
+
+    private final ReleaseLoader loader;
+
+    private final HttpServer server;
+
+    private final ExecutorService executor;
+
+    /** Loads releases for <code>POST /reload</code>, one at a time */
+    private final ExecutorService loading = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "amt-release-loader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private volatile boolean releaseSelection;
+
+    /**
+     * @param address the address to listen on, with a port of zero for any free port
+     */
+    AmtLookupServer(InetSocketAddress address, ReleaseLoader loader) throws IOException {
+        this.loader = loader;
+        server = HttpServer.create(address, 0);
+        executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        server.setExecutor(executor);
+        context("/rows", "GET", this::rows);
+        context("/replacements", "GET", this::replacements);
+        context("/concept", "GET", this::concept);
+        context("/status", "GET", (exchange, parameters, current) -> status(exchange, current));
+        server.createContext("/reload", exchange -> {
+            try {
+                loading.execute(() -> answer(exchange, "/reload", "POST", this::reload));
+            } catch (RejectedExecutionException e) {
+                error(exchange, 503, "The server is stopping");
+                exchange.close();
+            }
+        });
+    }
+
+    /**
+     * If set, <code>POST /reload</code> loads the release in the ZIP file named by its <code>release</code> parameter.
+     * This lets anyone who can reach the server load any ZIP file it can read, so is off unless asked for.
+     */
+    void setReleaseSelection(boolean releaseSelection) {
+        this.releaseSelection = releaseSelection;
+    }
+
+    /**
+     * Loads a release and replaces the release being served with it once it has loaded. Only one release is loaded at
+     * a time, and if it fails to load the current release is kept.
+     */
+    synchronized void load(Path zip) throws IOException {
+        logger.info("Loading " + zip);
+        Release loaded = new Release(zip, loader.load(zip));
+        Release replaced = release.getAndSet(loaded);
+        logger.info("Serving " + zip + (replaced == null ? "" : " in place of " + replaced.zip));
+    }
+
+    void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits up to <code>delaySeconds</code> for those in flight to finish
+     */
+    void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+        loading.shutdownNow();
+        try {
+            executor.awaitTermination(delaySeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void context(String path, String method, Handler handler) {
+        server.createContext(path, exchange -> answer(exchange, path, method, handler));
+    }
+
+    private void answer(HttpExchange exchange, String path, String method, Handler handler) {
+        try {
+            if (!method.equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", method);
+                throw new RequestException(405, exchange.getRequestMethod() + " is not supported by " + path);
+            }
+            if (!path.equals(exchange.getRequestURI().getPath())) {
+                throw new RequestException(404, exchange.getRequestURI().getPath() + " not found");
+            }
+            Release current = release.get();
+            if (current == null) {
+                throw new RequestException(503, "No release has been loaded yet");
+            }
+            handler.handle(exchange, parameters(exchange), current);
+        } catch (RequestException e) {
+            error(exchange, e.status, e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.WARNING, "Failed answering " + exchange.getRequestURI(), e);
+            error(exchange, 500, e.toString());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void rows(HttpExchange exchange, Map<String, String> parameters, Release current) throws IOException {
+        Collection<Concept> ctpps;
+        if (parameters.containsKey("ctpp")) {
+            Concept ctpp = current.getCache().getCtpps().get(sctid(parameters, "ctpp"));
+            ctpps = ctpp == null ? Collections.emptyList() : Collections.singletonList(ctpp);
+        } else if (parameters.containsKey("artgId")) {
+            ctpps = current.index.getCtppsByArtgId(parameters.get("artgId"));
+        } else if (parameters.containsKey("product")) {
+            ctpps = current.index.getCtpps(sctid(parameters, "product"));
+        } else {
+            ctpps = current.getCache().getCtpps().values();
+        }
+
+        // validation failures are reported when the release is loaded or written, not here
+        JUnitTestSuite_EXT failures = new JUnitTestSuite_EXT();
+        if (isJson(parameters)) {
+            try (Writer writer = json(exchange)) {
+                JsonWriter json = new JsonWriter(writer).beginArray();
+                for (Concept ctpp : ctpps) {
+                    current.rows.resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> {
+                        json.beginObject();
+                        Concept[] concepts = { ctpp, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp };
+                        for (int i = 0; i < concepts.length; i++) {
+                            json.name(ROW_COLUMNS[i]);
+                            concept(json, concepts[i]);
+                            if (i == 0) {
+                                json.name("artgId").value(artgid);
+                            }
+                        }
+                        json.endObject();
+                    }, failures);
+                }
+                json.endArray();
+            }
+        } else {
+            try (OutputStream out = csv(exchange)) {
+                CsvRowWriter writer = new CsvRowWriter(out);
+                writer.write(Amt2FlatFile.FLAT_FILE_HEADER);
+                writer.endRow();
+                for (Concept ctpp : ctpps) {
+                    current.rows.writeRows(ctpp, writer, failures);
+                }
+            }
+        }
+    }
+
+    private void replacements(HttpExchange exchange, Map<String, String> parameters, Release current)
+            throws IOException {
+        Collection<Triple<Concept, Concept, Concept>> replacements = parameters.containsKey("sctid")
+                ? current.index.getReplacements(sctid(parameters, "sctid"))
+                : current.getCache().getReplacementConcepts();
+        if (isJson(parameters)) {
+            try (Writer writer = json(exchange)) {
+                JsonWriter json = new JsonWriter(writer).beginArray();
+                for (Triple<Concept, Concept, Concept> replacement : replacements) {
+                    json.beginObject().name("inactive");
+                    concept(json, replacement.getLeft());
+                    json.name("type");
+                    concept(json, replacement.getMiddle());
+                    json.name("replacement");
+                    concept(json, replacement.getRight());
+                    json.endObject();
+                }
+                json.endArray();
+            }
+        } else {
+            try (OutputStream out = csv(exchange)) {
+                CsvRowWriter writer = new CsvRowWriter(out);
+                writer.write(Amt2FlatFile.REPLACEMENTS_HEADER);
+                writer.endRow();
+                for (Triple<Concept, Concept, Concept> replacement : replacements) {
+                    writer.write(replacement.getLeft())
+                        .write(replacement.getMiddle())
+                        .write(replacement.getRight())
+                        .endRow();
+                }
+            }
+        }
+    }
+
+    private void concept(HttpExchange exchange, Map<String, String> parameters, Release current) throws IOException {
+        Concept concept = current.index.getConcept(sctid(parameters, "sctid"));
+        if (concept == null) {
+            throw new RequestException(404, "Concept " + parameters.get("sctid") + " not found");
+        }
+        try (Writer writer = json(exchange)) {
+            new JsonWriter(writer).beginObject()
+                .name("id")
+                .value(Long.toString(concept.getId()))
+                .name("active")
+                .value(concept.isActive())
+                .name("fsn")
+                .value(concept.getFullSpecifiedName())
+                .name("pt")
+                .value(concept.getPreferredTerm())
+                .name("ctpps")
+                .value(current.index.getCtpps(concept.getId()).size())
+                .endObject();
+        }
+    }
+
+    private void status(HttpExchange exchange, Release current) throws IOException {
+        try (Writer writer = json(exchange)) {
+            new JsonWriter(writer).beginObject()
+                .name("release")
+                .value(current.zip.toString())
+                .name("loaded")
+                .value(current.loaded.toString())
+                .name("concepts")
+                .value(current.getCache().getConcepts().size())
+                .name("ctpps")
+                .value(current.getCache().getCtpps().size())
+                .endObject();
+        }
+    }
+
+    private void reload(HttpExchange exchange, Map<String, String> parameters, Release current) throws IOException {
+        if (exchange.getRequestHeaders().containsKey("Origin")) {
+            throw new RequestException(403, "Reloads are not accepted from browsers on behalf of other sites");
+        }
+        if (parameters.containsKey("release") && !releaseSelection) {
+            throw new RequestException(403, "Only the release being served can be reloaded");
+        }
+        Path zip = parameters.containsKey("release") ? Paths.get(parameters.get("release")) : current.zip;
+        try {
+            load(zip);
+        } catch (IllegalArgumentException | SecurityException | NoSuchFileException e) {
+            throw new RequestException(400, "Could not load " + zip + ": " + e.getMessage());
+        }
+        status(exchange, release.get());
+    }
+
+    private static void concept(JsonWriter json, Concept concept) throws IOException {
+        json.beginObject()
+            .name("id")
+            .value(Long.toString(concept.getId()))
+            .name("pt")
+            .value(concept.getPreferredTerm())
+            .endObject();
+    }
+
+    private static long sctid(Map<String, String> parameters, String name) {
+        try {
+            return Long.parseLong(parameters.get(name));
+        } catch (NumberFormatException e) {
+            throw new RequestException(400, name + " must be an SCTID but was " + parameters.get(name));
+        }
+    }
+
+    private static boolean isJson(Map<String, String> parameters) {
+        String format = parameters.getOrDefault("format", "csv");
+        if (!format.equals("csv") && !format.equals("json")) {
+            throw new RequestException(400, "format must be csv or json but was " + format);
+        }
+        return format.equals("json");
+    }
+
+    private static Map<String, String> parameters(HttpExchange exchange) throws UnsupportedEncodingException {
+        Map<String, String> parameters = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0) {
+                    parameters.put(URLDecoder.decode(parameter.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(parameter.substring(equals + 1), "UTF-8"));
+                }
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Starts a response streamed in chunks, as its length isn't known until it has been written
+     */
+    private static OutputStream csv(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", CSV);
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedOutputStream(exchange.getResponseBody(), OUTPUT_BUFFER_SIZE);
+    }
+
+    private static Writer json(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", JSON);
+        exchange.sendResponseHeaders(200, 0);
+        return new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8),
+            OUTPUT_BUFFER_SIZE);
+    }
+
+    private static void error(HttpExchange exchange, int status, String message) {
+        try {
+            byte[] body = (message + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        } catch (IOException | IllegalStateException e) {
+            // the response had already started, so closing the exchange is all that can be done
+            logger.log(Level.FINE, "Could not send error for " + exchange.getRequestURI(), e);
+        }
+    }
+}
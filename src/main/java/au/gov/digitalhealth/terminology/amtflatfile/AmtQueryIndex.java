@@ -0,0 +1,172 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.tuple.Triple;
+
+/**
+ * Read only lookups over a loaded {@link AmtCache}, answering the questions the flat file is usually searched for
+ * without writing it out. The indexes are built once by the constructor, so each lookup is a single hash probe
+ * returning a list that already exists apart from its unmodifiable wrapper.
+ * <p>
+ * Once constructed an index never changes, so it can be shared between any number of threads without locking. It
+ * holds the cache's concepts rather than copies of them, so the cache must not be changed, for example by applying
+ * another Delta release, while the index is in use. Build a new index for the changed cache instead.
+ */
+public class AmtQueryIndex {
+
+    /** The AMT classes a CTPP is built from, which it can be looked up by */
+    private static final AmtConcept[] PRODUCT_TYPES = { AmtConcept.MP, AmtConcept.MPUU, AmtConcept.MPP,
+            AmtConcept.TP, AmtConcept.TPUU, AmtConcept.TPP };
+
+    private static final Comparator<Concept> BY_ID = Comparator.comparingLong(Concept::getId);
+
+    private static final Comparator<Triple<Concept, Concept, Concept>> BY_TYPE_AND_REPLACEMENT =
+            Comparator.comparing((Triple<Concept, Concept, Concept> t) -> t.getMiddle(), BY_ID)
+                .thenComparing(Triple::getRight, BY_ID);
+
+    private final LongObjectMap<Concept> concepts;
+
+    /** CTPPs sorted by id, by the id of each product concept they are built from */
+    private final LongObjectMap<Concept[]> ctppsByProduct;
+
+    /** CTPPs sorted by id, by trimmed ARTG id */
+    private final Map<String, Concept[]> ctppsByArtgId;
+
+    /** Historical associations from each inactive concept, sorted by association type then replacement id */
+    private final LongObjectMap<List<Triple<Concept, Concept, Concept>>> replacements;
+
+    public AmtQueryIndex(AmtCache cache) {
+        Collection<Concept> all = cache.getConcepts();
+        concepts = new LongObjectMap<>(all.size());
+        for (Concept concept : all) {
+            concepts.put(concept.getId(), concept);
+        }
+
+        LongObjectMap<List<Concept>> byProduct = new LongObjectMap<>();
+        Map<String, List<Concept>> byArtgId = new HashMap<>();
+        for (Concept ctpp : cache.getCtpps().values()) {
+            LongSet products = new LongSet();
+            addProducts(ctpp, products);
+            for (long product : products.toArray()) {
+                List<Concept> ctpps = byProduct.get(product);
+                if (ctpps == null) {
+                    ctpps = new ArrayList<>();
+                    byProduct.put(product, ctpps);
+                }
+                ctpps.add(ctpp);
+            }
+            for (String artgId : ctpp.getArtgIds()) {
+                byArtgId.computeIfAbsent(artgId.trim(), id -> new ArrayList<>()).add(ctpp);
+            }
+        }
+
+        ctppsByProduct = new LongObjectMap<>(byProduct.size());
+        for (long product : byProduct.keys()) {
+            ctppsByProduct.put(product, sortedById(byProduct.get(product)));
+        }
+        ctppsByArtgId = new HashMap<>(byArtgId.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<Concept>> entry : byArtgId.entrySet()) {
+            ctppsByArtgId.put(entry.getKey(), sortedById(entry.getValue()));
+        }
+
+        replacements = new LongObjectMap<>();
+        for (Triple<Concept, Concept, Concept> replacement : cache.getReplacementConcepts()) {
+            if (replacement.getLeft() == null || replacement.getMiddle() == null || replacement.getRight() == null) {
+                continue;
+            }
+            List<Triple<Concept, Concept, Concept>> inactive = replacements.get(replacement.getLeft().getId());
+            if (inactive == null) {
+                inactive = new ArrayList<>();
+                replacements.put(replacement.getLeft().getId(), inactive);
+            }
+            inactive.add(replacement);
+        }
+        for (List<Triple<Concept, Concept, Concept>> inactive : replacements.values()) {
+            inactive.sort(BY_TYPE_AND_REPLACEMENT);
+        }
+    }
+
+    /**
+     * Adds the ids of the product concepts the CTPP's rows are built from, which are the CTPP's ancestors, the TPs of
+     * them and their units with the units' ancestors, excluding the CTPP itself and the AMT classes
+     */
+    private static void addProducts(Concept ctpp, LongSet products) {
+        addPackProducts(ctpp, ctpp, products);
+        for (Concept ancestor : ctpp.getAncestors()) {
+            addProduct(ctpp, ancestor, products);
+            addPackProducts(ctpp, ancestor, products);
+        }
+    }
+
+    private static void addPackProducts(Concept ctpp, Concept pack, LongSet products) {
+        for (Concept tp : pack.getTps()) {
+            addProduct(ctpp, tp, products);
+        }
+        for (Concept unit : pack.getUnits()) {
+            addProduct(ctpp, unit, products);
+            for (Concept ancestor : unit.getAncestors()) {
+                addProduct(ctpp, ancestor, products);
+            }
+        }
+    }
+
+    private static void addProduct(Concept ctpp, Concept concept, LongSet products) {
+        if (concept != ctpp && !AmtConcept.isEnumValue(concept.getId())
+                && concept.hasAtLeastOneMatchingAncestor(PRODUCT_TYPES)) {
+            products.add(concept.getId());
+        }
+    }
+
+    private static Concept[] sortedById(List<Concept> concepts) {
+        Concept[] sorted = concepts.toArray(new Concept[concepts.size()]);
+        Arrays.sort(sorted, BY_ID);
+        return sorted;
+    }
+
+    private static List<Concept> asList(Concept[] concepts) {
+        return concepts == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(concepts));
+    }
+
+    /**
+     * @return the concept with the SCTID, active or not, or null if the release has no such concept
+     */
+    public Concept getConcept(long sctid) {
+        return concepts.get(sctid);
+    }
+
+    /**
+     * @return the CTPPs with the ARTG id, sorted by id, which are the CTPPs of the flat file rows with that ARTG id
+     */
+    public List<Concept> getCtppsByArtgId(String artgId) {
+        return asList(ctppsByArtgId.get(artgId.trim()));
+    }
+
+    /**
+     * Finds the CTPPs built from a product concept, for example every CTPP containing an MP, which are the CTPPs of
+     * the flat file rows the product appears in. The product may be an MP, MPUU, MPP, TP, TPUU or TPP, and a CTPP is
+     * built from it if it is an ancestor of the CTPP, or of one of the units of the CTPP or its ancestors, or is the TP
+     * of one of them.
+     *
+     * @return the CTPPs built from the product, sorted by id, or none if the SCTID is not a product in any CTPP
+     */
+    public List<Concept> getCtpps(long productSctid) {
+        return asList(ctppsByProduct.get(productSctid));
+    }
+
+    /**
+     * @return the historical associations from the inactive concept, as (inactive concept, association type,
+     *         replacement) triples sorted by association type then replacement id, or none if it has no replacements
+     */
+    public List<Triple<Concept, Concept, Concept>> getReplacements(long inactiveSctid) {
+        List<Triple<Concept, Concept, Concept>> inactive = replacements.get(inactiveSctid);
+        return inactive == null ? Collections.emptyList() : Collections.unmodifiableList(inactive);
+    }
+}
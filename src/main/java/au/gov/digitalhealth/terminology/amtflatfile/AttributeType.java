@@ -65,4 +65,8 @@ public enum AttributeType {
         return instanceMap.containsKey(Long.parseLong(idString));
     }
 
+    public static boolean isEnumValue(long id) {
+        return instanceMap.containsKey(id);
+    }
+
 }
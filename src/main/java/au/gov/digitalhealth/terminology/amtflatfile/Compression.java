@@ -0,0 +1,57 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How the CSV output files are compressed as they are written
+ */
+public enum Compression {
+    NONE("text/csv") {
+        @Override
+        OutputStream compress(OutputStream out) {
+            return out;
+        }
+    },
+    GZIP("application/gzip") {
+        @Override
+        OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out, BUFFER_SIZE);
+        }
+    };
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final String mimeType;
+
+    private Compression(String mimeType) {
+        this.mimeType = mimeType;
+    }
+
+    /**
+     * @return the compression with the name, in any case, such as <code>gzip</code>
+     * @throws IllegalArgumentException if there is no compression with the name
+     */
+    public static Compression fromName(String name) {
+        for (Compression compression : values()) {
+            if (compression.name().equalsIgnoreCase(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Compression must be none or gzip, was " + name);
+    }
+
+    /**
+     * @return the type an existing output file compressed this way is detected as
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * @return a stream compressing what is written to it into <code>out</code>, which finishes the compressed data and
+     *         closes <code>out</code> when it is closed
+     */
+    abstract OutputStream compress(OutputStream out) throws IOException;
+}
@@ -1,28 +1,50 @@
 package au.gov.digitalhealth.terminology.amtflatfile;
 
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.AbstractSet;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 public class Concept {
 
     private long id;
-    private String fullSpecifiedName;
-    private String preferredTerm;
-    private Set<Concept> units = new HashSet<>();
-    private Map<Long, Concept> parents = new HashMap<>();
-    private Map<Long, Concept> ancestors = new HashMap<>();
-    private Set<Concept> tps = new HashSet<>();
-    private Set<String> artgIds = new HashSet<>();
+    private TermStore terms;
+    private long fullSpecifiedName = TermStore.NO_TERM;
+    private long preferredTerm = TermStore.NO_TERM;
+    private boolean fullySpecifiedNameNotLoaded;
+    private boolean preferredTermNotLoaded;
+    // most concepts have no units, TPs or ARTG ids, so these are only allocated when first added to, see UnallocatedSet
+    private Set<Concept> units;
+    private LongObjectMap<Concept> parents = new LongObjectMap<>();
+    private Concept[] ancestors;
+    private Set<Concept> tps;
+    private Set<String> artgIds;
     private boolean active;
 
-    public Concept(long id, boolean active) {
+    /**
+     * Creates a concept with a term store of its own, which is only worth doing for a concept on its own such as in a
+     * test. The concepts of a release share one store, see {@link #Concept(long, boolean, TermStore)}.
+     */
+    Concept(long id, boolean active) {
+        this(id, active, new TermStore());
+    }
+
+    /**
+     * @param terms store holding this concept's terms, normally shared by all the concepts of a release
+     */
+    Concept(long id, boolean active, TermStore terms) {
         this.id = id;
         this.active = active;
+        this.terms = terms;
     }
 
     public void addParent(Concept concept) {
@@ -38,29 +60,116 @@ public class Concept {
     }
 
     public String getFullSpecifiedName() {
-        return fullSpecifiedName;
+        return terms.getString(fullSpecifiedName);
     }
 
     public void setFullSpecifiedName(String fullSpecifiedName) {
-        this.fullSpecifiedName = fullSpecifiedName;
+        this.fullSpecifiedName =
+                fullSpecifiedName == null ? TermStore.NO_TERM : terms.add(fullSpecifiedName, preferredTerm);
+    }
+
+    /**
+     * Sets the FSN from a field of an RF2 row, without decoding it
+     */
+    void setFullSpecifiedName(Rf2Row row, int field) {
+        this.fullSpecifiedName = terms.add(row, field, preferredTerm);
     }
 
     public String getPreferredTerm() {
-        return preferredTerm;
+        return terms.getString(preferredTerm);
     }
 
     public void setPreferredTerm(String preferredTerm) {
+        this.preferredTerm = preferredTerm == null ? TermStore.NO_TERM : terms.add(preferredTerm, fullSpecifiedName);
+    }
+
+    /**
+     * Sets the preferred term from a field of an RF2 row, without decoding it
+     */
+    void setPreferredTerm(Rf2Row row, int field) {
+        this.preferredTerm = terms.add(row, field, fullSpecifiedName);
+    }
+
+    long getFullSpecifiedNameHandle() {
+        return fullSpecifiedName;
+    }
+
+    long getPreferredTermHandle() {
+        return preferredTerm;
+    }
+
+    /**
+     * Sets the handles of terms already held in this concept's {@link TermStore}
+     */
+    void setTermHandles(long fullSpecifiedName, long preferredTerm) {
+        this.fullSpecifiedName = fullSpecifiedName;
         this.preferredTerm = preferredTerm;
     }
 
+    /**
+     * Writes the preferred term's UTF-8 bytes, or <code>null</code> if there is none
+     */
+    void writePreferredTerm(OutputStream out) throws IOException {
+        terms.write(preferredTerm, out);
+    }
+
+    /**
+     * @return true if this concept has a non empty FSN, whether or not the term itself was loaded
+     */
+    public boolean hasFullySpecifiedName() {
+        return fullySpecifiedNameNotLoaded
+                || (fullSpecifiedName != TermStore.NO_TERM && TermStore.length(fullSpecifiedName) > 0);
+    }
+
+    /**
+     * @return true if this concept has a non empty preferred term, whether or not the term itself was loaded
+     */
+    public boolean hasPreferredTerm() {
+        return preferredTermNotLoaded || (preferredTerm != TermStore.NO_TERM && TermStore.length(preferredTerm) > 0);
+    }
+
+    /**
+     * Records that the release has a non empty FSN for this concept which was not kept, see
+     * {@link AmtCacheOptions#setLazyTerms(boolean)}
+     */
+    void setFullySpecifiedNameNotLoaded() {
+        this.fullySpecifiedNameNotLoaded = true;
+    }
+
+    /**
+     * Records that the release has a non empty preferred term for this concept which was not kept, see
+     * {@link AmtCacheOptions#setLazyTerms(boolean)}
+     */
+    void setPreferredTermNotLoaded() {
+        this.preferredTermNotLoaded = true;
+    }
+
     public void addUnit(Concept unit) {
-        if (units == null) {
-            units = new HashSet<>();
-        }
-        units.add(unit);
+        allocateUnits().add(unit);
     }
 
+    /**
+     * @return this concept's units, which changes are written through to. If it has none nothing is allocated until
+     *         one is added, so a loaded concept can be read from several threads at once.
+     */
     public Set<Concept> getUnits() {
+        return units != null ? units : new UnallocatedSet<Concept>() {
+            @Override
+            Set<Concept> get() {
+                return units;
+            }
+
+            @Override
+            Set<Concept> allocate() {
+                return allocateUnits();
+            }
+        };
+    }
+
+    private Set<Concept> allocateUnits() {
+        if (units == null) {
+            units = new HashSet<>();
+        }
         return units;
     }
 
@@ -81,21 +190,54 @@ public class Concept {
         return parents.containsKey(concept.getId());
     }
 
+    /**
+     * @return a view of this concept's parents by id, which changes are written through to. Use
+     *         {@link #getParentMap()} where the boxing of ids matters.
+     */
 	public Map<Long, Concept> getParents() {
-		return parents;
+		return parents.asMap();
 	}
 
+    /**
+     * @return this concept's parents by id, without boxing them
+     */
+    public LongObjectMap<Concept> getParentMap() {
+        return parents;
+    }
+
+    void setParents(LongObjectMap<Concept> parents) {
+        this.parents = parents;
+    }
+
 	public String toConceptReference() {
 		return getId() + "|" + getPreferredTerm() + "|";
 	}
 
-    public void addAncestors(Map<Long, Concept> map) {
-        ancestors.putAll(map);
+    /**
+     * Set by {@link IsaClosure}, the ancestors must be sorted by id.
+     */
+    void setAncestors(Concept[] ancestors) {
+        this.ancestors = ancestors;
+    }
+
+    Concept[] getAncestorArray() {
+        return ancestors;
+    }
+
+    /**
+     * @return all of this concept's ancestors sorted by id, empty until the transitive closure has been calculated
+     */
+    public List<Concept> getAncestors() {
+        return ancestors == null ? Collections.emptyList() : Collections.unmodifiableList(Arrays.asList(ancestors));
+    }
+
+    public boolean hasAncestor(long id) {
+        return ancestors != null && IsaClosure.contains(ancestors, id);
     }
 
     public boolean hasAtLeastOneMatchingAncestor(AmtConcept... concepts) {
         for (AmtConcept amtConcept : concepts) {
-            if (ancestors.containsKey(amtConcept.getId())) {
+            if (hasAncestor(amtConcept.getId())) {
                 return true;
             }
         }
@@ -104,9 +246,11 @@ public class Concept {
 
     public Collection<Concept> getAncestors(AmtConcept concept) {
         Collection<Concept> result = new ArrayList<>();
-        for (Concept ancestor : ancestors.values()) {
-            if (ancestor.hasAtLeastOneMatchingAncestor(concept)) {
-                result.add(ancestor);
+        if (ancestors != null) {
+            for (Concept ancestor : ancestors) {
+                if (ancestor.hasAtLeastOneMatchingAncestor(concept)) {
+                    result.add(ancestor);
+                }
             }
         }
         return result;
@@ -114,7 +258,7 @@ public class Concept {
 
     @Override
     public String toString() {
-        return "Concept [id=" + id + ", fullSpecifiedName=" + fullSpecifiedName + ", parents=" + parents + "]";
+        return "Concept [id=" + id + ", fullSpecifiedName=" + getFullSpecifiedName() + ", parents=" + parents + "]";
     }
 
     @Override
@@ -140,28 +284,110 @@ public class Concept {
     }
 
     public void addTp(Concept concept) {
-        if (tps == null) {
-            tps = new HashSet<>();
-        }
-        tps.add(concept);
+        allocateTps().add(concept);
     }
 
+    /**
+     * @return this concept's TPs, which changes are written through to, see {@link #getUnits()}
+     */
     public Set<Concept> getTps() {
+        return tps != null ? tps : new UnallocatedSet<Concept>() {
+            @Override
+            Set<Concept> get() {
+                return tps;
+            }
+
+            @Override
+            Set<Concept> allocate() {
+                return allocateTps();
+            }
+        };
+    }
+
+    private Set<Concept> allocateTps() {
+        if (tps == null) {
+            tps = new HashSet<>();
+        }
         return tps;
     }
 
     public void addArtgIds(String row) {
-        if (artgIds == null) {
-            artgIds = new HashSet<>();
-        }
-        artgIds.add(row);
+        allocateArtgIds().add(row);
     }
 
+    /**
+     * @return this concept's ARTG ids, which changes are written through to, see {@link #getUnits()}
+     */
     public Set<String> getArtgIds() {
+        return artgIds != null ? artgIds : new UnallocatedSet<String>() {
+            @Override
+            Set<String> get() {
+                return artgIds;
+            }
+
+            @Override
+            Set<String> allocate() {
+                return allocateArtgIds();
+            }
+        };
+    }
+
+    private Set<String> allocateArtgIds() {
+        if (artgIds == null) {
+            artgIds = new HashSet<>();
+        }
         return artgIds;
     }
 
     public boolean isActive() {
         return active;
     }
+
+    /**
+     * Used when a Delta release changes the concept's status, see
+     * {@link AmtCacheOptions#setDeltaBase(java.nio.file.Path)}
+     */
+    void setActive(boolean active) {
+        this.active = active;
+    }
+
+    /**
+     * Stands in for one of a concept's sets until it is allocated. Reading it allocates and changes nothing, and adding
+     * to it allocates the concept's set, which it then reads and writes through to.
+     */
+    private abstract static class UnallocatedSet<E> extends AbstractSet<E> {
+
+        /**
+         * @return the concept's set, or null if it is still unallocated
+         */
+        abstract Set<E> get();
+
+        /**
+         * @return the concept's set, allocating it if need be
+         */
+        abstract Set<E> allocate();
+
+        @Override
+        public Iterator<E> iterator() {
+            Set<E> set = get();
+            return set == null ? Collections.emptyIterator() : set.iterator();
+        }
+
+        @Override
+        public int size() {
+            Set<E> set = get();
+            return set == null ? 0 : set.size();
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            Set<E> set = get();
+            return set != null && set.contains(o);
+        }
+
+        @Override
+        public boolean add(E e) {
+            return allocate().add(e);
+        }
+    }
 }
@@ -0,0 +1,171 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+
+/**
+ * Checks every registered rule against every concept in a single pass, rather than scanning the concepts once per
+ * rule. The pass can be split across threads, each rule collecting the concepts violating it in its own concurrent
+ * accumulator.
+ * <p>
+ * Fixes are only applied once the pass is complete, one rule at a time in the order the rules were registered. The
+ * concepts a fix changes are checked again against the rules registered after it, so the violations found are the same
+ * as checking and fixing each rule in turn would find. Rules may look at the concept being checked and at the concepts
+ * it refers to, but must not rely on anything a fix can change in other concepts.
+ */
+class ConceptValidator {
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    private List<Concept> concepts;
+
+    /**
+     * Registers a rule whose violations are reported, and fixed by <code>fix</code> if it is not null
+     */
+    Rule addRule(String message, String testCaseName, Predicate<Concept> predicate, Consumer<Concept> fix) {
+        Rule rule = new Rule(message, testCaseName, predicate, fix);
+        rules.add(rule);
+        return rule;
+    }
+
+    /**
+     * Registers a rule which is checked but neither reported nor fixed here, its violations are read with
+     * {@link #getViolations(Rule)}
+     */
+    Rule addCheck(Predicate<Concept> predicate) {
+        return addRule(null, null, predicate, null);
+    }
+
+    /**
+     * Checks every rule against every concept
+     *
+     * @param parallelism number of threads to split the concepts across, 1 checks them on the calling thread
+     */
+    void validate(List<Concept> concepts, int parallelism) {
+        this.concepts = concepts;
+        for (Rule rule : rules) {
+            rule.violations = new AtomicLongArray((concepts.size() + 63) >>> 6);
+        }
+
+        if (parallelism > 1) {
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                pool.submit(() -> IntStream.range(0, concepts.size()).parallel().forEach(i -> check(i, 0))).join();
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            for (int i = 0; i < concepts.size(); i++) {
+                check(i, 0);
+            }
+        }
+    }
+
+    /**
+     * Passes the violations of each reported rule to <code>reporter</code> in the order the rules were registered,
+     * fixing them after they are reported if the rule has a fix. If the reporter throws no further rules are reported
+     * or fixed.
+     */
+    void report(BiConsumer<Rule, Set<Concept>> reporter) {
+        for (int r = 0; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
+            if (rule.message == null) {
+                continue;
+            }
+            Set<Concept> violations = getViolations(rule);
+            if (violations.isEmpty()) {
+                continue;
+            }
+            reporter.accept(rule, violations);
+            if (rule.fix != null) {
+                violations.forEach(rule.fix);
+                BitSet fixed = toBitSet(rule.violations);
+                for (int i = fixed.nextSetBit(0); i >= 0; i = fixed.nextSetBit(i + 1)) {
+                    check(i, r + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the concepts currently violating the rule, added in the order the concepts were validated in so the
+     *         set iterates the same way as one collected by a sequential scan
+     */
+    Set<Concept> getViolations(Rule rule) {
+        Set<Concept> violations = new HashSet<>();
+        BitSet matches = toBitSet(rule.violations);
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            violations.add(concepts.get(i));
+        }
+        return violations;
+    }
+
+    /**
+     * Checks a concept against every rule from <code>firstRule</code> on, recording whether it violates each
+     */
+    private void check(int index, int firstRule) {
+        Concept concept = concepts.get(index);
+        int word = index >>> 6;
+        long bit = 1L << index;
+        for (int r = firstRule; r < rules.size(); r++) {
+            Rule rule = rules.get(r);
+            if (rule.predicate.test(concept)) {
+                rule.violations.getAndAccumulate(word, bit, (current, set) -> current | set);
+            } else if (firstRule > 0) {
+                rule.violations.getAndAccumulate(word, ~bit, (current, clear) -> current & clear);
+            }
+        }
+    }
+
+    private static BitSet toBitSet(AtomicLongArray words) {
+        long[] copy = new long[words.length()];
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = words.get(i);
+        }
+        return BitSet.valueOf(copy);
+    }
+
+    /**
+     * A registered rule, with the concepts found violating it as bits indexed by the concepts' positions
+     */
+    static class Rule {
+
+        private final String message;
+
+        private final String testCaseName;
+
+        private final Predicate<Concept> predicate;
+
+        private final Consumer<Concept> fix;
+
+        private AtomicLongArray violations;
+
+        private Rule(String message, String testCaseName, Predicate<Concept> predicate, Consumer<Concept> fix) {
+            this.message = message;
+            this.testCaseName = testCaseName;
+            this.predicate = predicate;
+            this.fix = fix;
+        }
+
+        String getMessage() {
+            return message;
+        }
+
+        String getTestCaseName() {
+            return testCaseName;
+        }
+
+        boolean hasFix() {
+            return fix != null;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Writes a CSV output file as its {@link OutputOptions} say, compressed or not, and either to the path it is given or
+ * split into chunk files of at most a fixed number of rows each starting with the header row. The first line written
+ * is taken to be the header. Rows are counted by their line separators as they pass through, so rows written in
+ * blocks, such as those resolved in parallel or copied from a previous flat file, are split between chunks exactly as
+ * rows written one at a time are.
+ * <p>
+ * Chunk files are named after the path by inserting a five digit chunk number before its extensions, so
+ * <code>amt.csv.gz</code> is written as <code>amt-00001.csv.gz</code>, <code>amt-00002.csv.gz</code> and so on. The
+ * rows, size and, if asked for, SHA-256 checksum of each file are recorded once it is closed, for the manifest. When
+ * chunking, any chunk files of the same path numbered after the last one written, left by an earlier run, are deleted
+ * and logged on close so they can't be mistaken for part of this output. An output that isn't chunked deletes nothing,
+ * as files named like its chunks need not have been written by this tool.
+ * <p>
+ * Writes should be buffered, as each one is scanned and passed on separately.
+ */
+class CsvOutput extends OutputStream {
+
+    private static final Logger logger = Logger.getLogger(CsvOutput.class.getCanonicalName());
+
+    /** A file written, with the number of rows in it not counting the header */
+    static class Part {
+
+        private final Path path;
+
+        private final long rows;
+
+        private final long bytes;
+
+        private final String sha256;
+
+        Part(Path path, long rows, long bytes, String sha256) {
+            this.path = path;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.sha256 = sha256;
+        }
+
+        Path getPath() {
+            return path;
+        }
+
+        long getRows() {
+            return rows;
+        }
+
+        long getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the checksum of the file as written, compressed or not, in lower case hex, or null if not asked for
+         */
+        String getSha256() {
+            return sha256;
+        }
+    }
+
+    /** Counts and optionally digests the bytes written to a file, after compression */
+    private static class FileSink extends FilterOutputStream {
+
+        private final MessageDigest digest;
+
+        private long bytes;
+
+        FileSink(OutputStream out, MessageDigest digest) {
+            super(out);
+            this.digest = digest;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            if (digest != null) {
+                digest.update((byte) b);
+            }
+            bytes++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (digest != null) {
+                digest.update(b, off, len);
+            }
+            bytes += len;
+        }
+    }
+
+    private final Path path;
+
+    private final OutputOptions options;
+
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream();
+
+    private boolean headerComplete;
+
+    private final List<Part> parts = new ArrayList<>();
+
+    private Path currentPath;
+
+    private FileSink currentSink;
+
+    private OutputStream current;
+
+    private long currentRows;
+
+    private boolean closed;
+
+    CsvOutput(Path path, OutputOptions options) throws IOException {
+        this.path = path;
+        this.options = options;
+        open(options.getChunkRows() > 0 ? chunkPath(1) : path);
+    }
+
+    /**
+     * @return the path of a chunk file, numbered from 1
+     */
+    Path chunkPath(int chunk) {
+        String name = path.getFileName().toString();
+        int extension = name.indexOf('.', 1);
+        String number = String.format("-%05d", chunk);
+        String chunkName = extension < 0 ? name + number
+                : name.substring(0, extension) + number + name.substring(extension);
+        return path.resolveSibling(chunkName);
+    }
+
+    private void open(Path file) throws IOException {
+        MessageDigest digest = null;
+        if (options.isChecksums()) {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is not available", e);
+            }
+        }
+        currentPath = file;
+        // only the output path itself is checked before writing, so never follow a symlink left in place of a chunk
+        currentSink = new FileSink(Files.newOutputStream(file, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS), digest);
+        current = options.getCompression().compress(currentSink);
+        currentRows = 0;
+    }
+
+    private void finishCurrent() throws IOException {
+        current.close();
+        parts.add(new Part(currentPath, currentRows, currentSink.bytes,
+            currentSink.digest == null ? null : hex(currentSink.digest.digest())));
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        int end = off + len;
+        int chunkRows = options.getChunkRows();
+        while (off < end) {
+            if (!headerComplete) {
+                int lineEnd = off;
+                while (lineEnd < end && b[lineEnd++] != '\n') {
+                    // find the end of the header
+                }
+                header.write(b, off, lineEnd - off);
+                current.write(b, off, lineEnd - off);
+                headerComplete = b[lineEnd - 1] == '\n';
+                off = lineEnd;
+                continue;
+            }
+
+            // a chunk only becomes full at the end of a row, and the next is only started once there is more to write
+            if (chunkRows > 0 && currentRows == chunkRows) {
+                finishCurrent();
+                open(chunkPath(parts.size() + 1));
+                header.writeTo(current);
+            }
+            int stop = end;
+            for (int i = off; i < end; i++) {
+                if (b[i] == '\n' && ++currentRows == chunkRows) {
+                    stop = i + 1;
+                    break;
+                }
+            }
+            current.write(b, off, stop - off);
+            off = stop;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        current.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            closed = true;
+            finishCurrent();
+            deleteStaleChunks();
+        }
+    }
+
+    /**
+     * Deletes the chunk files following those written, up to the first that doesn't exist, if the output is chunked.
+     * A symlink in place of a chunk is deleted rather than what it points to.
+     */
+    private void deleteStaleChunks() throws IOException {
+        if (options.getChunkRows() > 0) {
+            for (int chunk = parts.size() + 1; Files.deleteIfExists(chunkPath(chunk)); chunk++) {
+                logger.info("Deleted " + chunkPath(chunk) + " left by an earlier run with more chunks");
+            }
+        }
+    }
+
+    /**
+     * @return the files written, in order, once this has been closed
+     */
+    List<Part> getParts() {
+        return Collections.unmodifiableList(parts);
+    }
+
+    long getRows() {
+        return parts.stream().mapToLong(Part::getRows).sum();
+    }
+
+    long getBytesWritten() {
+        return parts.stream().mapToLong(Part::getBytes).sum();
+    }
+}
@@ -0,0 +1,95 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes comma separated rows as UTF-8 bytes, taking concepts' ids and preferred terms straight from the
+ * {@link Concept} so that neither is turned into a <code>String</code> on the way out. Fields are written as they are
+ * given, terms are wrapped in double quotes but not escaped, matching the files this tool has always produced.
+ */
+class CsvRowWriter {
+
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final OutputStream out;
+
+    private final byte[] digits = new byte[20];
+
+    private boolean rowStarted;
+
+    private long rows;
+
+    private long copiedRows;
+
+    CsvRowWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    CsvRowWriter write(String value) throws IOException {
+        separate();
+        out.write(value.getBytes(StandardCharsets.UTF_8));
+        return this;
+    }
+
+    CsvRowWriter write(long value) throws IOException {
+        separate();
+        if (value < 0) {
+            out.write(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+            return this;
+        }
+        int start = digits.length;
+        do {
+            digits[--start] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        out.write(digits, start, digits.length - start);
+        return this;
+    }
+
+    /**
+     * Writes a concept's id followed by its quoted preferred term
+     */
+    CsvRowWriter write(Concept concept) throws IOException {
+        write(concept.getId());
+        out.write(',');
+        out.write('"');
+        concept.writePreferredTerm(out);
+        out.write('"');
+        return this;
+    }
+
+    void endRow() throws IOException {
+        out.write(LINE_SEPARATOR);
+        rowStarted = false;
+        rows++;
+    }
+
+    /**
+     * Writes complete rows, with their line separators, copied from a file written earlier
+     */
+    void copyRows(byte[] bytes, int offset, int length, int count) throws IOException {
+        out.write(bytes, offset, length);
+        rows += count;
+        copiedRows += count;
+    }
+
+    /**
+     * @return the number of rows ended so far, including any header row and rows copied
+     */
+    long getRows() {
+        return rows;
+    }
+
+    long getCopiedRows() {
+        return copiedRows;
+    }
+
+    private void separate() throws IOException {
+        if (rowStarted) {
+            out.write(',');
+        }
+        rowStarted = true;
+    }
+}
@@ -0,0 +1,182 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Writes the differences between the flat files of two releases without writing either flat file out or holding
+ * either's rows in memory. The CTPPs of both releases are visited in id order, and the rows of each are resolved from
+ * each release in turn with {@link Amt2FlatFile#resolveRows}, so only one CTPP's rows are held at a time.
+ * <p>
+ * Rows are compared by CTPP and ARTG id. Each row written is a flat file row preceded by a change column, which is
+ * {@link #ADDED} for the rows of a CTPP and ARTG id only in the current release, {@link #REMOVED} for those only in the
+ * previous release, and for a CTPP and ARTG id in both releases with different rows {@link #CHANGED_FROM} for its
+ * previous rows followed by {@link #CHANGED_TO} for its current rows. Rows are compared by their bytes regardless of
+ * their order, and written in byte order.
+ */
+class FlatFileDiff {
+
+    static final String ADDED = "ADDED";
+
+    static final String REMOVED = "REMOVED";
+
+    static final String CHANGED_FROM = "CHANGED_FROM";
+
+    static final String CHANGED_TO = "CHANGED_TO";
+
+    private static final Comparator<byte[]> BYTE_ORDER = (a, b) -> {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    };
+
+    private final Amt2FlatFile previous;
+
+    private final Amt2FlatFile current;
+
+    /** Validation failures found resolving rows, which are reported when the flat file is written rather than here */
+    private final JUnitTestSuite_EXT failures = new JUnitTestSuite_EXT();
+
+    private final ByteArrayOutputStream rowBuffer = new ByteArrayOutputStream();
+
+    private final CsvRowWriter rowWriter = new CsvRowWriter(rowBuffer);
+
+    private long added, removed, changed, rows;
+
+    /**
+     * @param previous resolves the rows of the previous release, from the cache it was given
+     * @param current resolves the rows of the current release, from the cache it was given
+     */
+    FlatFileDiff(Amt2FlatFile previous, Amt2FlatFile current) {
+        this.previous = previous;
+        this.current = current;
+    }
+
+    /**
+     * Writes a header followed by the rows that differ
+     *
+     * @param header the flat file's header, which the change column's header is added before
+     */
+    void write(OutputStream out, String header) throws IOException {
+        out.write(("CHANGE," + header + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+
+        Map<Long, Concept> previousCtpps = previous.getConceptCache().getCtpps();
+        Map<Long, Concept> currentCtpps = current.getConceptCache().getCtpps();
+        TreeSet<Long> ctppIds = new TreeSet<>(previousCtpps.keySet());
+        ctppIds.addAll(currentCtpps.keySet());
+
+        for (Long ctppId : ctppIds) {
+            Map<String, List<byte[]>> previousRows = resolve(previous, previousCtpps.get(ctppId));
+            Map<String, List<byte[]>> currentRows = resolve(current, currentCtpps.get(ctppId));
+
+            TreeSet<String> artgIds = new TreeSet<>(previousRows.keySet());
+            artgIds.addAll(currentRows.keySet());
+            for (String artgId : artgIds) {
+                List<byte[]> before = previousRows.getOrDefault(artgId, Collections.emptyList());
+                List<byte[]> after = currentRows.getOrDefault(artgId, Collections.emptyList());
+                if (before.isEmpty()) {
+                    write(out, ADDED, after);
+                    added++;
+                } else if (after.isEmpty()) {
+                    write(out, REMOVED, before);
+                    removed++;
+                } else if (!sameRows(before, after)) {
+                    write(out, CHANGED_FROM, before);
+                    write(out, CHANGED_TO, after);
+                    changed++;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the CTPP's rows by ARTG id, each sorted in byte order, or none if the CTPP is not in the release
+     */
+    private Map<String, List<byte[]>> resolve(Amt2FlatFile release, Concept ctpp) throws IOException {
+        Map<String, List<byte[]>> rowsByArtgId = new TreeMap<>();
+        if (ctpp == null) {
+            return rowsByArtgId;
+        }
+        release.resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> {
+            rowBuffer.reset();
+            rowWriter.write(ctpp)
+                .write(artgid)
+                .write(tpp)
+                .write(tpuu)
+                .write(tppTp)
+                .write(tpuuTp)
+                .write(mpp)
+                .write(mpuu)
+                .write(mp)
+                .endRow();
+            rowsByArtgId.computeIfAbsent(artgid, id -> new ArrayList<>()).add(rowBuffer.toByteArray());
+        }, failures);
+        for (List<byte[]> artgIdRows : rowsByArtgId.values()) {
+            artgIdRows.sort(BYTE_ORDER);
+        }
+        return rowsByArtgId;
+    }
+
+    private static boolean sameRows(List<byte[]> before, List<byte[]> after) {
+        if (before.size() != after.size()) {
+            return false;
+        }
+        for (int i = 0; i < before.size(); i++) {
+            if (!Arrays.equals(before.get(i), after.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void write(OutputStream out, String change, List<byte[]> changedRows) throws IOException {
+        byte[] prefix = (change + ",").getBytes(StandardCharsets.US_ASCII);
+        for (byte[] row : changedRows) {
+            out.write(prefix);
+            out.write(row);
+            rows++;
+        }
+    }
+
+    /**
+     * @return the number of CTPP and ARTG id pairs only in the current release
+     */
+    long getAdded() {
+        return added;
+    }
+
+    /**
+     * @return the number of CTPP and ARTG id pairs only in the previous release
+     */
+    long getRemoved() {
+        return removed;
+    }
+
+    /**
+     * @return the number of CTPP and ARTG id pairs in both releases with different rows
+     */
+    long getChanged() {
+        return changed;
+    }
+
+    /**
+     * @return the number of rows written, not counting the header
+     */
+    long getRows() {
+        return rows;
+    }
+}
@@ -0,0 +1,174 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Calculates the transitive closure of the IS_A hierarchy held in each {@link Concept}'s parents. Rather than adding
+ * an edge for every ancestor pair to a graph, each concept is given one array of its ancestors sorted by id, built from
+ * its parents' arrays once they are complete. Concepts are visited depth first so every concept's ancestors are only
+ * calculated once, and the arrays of the whole hierarchy cost one reference per ancestor pair.
+ */
+class IsaClosure {
+
+    private static final Comparator<Concept> BY_ID = Comparator.comparingLong(Concept::getId);
+
+    /** Marks a concept whose ancestors are being calculated, finding it again on the way up means there is a cycle */
+    private static final Concept[] IN_PROGRESS = new Concept[0];
+
+    private static final Concept[] NO_ANCESTORS = new Concept[0];
+
+    private IsaClosure() {
+    }
+
+    /**
+     * Sets the ancestors of all the concepts, which must include every concept reachable through their parents that
+     * does not already have its ancestors calculated.
+     *
+     * @throws IllegalStateException if the hierarchy contains a cycle, in which case the ancestors of the concepts in
+     *             the cycle are incomplete
+     */
+    static void calculate(Collection<Concept> concepts) {
+        for (Concept concept : concepts) {
+            concept.setAncestors(null);
+        }
+
+        List<Long> cycles = new ArrayList<>();
+        Deque<Concept> stack = new ArrayDeque<>();
+        for (Concept concept : concepts) {
+            if (concept.getAncestorArray() != null) {
+                continue;
+            }
+            concept.setAncestors(IN_PROGRESS);
+            stack.push(concept);
+            while (!stack.isEmpty()) {
+                Concept top = stack.peek();
+                Concept unvisitedParent = null;
+                for (Concept parent : top.getParentMap().values()) {
+                    if (parent.getAncestorArray() == null) {
+                        unvisitedParent = parent;
+                        break;
+                    }
+                }
+                if (unvisitedParent != null) {
+                    unvisitedParent.setAncestors(IN_PROGRESS);
+                    stack.push(unvisitedParent);
+                } else {
+                    stack.pop();
+                    top.setAncestors(merge(top, cycles));
+                }
+            }
+        }
+
+        if (!cycles.isEmpty()) {
+            throw new IllegalStateException("IS_A hierarchy contains cycles involving concepts " + cycles);
+        }
+    }
+
+    /**
+     * Recalculates the ancestors of the concepts whose parents have changed, and of all of their descendants, keeping
+     * the ancestors already calculated for every other concept.
+     *
+     * @param concepts every concept, which are searched for the descendants
+     * @param changed the concepts whose parents have changed, or which have no ancestors calculated yet
+     * @return the concepts whose ancestors were recalculated
+     * @throws IllegalStateException if the hierarchy now contains a cycle, as for {@link #calculate(Collection)}
+     */
+    static List<Concept> recalculate(Collection<Concept> concepts, Collection<Concept> changed) {
+        LongObjectMap<List<Concept>> children = new LongObjectMap<>();
+        for (Concept concept : concepts) {
+            for (Concept parent : concept.getParentMap().values()) {
+                List<Concept> siblings = children.get(parent.getId());
+                if (siblings == null) {
+                    siblings = new ArrayList<>();
+                    children.put(parent.getId(), siblings);
+                }
+                siblings.add(concept);
+            }
+        }
+
+        LongSet visited = new LongSet();
+        List<Concept> affected = new ArrayList<>();
+        Deque<Concept> queue = new ArrayDeque<>();
+        for (Concept concept : changed) {
+            if (visited.add(concept.getId())) {
+                queue.add(concept);
+            }
+        }
+        while (!queue.isEmpty()) {
+            Concept concept = queue.remove();
+            affected.add(concept);
+            List<Concept> conceptChildren = children.get(concept.getId());
+            if (conceptChildren != null) {
+                for (Concept child : conceptChildren) {
+                    if (visited.add(child.getId())) {
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+
+        // the concepts' other ancestors are already complete, so only the affected concepts are visited
+        calculate(affected);
+        return affected;
+    }
+
+    /**
+     * @return the parents of the concept combined with all of the parents' ancestors, sorted by id without duplicates
+     */
+    private static Concept[] merge(Concept concept, List<Long> cycles) {
+        int count = 0;
+        for (Concept parent : concept.getParentMap().values()) {
+            count += 1 + parent.getAncestorArray().length;
+        }
+        if (count == 0) {
+            return NO_ANCESTORS;
+        }
+
+        Concept[] merged = new Concept[count];
+        int size = 0;
+        for (Concept parent : concept.getParentMap().values()) {
+            merged[size++] = parent;
+            Concept[] parentAncestors = parent.getAncestorArray();
+            if (parentAncestors == IN_PROGRESS) {
+                cycles.add(concept.getId());
+            }
+            System.arraycopy(parentAncestors, 0, merged, size, parentAncestors.length);
+            size += parentAncestors.length;
+        }
+
+        Arrays.sort(merged, BY_ID);
+        int unique = 1;
+        for (int i = 1; i < merged.length; i++) {
+            if (merged[i].getId() != merged[unique - 1].getId()) {
+                merged[unique++] = merged[i];
+            }
+        }
+        return unique == merged.length ? merged : Arrays.copyOf(merged, unique);
+    }
+
+    /**
+     * @return true if <code>id</code> is one of the ancestors, which must be sorted by id
+     */
+    static boolean contains(Concept[] ancestors, long id) {
+        int low = 0;
+        int high = ancestors.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long middleId = ancestors[middle].getId();
+            if (middleId < id) {
+                low = middle + 1;
+            } else if (middleId > id) {
+                high = middle - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
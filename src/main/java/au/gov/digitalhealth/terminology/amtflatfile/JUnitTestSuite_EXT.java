@@ -3,24 +3,17 @@ package au.gov.digitalhealth.terminology.amtflatfile;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Collectors;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import org.openmbee.junit.model.JUnitFailure;
 import org.openmbee.junit.model.JUnitTestCase;
 import org.openmbee.junit.model.JUnitTestSuite;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 /**
  * The opembee JUnit parser was only ever meant to read JUnit files. Not create them.
  * This extension to the JUnitTestSuite class adds writing functionality, as well as
@@ -31,60 +24,94 @@ import org.w3c.dom.Element;
  */
 public class JUnitTestSuite_EXT extends JUnitTestSuite {
 	
+    private static final String INDENT = "    ";
+
+    /**
+     * Writes the suite as JUnit XML with a StAX writer, streaming each test case and failure straight to the writer
+     * rather than building a DOM of the whole suite first, so only one element is ever held beyond the test cases
+     * themselves. The output is the same as the DOM based writer this replaced produced, down to its indentation.
+     */
 	public void writeToFile(BufferedWriter stream) throws IOException {
-		
-		Document doc = null;
-		try {
-			doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-		} catch (ParserConfigurationException e1) {
-			throw new RuntimeException("Error writing out xml: " + e1.getMessage());
-		}
+        List<JUnitTestCase> testCases = this.getTestCases() == null ? Collections.emptyList() : this.getTestCases();
+        if (this.getTestCases() != null) {
+            this.setFailures((int) testCases.stream().flatMap(x -> failuresOf(x).stream()).count());
+            this.setTests(testCases.size());
+        }
+        String failures = this.getTestCases() == null ? "0" : Integer.toString(this.getFailures());
 
-		Element testSuitesEl = doc.createElement("testsuites");
-		Element testSuiteEl = doc.createElement("testsuite");
-		testSuiteEl.setAttribute("failures", "0");
-		testSuiteEl.setAttribute("tests", "0");
-		testSuiteEl.setAttribute("errors", "0");
-		testSuiteEl.setAttribute("name", "validation.errors");
-		
-		if(this.getTestCases() != null) {
-			this.setFailures((int) this.getTestCases().stream().flatMap(x -> x.getFailures().stream()).count());
-			this.setTests(this.getTestCases() != null ? this.getTestCases().size() : 0);
-			testSuiteEl.setAttribute("failures", Integer.toString(this.getFailures()));
-			testSuiteEl.setAttribute("tests", Integer.toString(this.getFailures()));
-			testSuiteEl.setAttribute("errors", "0");
-			testSuiteEl.setAttribute("name", "validation.errors");
+        stream.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>");
+        stream.write(System.lineSeparator());
+		try {
+            XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(stream);
+            if (testCases.isEmpty()) {
+                xml.writeEmptyElement("testsuite");
+            } else {
+                xml.writeStartElement("testsuite");
+            }
+            xml.writeAttribute("errors", "0");
+            xml.writeAttribute("failures", failures);
+            xml.writeAttribute("name", "validation.errors");
+            xml.writeAttribute("tests", failures);
 
-			for (JUnitTestCase testCase : this.getTestCases()) {
-				Element testCaseEl = doc.createElement("testcase");
-				testCaseEl.setAttribute("name", testCase.getName());
-				testCaseEl.setAttribute("classname", "flatfile." + testCase.getName());
+            for (JUnitTestCase testCase : testCases) {
+                List<JUnitFailure> testCaseFailures = failuresOf(testCase);
+                newLine(xml, 1);
+                if (testCaseFailures.isEmpty()) {
+                    xml.writeEmptyElement("testcase");
+                } else {
+                    xml.writeStartElement("testcase");
+                }
+                xml.writeAttribute("classname", "flatfile." + testCase.getName());
+                xml.writeAttribute("name", valueOf(testCase.getName()));
 
-				for (JUnitFailure failure : testCase.getFailures()) {
-					Element failEl = doc.createElement("failure");
-					failEl.setAttribute("message", failure.getMessage());
-					failEl.setAttribute("type", failure.getType());
-					failEl.setTextContent(failure.getValue());
-					testCaseEl.appendChild(failEl);
-				}
-				testSuiteEl.appendChild(testCaseEl);
-			}
-		}
-		
-		testSuitesEl.appendChild(testSuiteEl);
-		doc.appendChild(testSuiteEl);
-		
-		Transformer transformer;
-		try {
-			transformer = TransformerFactory.newInstance().newTransformer();
-	        transformer.setOutputProperty(OutputKeys.INDENT, "yes"); 
-	        DOMSource source = new DOMSource(doc);
-	        StreamResult writeOut = new StreamResult(stream);
-	        transformer.transform(source, writeOut);
-		} catch (TransformerFactoryConfigurationError | TransformerException e) {
+                for (JUnitFailure failure : testCaseFailures) {
+                    newLine(xml, 2);
+                    String value = failure.getValue();
+                    if (value == null || value.isEmpty()) {
+                        xml.writeEmptyElement("failure");
+                    } else {
+                        xml.writeStartElement("failure");
+                    }
+                    xml.writeAttribute("message", valueOf(failure.getMessage()));
+                    xml.writeAttribute("type", valueOf(failure.getType()));
+                    if (value != null && !value.isEmpty()) {
+                        xml.writeCharacters(value);
+                        xml.writeEndElement();
+                    }
+                }
+                if (!testCaseFailures.isEmpty()) {
+                    newLine(xml, 1);
+                    xml.writeEndElement();
+                }
+            }
+            if (!testCases.isEmpty()) {
+                newLine(xml, 0);
+                xml.writeEndElement();
+            }
+            xml.writeCharacters(System.lineSeparator());
+            xml.flush();
+            xml.close();
+		} catch (XMLStreamException e) {
 			throw new RuntimeException("Error writing out xml: " + e.getMessage());
 		}
+        stream.flush();
 	}
+
+    private static void newLine(XMLStreamWriter xml, int depth) throws XMLStreamException {
+        StringBuilder indent = new StringBuilder(System.lineSeparator());
+        for (int i = 0; i < depth; i++) {
+            indent.append(INDENT);
+        }
+        xml.writeCharacters(indent.toString());
+    }
+
+    private static List<JUnitFailure> failuresOf(JUnitTestCase testCase) {
+        return testCase.getFailures() == null ? Collections.emptyList() : testCase.getFailures();
+    }
+
+    private static String valueOf(String value) {
+        return value == null ? "" : value;
+    }
 	
 	
 	/*
@@ -109,6 +136,17 @@ public class JUnitTestSuite_EXT extends JUnitTestSuite {
 		
 	}
 
+    /*
+     * Adds all the test cases of another suite in order, as if each had been added to this suite directly
+     */
+    public void addTestCases(JUnitTestSuite_EXT other) {
+        if (other.getTestCases() != null) {
+            for (JUnitTestCase testCase : other.getTestCases()) {
+                this.addTestCase((JUnitTestCase_EXT) testCase);
+            }
+        }
+    }
+
     public void addTestCase(String message, String detail, String testCaseName, String failType) {
         JUnitFailure fail = new JUnitFailure();
         fail.setMessage(message);
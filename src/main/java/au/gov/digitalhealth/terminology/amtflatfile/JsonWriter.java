@@ -0,0 +1,90 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Just enough of a JSON writer for the run report and the lookup server, separating values and escaping strings
+ */
+class JsonWriter {
+
+    private final Writer out;
+
+    private boolean first = true;
+
+    JsonWriter(Writer out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException {
+        return begin('{');
+    }
+
+    JsonWriter endObject() throws IOException {
+        return end('}');
+    }
+
+    JsonWriter beginArray() throws IOException {
+        return begin('[');
+    }
+
+    JsonWriter endArray() throws IOException {
+        return end(']');
+    }
+
+    JsonWriter name(String name) throws IOException {
+        separate();
+        string(name);
+        out.write(':');
+        first = true;
+        return this;
+    }
+
+    JsonWriter value(Object value) throws IOException {
+        separate();
+        if (value == null) {
+            out.write("null");
+        } else if (value instanceof Number || value instanceof Boolean) {
+            out.write(value.toString());
+        } else {
+            string(value.toString());
+        }
+        return this;
+    }
+
+    private JsonWriter begin(char bracket) throws IOException {
+        separate();
+        out.write(bracket);
+        first = true;
+        return this;
+    }
+
+    private JsonWriter end(char bracket) throws IOException {
+        out.write(bracket);
+        first = false;
+        return this;
+    }
+
+    private void separate() throws IOException {
+        if (!first) {
+            out.write(',');
+        }
+        first = false;
+    }
+
+    private void string(String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                out.write(String.format("\\u%04x", (int) c));
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
@@ -0,0 +1,462 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * An open addressing hash map from primitive <code>long</code> keys, such as SCTIDs, to objects. Keys are stored
+ * unboxed in a single array alongside the values so an entry costs two array slots rather than a boxed key and a
+ * node object. Null values are not permitted, a null value marks an empty slot.
+ * <p>
+ * Iteration order is stable for a given sequence of operations but is otherwise unspecified. Like
+ * {@link java.util.HashMap} this class is not thread safe.
+ */
+public class LongObjectMap<V> {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final long[] NO_KEYS = new long[0];
+
+    private static final Object[] NO_VALUES = new Object[0];
+
+    private long[] keys;
+
+    private Object[] values;
+
+    private int size;
+
+    private int mask;
+
+    private int resizeThreshold;
+
+    private int modCount;
+
+    /**
+     * Creates an empty map which allocates no storage until the first entry is added.
+     */
+    public LongObjectMap() {
+        keys = NO_KEYS;
+        values = NO_VALUES;
+    }
+
+    public LongObjectMap(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Creates a map with exactly <code>capacity</code> slots, which must be a power of two, see
+     * {@link #keysInLayoutOrder()}. A capacity of zero allocates nothing until the first entry is added.
+     */
+    static <V> LongObjectMap<V> withCapacity(int capacity) {
+        LongObjectMap<V> map = new LongObjectMap<>();
+        if (capacity > 0) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of two, was " + capacity);
+            }
+            map.allocate(capacity);
+        }
+        return map;
+    }
+
+    static int capacityFor(int expectedSize) {
+        int capacity = 4;
+        while (capacity * LOAD_FACTOR < expectedSize) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    private int indexOf(long key) {
+        if (size == 0) {
+            return -1;
+        }
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * @return the previous value for the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException("Null values are not supported, key " + key);
+        }
+        if (values.length == 0) {
+            allocate(4);
+        }
+        int index = hash(key) & mask;
+        while (values[index] != null) {
+            if (keys[index] == key) {
+                V previous = (V) values[index];
+                values[index] = value;
+                return previous;
+            }
+            index = (index + 1) & mask;
+        }
+        keys[index] = key;
+        values[index] = value;
+        modCount++;
+        if (++size > resizeThreshold) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    public void putAll(LongObjectMap<? extends V> other) {
+        for (int i = 0; i < other.values.length; i++) {
+            if (other.values[i] != null) {
+                @SuppressWarnings("unchecked")
+                V value = (V) other.values[i];
+                put(other.keys[i], value);
+            }
+        }
+    }
+
+    /**
+     * @return the value removed, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V previous = (V) values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    /**
+     * Removes every entry whose value matches the predicate.
+     *
+     * @return true if any entries were removed
+     */
+    public boolean removeIf(Predicate<? super V> predicate) {
+        long[] matches = new long[size];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            @SuppressWarnings("unchecked")
+            V value = (V) values[i];
+            if (value != null && predicate.test(value)) {
+                matches[count++] = keys[i];
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            remove(matches[i]);
+        }
+        return count > 0;
+    }
+
+    /**
+     * Backward shift deletion, moving any following entries of the probe sequence into the gap so that no tombstones
+     * are needed.
+     */
+    private void removeAt(int index) {
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            // move the entry into the gap if its home slot is not cyclically between the gap and its current slot
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[gap] = 0;
+        values[gap] = null;
+        size--;
+        modCount++;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                int index = hash(oldKeys[i]) & mask;
+                while (values[index] != null) {
+                    index = (index + 1) & mask;
+                }
+                keys[index] = oldKeys[i];
+                values[index] = oldValues[i];
+            }
+        }
+    }
+
+    public void clear() {
+        if (size > 0) {
+            Arrays.fill(keys, 0);
+            Arrays.fill(values, null);
+            size = 0;
+            modCount++;
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return a read only view of the values in this map
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<V>() {
+
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * @return a view of this map as a {@link Map} with boxed keys, which changes to the view are written through to.
+     *         Iterating over it boxes every key, so it is for callers needing a {@link Map} rather than for hot paths.
+     */
+    public Map<Long, V> asMap() {
+        return new MapView();
+    }
+
+    /**
+     * @return a copy of the keys in this map, in iteration order
+     */
+    public long[] keys() {
+        long[] result = new long[size];
+        int count = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                result[count++] = keys[i];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the number of slots in this map
+     */
+    int capacity() {
+        return values.length;
+    }
+
+    /**
+     * Returns the keys in the order of the slots they occupy, starting after an empty slot. Putting them in this order
+     * into a map created by {@link #withCapacity(int)} with this map's capacity places every key in the same slot, so
+     * the copy iterates in the same order as this map.
+     */
+    long[] keysInLayoutOrder() {
+        long[] result = new long[size];
+        int start = 0;
+        while (start < values.length && values[start] != null) {
+            start++;
+        }
+        int count = 0;
+        for (int i = 1; i <= values.length; i++) {
+            int index = (start + i) & mask;
+            if (values[index] != null) {
+                result[count++] = keys[index];
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                if (builder.length() > 1) {
+                    builder.append(", ");
+                }
+                builder.append(keys[i]).append('=').append(values[i]);
+            }
+        }
+        return builder.append('}').toString();
+    }
+
+    private class MapView extends AbstractMap<Long, V> {
+
+        @Override
+        public V get(Object key) {
+            return key instanceof Long ? LongObjectMap.this.get((Long) key) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof Long && LongObjectMap.this.containsKey((Long) key);
+        }
+
+        @Override
+        public V put(Long key, V value) {
+            return LongObjectMap.this.put(key, value);
+        }
+
+        @Override
+        public V remove(Object key) {
+            return key instanceof Long ? LongObjectMap.this.remove((Long) key) : null;
+        }
+
+        @Override
+        public void clear() {
+            LongObjectMap.this.clear();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Set<Map.Entry<Long, V>> entrySet() {
+            return new AbstractSet<Map.Entry<Long, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<Long, V>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+    }
+
+    /**
+     * Iterates over a copy of the keys, so that entries can be removed through it without upsetting the order of
+     * those not yet reached
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Long, V>> {
+
+        private final long[] keys = keys();
+
+        private int expectedModCount = modCount;
+
+        private int next;
+
+        private boolean removable;
+
+        @Override
+        public boolean hasNext() {
+            return next < keys.length;
+        }
+
+        @Override
+        public Map.Entry<Long, V> next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= keys.length) {
+                throw new NoSuchElementException();
+            }
+            long key = keys[next++];
+            removable = true;
+            return new AbstractMap.SimpleEntry<Long, V>(key, get(key)) {
+
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                public V setValue(V value) {
+                    put(key, value);
+                    return super.setValue(value);
+                }
+            };
+        }
+
+        @Override
+        public void remove() {
+            if (!removable) {
+                throw new IllegalStateException();
+            }
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            LongObjectMap.this.remove(keys[next - 1]);
+            expectedModCount = modCount;
+            removable = false;
+        }
+    }
+
+    private class ValueIterator implements Iterator<V> {
+
+        private final int expectedModCount = modCount;
+
+        private int next = advance(0);
+
+        private int advance(int from) {
+            while (from < values.length && values[from] == null) {
+                from++;
+            }
+            return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next < values.length;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (modCount != expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+            if (next >= values.length) {
+                throw new NoSuchElementException();
+            }
+            V value = (V) values[next];
+            next = advance(next + 1);
+            return value;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+/**
+ * An open addressing hash set of primitive <code>long</code> values, such as SCTIDs, stored unboxed in a single array.
+ * Zero is used to mark empty slots internally and is tracked separately so it can still be stored. Like
+ * {@link java.util.HashSet} this class is not thread safe.
+ */
+public class LongSet {
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private long[] values;
+
+    private boolean containsZero;
+
+    private int size;
+
+    private int mask;
+
+    private int resizeThreshold;
+
+    public LongSet() {
+        this(16);
+    }
+
+    public LongSet(int expectedSize) {
+        allocate(LongObjectMap.capacityFor(expectedSize));
+    }
+
+    private void allocate(int capacity) {
+        values = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = (int) (capacity * LOAD_FACTOR);
+    }
+
+    public boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        int index = LongObjectMap.hash(value) & mask;
+        while (values[index] != 0) {
+            if (values[index] == value) {
+                return true;
+            }
+            index = (index + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the value was not already present
+     */
+    public boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int index = LongObjectMap.hash(value) & mask;
+        while (values[index] != 0) {
+            if (values[index] == value) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        values[index] = value;
+        if (++size > resizeThreshold) {
+            rehash(values.length << 1);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the value was present
+     */
+    public boolean remove(long value) {
+        if (value == 0) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int index = LongObjectMap.hash(value) & mask;
+        while (values[index] != value) {
+            if (values[index] == 0) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        // backward shift deletion as in LongObjectMap, so no tombstones are needed
+        int gap = index;
+        int next = (gap + 1) & mask;
+        while (values[next] != 0) {
+            int home = LongObjectMap.hash(values[next]) & mask;
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                values[gap] = values[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[gap] = 0;
+        size--;
+        return true;
+    }
+
+    /**
+     * @return a copy of the values in this set, in no particular order
+     */
+    public long[] toArray() {
+        long[] result = new long[size];
+        int count = 0;
+        if (containsZero) {
+            result[count++] = 0;
+        }
+        for (long value : values) {
+            if (value != 0) {
+                result[count++] = value;
+            }
+        }
+        return result;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldValues = values;
+        allocate(capacity);
+        for (long value : oldValues) {
+            if (value != 0) {
+                int index = LongObjectMap.hash(value) & mask;
+                while (values[index] != 0) {
+                    index = (index + 1) & mask;
+                }
+                values[index] = value;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+}
@@ -0,0 +1,84 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lists the files each CSV output was written to, with their rows, sizes and checksums, so that a consumer can find
+ * every chunk of an output and check it arrived intact before loading it. Outputs are listed in the order they were
+ * written, and an output written again replaces the earlier one.
+ */
+class OutputManifest {
+
+    private final OutputOptions options;
+
+    private final Map<String, CsvOutput> outputs = new LinkedHashMap<>();
+
+    OutputManifest(OutputOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * @param name what the output is, such as <code>flatFile</code>
+     */
+    void add(String name, CsvOutput output) {
+        outputs.remove(name);
+        outputs.put(name, output);
+    }
+
+    /**
+     * @return the output with the name, or null if none has been written
+     */
+    CsvOutput get(String name) {
+        return outputs.get(name);
+    }
+
+    /**
+     * Writes the manifest as JSON, with each file's path relative to the directory the manifest is written to
+     */
+    void writeJson(Path manifest, Writer out) throws IOException {
+        Path directory = manifest.toAbsolutePath().getParent();
+        JsonWriter json = new JsonWriter(out).beginObject()
+            .name("compression")
+            .value(options.getCompression().name().toLowerCase())
+            .name("chunkRows")
+            .value(options.getChunkRows())
+            .name("outputs")
+            .beginArray();
+        for (Map.Entry<String, CsvOutput> output : outputs.entrySet()) {
+            json.beginObject()
+                .name("name")
+                .value(output.getKey())
+                .name("rows")
+                .value(output.getValue().getRows())
+                .name("bytes")
+                .value(output.getValue().getBytesWritten())
+                .name("files")
+                .beginArray();
+            for (CsvOutput.Part part : output.getValue().getParts()) {
+                json.beginObject()
+                    .name("path")
+                    .value(relativePath(directory, part.getPath()))
+                    .name("rows")
+                    .value(part.getRows())
+                    .name("bytes")
+                    .value(part.getBytes())
+                    .name("sha256")
+                    .value(part.getSha256())
+                    .endObject();
+            }
+            json.endArray().endObject();
+        }
+        json.endArray().endObject();
+        out.write(System.lineSeparator());
+    }
+
+    private static String relativePath(Path directory, Path file) {
+        Path absolute = file.toAbsolutePath();
+        Path path = directory != null && absolute.startsWith(directory) ? directory.relativize(absolute) : absolute;
+        return path.toString().replace('\\', '/');
+    }
+}
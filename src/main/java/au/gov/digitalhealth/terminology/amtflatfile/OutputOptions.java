@@ -0,0 +1,51 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+/**
+ * Settings controlling how the CSV output files are written. These only change how the rows are stored, never the
+ * rows themselves.
+ */
+public class OutputOptions {
+
+    private Compression compression = Compression.NONE;
+
+    private int chunkRows;
+
+    private boolean checksums;
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public OutputOptions setCompression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public int getChunkRows() {
+        return chunkRows;
+    }
+
+    /**
+     * @param chunkRows the most rows, not counting the header, written to each file before starting another, or 0 to
+     *            write each output to a single file
+     */
+    public OutputOptions setChunkRows(int chunkRows) {
+        if (chunkRows < 0) {
+            throw new IllegalArgumentException("Chunk rows must not be negative, was " + chunkRows);
+        }
+        this.chunkRows = chunkRows;
+        return this;
+    }
+
+    public boolean isChecksums() {
+        return checksums;
+    }
+
+    /**
+     * If set the SHA-256 checksum of each file is calculated as it is written, for the manifest
+     */
+    public OutputOptions setChecksums(boolean checksums) {
+        this.checksums = checksums;
+        return this;
+    }
+}
@@ -0,0 +1,126 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A flat file written for an earlier release, whose rows are copied into the flat file for a Delta release applied to
+ * that release for the CTPPs the Delta release did not change. The whole file is read into memory when it is opened,
+ * so the new flat file can be written over it.
+ * <p>
+ * All the rows of a CTPP are written together, so each CTPP's rows are indexed as one run of bytes starting with the
+ * CTPP's id. A gzip compressed flat file is inflated into memory when it is read.
+ */
+class PreviousFlatFile {
+
+    private final byte[] bytes;
+
+    /** Offset, length and number of rows of each CTPP's rows, by CTPP id */
+    private final LongObjectMap<int[]> rows = new LongObjectMap<>();
+
+    /**
+     * @param header the header row the file must start with, without a line separator
+     * @throws IOException if the file can't be read or is not a flat file with that header
+     */
+    PreviousFlatFile(Path path, String header) throws IOException {
+        bytes = read(path);
+
+        int start = lineEnd(0);
+        if (!header.equals(new String(bytes, 0, trimLineSeparator(0, start), StandardCharsets.UTF_8))) {
+            throw new IOException("Previous flat file " + path + " does not start with the expected header");
+        }
+
+        int[] current = null;
+        long currentId = -1;
+        while (start < bytes.length) {
+            int end = lineEnd(start);
+            long id = parseId(path, start, end);
+            if (current != null && id == currentId) {
+                current[1] = end - current[0];
+                current[2]++;
+            } else {
+                if (rows.containsKey(id)) {
+                    throw new IOException(
+                        "Previous flat file " + path + " has rows for CTPP " + id + " in more than one place");
+                }
+                currentId = id;
+                current = new int[] { start, end - start, 1 };
+                rows.put(id, current);
+            }
+            start = end;
+        }
+    }
+
+    private static byte[] read(Path path) throws IOException {
+        byte[] file = Files.readAllBytes(path);
+        if (file.length < 2 || (file[0] & 0xff) != 0x1f || (file[1] & 0xff) != 0x8b) {
+            return file;
+        }
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(file), 1 << 16)) {
+            ByteArrayOutputStream inflated = new ByteArrayOutputStream(file.length * 4);
+            byte[] buffer = new byte[1 << 16];
+            for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                inflated.write(buffer, 0, read);
+            }
+            return inflated.toByteArray();
+        }
+    }
+
+    /**
+     * Copies the rows the file has for the CTPP to the writer
+     *
+     * @return false if the file has no rows for the CTPP, so they must be resolved again
+     */
+    boolean copyRows(long ctppId, CsvRowWriter writer) throws IOException {
+        int[] ctppRows = rows.get(ctppId);
+        if (ctppRows == null) {
+            return false;
+        }
+        writer.copyRows(bytes, ctppRows[0], ctppRows[1], ctppRows[2]);
+        return true;
+    }
+
+    /**
+     * @return the number of CTPPs the file has rows for
+     */
+    int size() {
+        return rows.size();
+    }
+
+    /**
+     * @return the offset after the line separator ending the line starting at <code>start</code>
+     */
+    private int lineEnd(int start) {
+        int i = start;
+        while (i < bytes.length && bytes[i] != '\n') {
+            i++;
+        }
+        return Math.min(i + 1, bytes.length);
+    }
+
+    private int trimLineSeparator(int start, int end) {
+        while (end > start && (bytes[end - 1] == '\n' || bytes[end - 1] == '\r')) {
+            end--;
+        }
+        return end;
+    }
+
+    private long parseId(Path path, int start, int end) throws IOException {
+        long id = 0;
+        int i = start;
+        while (i < end && bytes[i] >= '0' && bytes[i] <= '9') {
+            id = id * 10 + (bytes[i++] - '0');
+        }
+        if (i == start || i == end || bytes[i] != ',') {
+            throw new IOException(
+                "Previous flat file " + path + " has a row not starting with a CTPP id at byte " + start);
+        }
+        return id;
+    }
+}
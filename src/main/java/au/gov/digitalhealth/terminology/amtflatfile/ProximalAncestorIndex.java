@@ -0,0 +1,150 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * For each AMT concept class used to build a flat file row, holds the most proximal ancestors of that class for every
+ * concept they are looked up for, for example the MPUUs of each TPUU or the TPPs of each CTPP. Redundant ancestors,
+ * those which are ancestors of another matching ancestor, are excluded. The index is built once after the transitive
+ * closure has been calculated so that looking up a concept's parents while writing rows is a map lookup rather than a
+ * walk over all of its ancestors and theirs. A concept's parents of a class iterate in the order they did when
+ * they were collected in a HashSet, see {@link #inHashOrder(List, int, int)}.
+ */
+class ProximalAncestorIndex {
+
+    /**
+     * The class of ancestor looked up, mapped to the class of concept it is looked up for. Matching ancestors which are
+     * themselves of the class being looked up for are ignored.
+     */
+    private static final Map<AmtConcept, AmtConcept> LOOKUPS = new EnumMap<>(AmtConcept.class);
+
+    static {
+        LOOKUPS.put(AmtConcept.TPP, AmtConcept.CTPP);
+        LOOKUPS.put(AmtConcept.MPP, AmtConcept.TPP);
+        LOOKUPS.put(AmtConcept.TP, AmtConcept.TPUU);
+        LOOKUPS.put(AmtConcept.MPUU, AmtConcept.TPUU);
+        LOOKUPS.put(AmtConcept.MP, AmtConcept.MPUU);
+    }
+
+    private final Map<AmtConcept, LongObjectMap<Set<Concept>>> index = new EnumMap<>(AmtConcept.class);
+
+    ProximalAncestorIndex(Collection<Concept> concepts) {
+        for (Map.Entry<AmtConcept, AmtConcept> lookup : LOOKUPS.entrySet()) {
+            LongObjectMap<Set<Concept>> parents = new LongObjectMap<>();
+            for (Concept concept : concepts) {
+                if (concept.hasAncestor(lookup.getValue().getId()) && !AmtConcept.isEnumValue(concept.getId())) {
+                    parents.put(concept.getId(), calculate(lookup.getKey(), lookup.getValue(), concept));
+                }
+            }
+            index.put(lookup.getKey(), parents);
+        }
+    }
+
+    /**
+     * @return the most proximal ancestors of <code>concept</code> that are of the <code>parentType</code> AMT class, but
+     *         are not themselves of the <code>current</code> class
+     */
+    Set<Concept> get(AmtConcept parentType, AmtConcept current, Concept concept) {
+        if (LOOKUPS.get(parentType) == current) {
+            Set<Concept> parents = index.get(parentType).get(concept.getId());
+            if (parents != null) {
+                return parents;
+            }
+        }
+        // not a lookup made while writing rows, or a concept not of the expected class such as an MPUU used as a TPP's
+        // unit, so work it out the long way
+        return calculate(parentType, current, concept);
+    }
+
+    private static Set<Concept> calculate(AmtConcept parentType, AmtConcept current, Concept concept) {
+        List<Concept> candidates = new ArrayList<>();
+        for (Concept ancestor : concept.getAncestors()) {
+            if (!AmtConcept.isEnumValue(ancestor.getId()) && ancestor.hasAncestor(parentType.getId())
+                    && !ancestor.hasAncestor(current.getId())) {
+                candidates.add(ancestor);
+            }
+        }
+
+        List<Concept> proximal = new ArrayList<>(candidates.size());
+        for (Concept candidate : candidates) {
+            if (!isAncestorOfAny(candidate, candidates)) {
+                proximal.add(candidate);
+            }
+        }
+
+        if (proximal.isEmpty()) {
+            return Collections.emptySet();
+        } else if (proximal.size() == 1) {
+            return Collections.singleton(proximal.get(0));
+        }
+        return inHashOrder(proximal, candidates.size(), concept.getAncestors().size());
+    }
+
+    /**
+     * Rows for a concept with several of these parents, such as an MPUU with several MPs, are written in the order its
+     * parents iterate. That order is kept as it was when the candidates were collected in a HashSet from a HashMap of
+     * the concept's ancestors, so the flat file doesn't change. The HashSet iterated by bucket, with parents sharing a
+     * bucket in the order they were added, which was the HashMap's bucket order. The HashMap was filled by putAll,
+     * sizing it for its ancestors, from a map grown one ancestor at a time. Parents sharing a bucket in both were
+     * in the order the transitive closure added them, which is replaced by id order.
+     *
+     * @param candidates the number of candidates there were before redundant ones were removed
+     * @param ancestors the number of ancestors of the concept the parents are of
+     */
+    private static Set<Concept> inHashOrder(List<Concept> parents, int candidates, int ancestors) {
+        int putAllCapacity = tableSizeFor((int) (ancestors / 0.75f + 1));
+        int grownCapacity = grownCapacity(ancestors);
+        List<Concept> ordered = new ArrayList<>(parents);
+        ordered.sort(Comparator.comparingInt((Concept c) -> bucket(Long.hashCode(c.getId()), putAllCapacity))
+            .thenComparingInt(c -> bucket(Long.hashCode(c.getId()), grownCapacity))
+            .thenComparingLong(Concept::getId));
+
+        // sized as the HashSet was when the candidates were added to it, so that the parents share the same buckets
+        Set<Concept> set = new HashSet<>(grownCapacity(candidates));
+        set.addAll(ordered);
+        return Collections.unmodifiableSet(set);
+    }
+
+    /**
+     * @return the bucket HashMap puts a key with this hash code in, in a table of the capacity
+     */
+    private static int bucket(int hashCode, int capacity) {
+        return (hashCode ^ (hashCode >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * @return the capacity of a HashMap with the default load factor grown from the default capacity to hold the
+     *         entries
+     */
+    private static int grownCapacity(int entries) {
+        int capacity = 16;
+        while (entries > capacity * 3 / 4) {
+            capacity *= 2;
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the smallest power of two at least as large as the value, as HashMap sizes a table
+     */
+    private static int tableSizeFor(int value) {
+        return value <= 1 ? 1 : Integer.highestOneBit(value - 1) << 1;
+    }
+
+    private static boolean isAncestorOfAny(Concept candidate, List<Concept> concepts) {
+        for (Concept concept : concepts) {
+            if (concept.hasAncestor(candidate.getId())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,474 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * Splits an RF2 file into lines and hands each one to a consumer as an {@link Rf2Row} pointing at the line's bytes.
+ * Files on the default file system are memory mapped and parsed in place, anything else (such as an entry read
+ * through a ZIP file system) is streamed through a large reusable buffer.
+ * <p>
+ * A streamed file can instead be read in stages, with inflating, splitting into lines and handling the rows each on
+ * their own thread, so that reading the file takes about as long as its slowest stage rather than all three. Blocks of
+ * whole lines are passed between the stages through bounded queues and reused once handled, so no more than
+ * {@link #STAGED_BLOCKS} blocks are held however far one stage gets ahead of another. Rows are still handled in order,
+ * all on the thread that called {@link #read(Path)}, but are tested against any {@link Rf2RowFilter} as they are split
+ * so the handling stage only sees the rows that pass it.
+ * <p>
+ * The first bytes of each file are checked to be plain text as they are read, before the rows in them are handled,
+ * so a binary file given an RF2 file's name is rejected without a separate pass over it.
+ */
+class Rf2FileReader {
+
+    static final int READ_BUFFER_SIZE = 1 << 20;
+
+    /** How many bytes at the start of a file are checked to be plain text */
+    static final int TEXT_CHECK_SIZE = 8192;
+
+    /** How many blocks of {@link #READ_BUFFER_SIZE} bytes a file read in stages has in flight at once */
+    static final int STAGED_BLOCKS = 4;
+
+    /** Whole lines of a file read in stages, passed from stage to stage */
+    private static class Block {
+
+        private byte[] bytes;
+
+        private ByteBuffer buffer;
+
+        /** Number of bytes of whole lines at the start of the block, the rest is unused */
+        private int length;
+
+        /** Offsets of the start and end of each row to handle, not including line separators */
+        private int[] rowStarts = new int[1 << 14], rowEnds = new int[1 << 14];
+
+        private int rows;
+
+        Block(int size) {
+            setBytes(new byte[size]);
+        }
+
+        void setBytes(byte[] bytes) {
+            this.bytes = bytes;
+            this.buffer = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    /** Passed on by each stage once it has passed on the file's last block, or failed */
+    private static final Block END = new Block(0);
+
+    private final Consumer<Rf2Row> consumer;
+
+    private final Rf2Row row = new Rf2Row();
+
+    private boolean skipLine;
+
+    private long rowsRead;
+
+    private long rowsFiltered;
+
+    private Rf2RowFilter filter = Rf2RowFilter.ALL;
+
+    private long bytesRead;
+
+    /** What is being read, for error messages */
+    private Object source = "input";
+
+    private boolean staged;
+
+    private boolean stageTimes;
+
+    private long inflateNanos, splitNanos, handleNanos;
+
+    Rf2FileReader(Consumer<Rf2Row> consumer, boolean hasHeader) {
+        this.consumer = consumer;
+        this.skipLine = hasHeader;
+    }
+
+    /**
+     * @param filter the rows to hand to the consumer, others are counted and dropped
+     */
+    Rf2FileReader setFilter(Rf2RowFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    /**
+     * @param staged if set a file that is streamed rather than memory mapped is read in stages on separate threads
+     */
+    Rf2FileReader setStaged(boolean staged) {
+        this.staged = staged;
+        return this;
+    }
+
+    void read(Path path) throws IOException {
+        source = path;
+        if (path.getFileSystem().equals(FileSystems.getDefault()) && Files.size(path) <= Integer.MAX_VALUE) {
+            readMapped(path);
+        } else {
+            try (InputStream in = Files.newInputStream(path)) {
+                read(in);
+            }
+        }
+    }
+
+    private void readMapped(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int size = (int) channel.size();
+            MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, size);
+            checkText(buffer, 0, size);
+            bytesRead += size;
+            int remainder = handleLines(buffer, size);
+            if (remainder < size) {
+                handleLine(buffer, remainder, size);
+            }
+        }
+    }
+
+    void read(InputStream in) throws IOException {
+        if (staged) {
+            readStaged(in);
+            return;
+        }
+        byte[] bytes = new byte[READ_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int length = 0;
+        int read;
+        while ((read = in.read(bytes, length, bytes.length - length)) != -1) {
+            if (bytesRead < TEXT_CHECK_SIZE) {
+                checkText(buffer, length, length + read);
+            }
+            length += read;
+            bytesRead += read;
+            int remainder = handleLines(buffer, length);
+            if (remainder == 0 && length == bytes.length) {
+                // a single line longer than the buffer
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                buffer = ByteBuffer.wrap(bytes);
+            } else {
+                System.arraycopy(bytes, remainder, bytes, 0, length - remainder);
+                length -= remainder;
+            }
+        }
+        if (length > 0) {
+            handleLine(buffer, 0, length);
+        }
+    }
+
+    private void readStaged(InputStream in) throws IOException {
+        BlockingQueue<Block> free = new ArrayBlockingQueue<>(STAGED_BLOCKS);
+        for (int i = 0; i < STAGED_BLOCKS; i++) {
+            free.add(new Block(READ_BUFFER_SIZE));
+        }
+        // one more than the blocks there are, so a stage can always pass on END
+        BlockingQueue<Block> inflated = new ArrayBlockingQueue<>(STAGED_BLOCKS + 1);
+        BlockingQueue<Block> split = new ArrayBlockingQueue<>(STAGED_BLOCKS + 1);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Thread inflater = startStage("amt-rf2-inflater", inflated, failure, () -> inflate(in, free, inflated));
+        Thread splitter = startStage("amt-rf2-splitter", split, failure, () -> split(inflated, split));
+        try {
+            for (Block block = split.take(); block != END; block = split.take()) {
+                long start = System.nanoTime();
+                for (int i = 0; i < block.rows; i++) {
+                    consumer.accept(row.set(block.buffer, block.rowStarts[i], block.rowEnds[i]));
+                }
+                handleNanos += System.nanoTime() - start;
+                free.offer(block);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted reading " + source);
+        } finally {
+            // stops the other stages if the consumer failed, and makes their timings visible if it didn't
+            inflater.interrupt();
+            splitter.interrupt();
+            joinUninterruptibly(inflater);
+            joinUninterruptibly(splitter);
+            stageTimes = true;
+        }
+
+        Throwable cause = failure.get();
+        if (cause instanceof IOException) {
+            throw (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        } else if (cause != null) {
+            throw new IOException("Could not read " + source, cause);
+        }
+    }
+
+    private interface Stage {
+        void run() throws IOException, InterruptedException;
+    }
+
+    private static Thread startStage(String name, BlockingQueue<Block> output, AtomicReference<Throwable> failure,
+            Stage stage) {
+        Thread thread = new Thread(() -> {
+            try {
+                stage.run();
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                output.offer(END);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Fills free blocks from the stream, passing on the whole lines in each and carrying the incomplete line at its
+     * end over to the next
+     */
+    private void inflate(InputStream in, BlockingQueue<Block> free, BlockingQueue<Block> inflated)
+            throws IOException, InterruptedException {
+        byte[] carry = new byte[0];
+        int carryLength = 0;
+        boolean end = false;
+        while (!end) {
+            Block block = free.take();
+            long start = System.nanoTime();
+            if (block.bytes.length < carryLength * 2) {
+                block.setBytes(new byte[carryLength * 2]);
+            }
+            System.arraycopy(carry, 0, block.bytes, 0, carryLength);
+            int length = carryLength;
+            int whole = -1;
+            while (whole < 0) {
+                if (length == block.bytes.length) {
+                    whole = lastLineEnd(block.bytes, length);
+                    if (whole < 0) {
+                        // a single line longer than the block
+                        block.setBytes(Arrays.copyOf(block.bytes, block.bytes.length * 2));
+                    }
+                } else {
+                    int read = in.read(block.bytes, length, block.bytes.length - length);
+                    if (read == -1) {
+                        end = true;
+                        whole = length;
+                    } else {
+                        if (bytesRead < TEXT_CHECK_SIZE) {
+                            checkText(block.buffer, length, length + read);
+                        }
+                        length += read;
+                        bytesRead += read;
+                    }
+                }
+            }
+            carryLength = length - whole;
+            if (carry.length < carryLength) {
+                carry = new byte[carryLength * 2];
+            }
+            System.arraycopy(block.bytes, whole, carry, 0, carryLength);
+            block.length = whole;
+            inflateNanos += System.nanoTime() - start;
+            inflated.put(block);
+        }
+    }
+
+    /**
+     * @return the offset just past the last line separator in the first <code>length</code> bytes, or -1 if there is
+     *         none
+     */
+    private static int lastLineEnd(byte[] bytes, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (bytes[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the rows to handle in the blocks, including a last line of the file without a line separator
+     */
+    private void split(BlockingQueue<Block> inflated, BlockingQueue<Block> split) throws InterruptedException {
+        Rf2Row cursor = new Rf2Row();
+        for (Block block = inflated.take(); block != END; block = inflated.take()) {
+            long start = System.nanoTime();
+            byte[] bytes = block.bytes;
+            block.rows = 0;
+            int lineStart = 0;
+            for (int i = 0; i < block.length; i++) {
+                if (bytes[i] == '\n') {
+                    addRow(block, cursor, lineStart, i);
+                    lineStart = i + 1;
+                }
+            }
+            if (lineStart < block.length) {
+                addRow(block, cursor, lineStart, block.length);
+            }
+            splitNanos += System.nanoTime() - start;
+            split.put(block);
+        }
+    }
+
+    private void addRow(Block block, Rf2Row cursor, int start, int end) {
+        int rowEnd = selectRow(cursor, block.buffer, start, end);
+        if (rowEnd >= 0) {
+            if (block.rows == block.rowStarts.length) {
+                block.rowStarts = Arrays.copyOf(block.rowStarts, block.rows * 2);
+                block.rowEnds = Arrays.copyOf(block.rowEnds, block.rows * 2);
+            }
+            block.rowStarts[block.rows] = start;
+            block.rowEnds[block.rows] = rowEnd;
+            block.rows++;
+        }
+    }
+
+    /**
+     * Checks that the bytes from <code>start</code> to <code>end</code> in the buffer, as far as they are within the
+     * first {@link #TEXT_CHECK_SIZE} bytes of the file, are plain text, which is to say contain no control characters
+     * other than whitespace and escape. <code>start</code> is at offset {@link #bytesRead} in the file.
+     *
+     * @throws IOException if they aren't
+     */
+    private void checkText(ByteBuffer buffer, int start, int end) throws IOException {
+        int checkEnd = (int) Math.min(end, start + TEXT_CHECK_SIZE - bytesRead);
+        for (int i = start; i < checkEnd; i++) {
+            byte b = buffer.get(i);
+            if (b >= 0 && b < 0x20 && b != '\t' && b != '\n' && b != '\r' && b != '\f' && b != 0x1b) {
+                throw new IOException("File " + source + " is not a plain text file as expected, found byte 0x"
+                        + Integer.toHexString(b) + " at offset " + (bytesRead + i - start));
+            }
+        }
+    }
+
+    /**
+     * Handles every complete line in the first <code>length</code> bytes of the buffer.
+     *
+     * @return the offset of the first byte of the trailing incomplete line, or <code>length</code> if there is none
+     */
+    private int handleLines(ByteBuffer buffer, int length) {
+        int lineStart = 0;
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(i) == '\n') {
+                handleLine(buffer, lineStart, i);
+                lineStart = i + 1;
+            }
+        }
+        return lineStart;
+    }
+
+    private void handleLine(ByteBuffer buffer, int start, int end) {
+        int rowEnd = selectRow(row, buffer, start, end);
+        if (rowEnd >= 0) {
+            consumer.accept(filter.isAll() ? row.set(buffer, start, rowEnd) : row);
+        }
+    }
+
+    /**
+     * Works out whether a line is a row to hand to the consumer, counting it if it is a row at all. If there is a
+     * filter the cursor is pointed at the row to test it.
+     *
+     * @return the end of the row not including any carriage return, or -1 if the line is the header, is blank or
+     *         doesn't pass the filter
+     */
+    private int selectRow(Rf2Row cursor, ByteBuffer buffer, int start, int end) {
+        if (skipLine) {
+            skipLine = false;
+            return -1;
+        }
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        if (end == start) {
+            return -1;
+        }
+        rowsRead++;
+        if (!filter.isAll()) {
+            cursor.set(buffer, start, end);
+            boolean passes;
+            try {
+                passes = filter.test(cursor);
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Failed filtering row: " + cursor + " of " + source, e);
+            }
+            if (!passes) {
+                rowsFiltered++;
+                return -1;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * @return the number of rows read so far, not counting the header, including those dropped by the filter
+     */
+    long getRowsRead() {
+        return rowsRead;
+    }
+
+    /**
+     * @return the number of rows dropped by the filter so far, the rest having been passed to the consumer
+     */
+    long getRowsFiltered() {
+        return rowsFiltered;
+    }
+
+    /**
+     * @return the number of bytes read so far, after any decompression
+     */
+    long getBytesRead() {
+        return bytesRead;
+    }
+
+    /**
+     * @return true if a file has been read in stages, so the time spent in each stage is known
+     */
+    boolean hasStageTimes() {
+        return stageTimes;
+    }
+
+    /**
+     * @return the time spent reading and inflating a file read in stages, not counting waiting for free blocks
+     */
+    long getInflateNanos() {
+        return inflateNanos;
+    }
+
+    /**
+     * @return the time spent splitting a file read in stages into lines
+     */
+    long getSplitNanos() {
+        return splitNanos;
+    }
+
+    /**
+     * @return the time spent handling the rows of a file read in stages, including the consumer
+     */
+    long getHandleNanos() {
+        return handleNanos;
+    }
+}
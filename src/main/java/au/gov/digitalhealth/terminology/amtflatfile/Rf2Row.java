@@ -0,0 +1,201 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A reusable cursor over one tab delimited row of an RF2 file. The cursor is pointed at the bytes of a line in place
+ * and only records where each field starts and ends, so rows can be tested and rejected on fields like active and
+ * moduleId without allocating anything. Strings are only created when {@link #getString(int)} is called for a field
+ * that is actually kept.
+ * <p>
+ * A cursor, and any {@link CharSequence} obtained from {@link #getField(int)}, is only valid until it is moved to the
+ * next row.
+ */
+public class Rf2Row {
+
+    private static final byte TAB = '\t';
+
+    private ByteBuffer buffer;
+
+    private int start;
+
+    private int end;
+
+    private int fieldCount;
+
+    private int[] fieldStarts = new int[16];
+
+    private int[] fieldEnds = new int[16];
+
+    private Field[] fields = new Field[0];
+
+    /**
+     * Points this cursor at the line held in <code>buffer</code> between <code>start</code> (inclusive) and
+     * <code>end</code> (exclusive), which must not include the line terminator.
+     */
+    public Rf2Row set(ByteBuffer buffer, int start, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.end = end;
+        fieldCount = 0;
+        int fieldStart = start;
+        for (int i = start; i < end; i++) {
+            if (buffer.get(i) == TAB) {
+                addField(fieldStart, i);
+                fieldStart = i + 1;
+            }
+        }
+        addField(fieldStart, end);
+        return this;
+    }
+
+    private void addField(int fieldStart, int fieldEnd) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+        }
+        fieldStarts[fieldCount] = fieldStart;
+        fieldEnds[fieldCount] = fieldEnd;
+        fieldCount++;
+    }
+
+    public int getFieldCount() {
+        return fieldCount;
+    }
+
+    public int getFieldLength(int field) {
+        checkField(field);
+        return fieldEnds[field] - fieldStarts[field];
+    }
+
+    /**
+     * Compares the raw bytes of a field with <code>value</code>, which is expected to be ASCII or UTF-8 encoded.
+     */
+    public boolean fieldEquals(int field, byte[] value) {
+        checkField(field);
+        int fieldStart = fieldStarts[field];
+        if (fieldEnds[field] - fieldStart != value.length) {
+            return false;
+        }
+        for (int i = 0; i < value.length; i++) {
+            if (buffer.get(fieldStart + i) != value[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a field holding an unsigned decimal number, such as an SCTID, straight from the row's bytes.
+     *
+     * @throws NumberFormatException if the field is empty or not a number
+     */
+    public long getLong(int field) {
+        checkField(field);
+        int fieldStart = fieldStarts[field];
+        int fieldEnd = fieldEnds[field];
+        if (fieldEnd == fieldStart || fieldEnd - fieldStart > 18) {
+            // empty, or possibly too big to accumulate without overflow so let Long report the problem
+            return Long.parseLong(getString(field));
+        }
+        long result = 0;
+        for (int i = fieldStart; i < fieldEnd; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("For input string: \"" + getString(field) + "\"");
+            }
+            result = result * 10 + digit;
+        }
+        return result;
+    }
+
+    /**
+     * Decodes a field as UTF-8, this allocates and should only be used for fields that are being kept.
+     */
+    public String getString(int field) {
+        checkField(field);
+        return decode(fieldStarts[field], fieldEnds[field]);
+    }
+
+    /**
+     * Copies the raw bytes of a field into <code>destination</code> starting at <code>offset</code>, which must have
+     * room for {@link #getFieldLength(int)} bytes.
+     */
+    public void copyField(int field, byte[] destination, int offset) {
+        checkField(field);
+        int fieldStart = fieldStarts[field];
+        int length = fieldEnds[field] - fieldStart;
+        for (int i = 0; i < length; i++) {
+            destination[offset + i] = buffer.get(fieldStart + i);
+        }
+    }
+
+    /**
+     * Returns a view of a field without copying it. Each byte is treated as one character, which is correct for the
+     * identifier, flag and date fields of RF2 files but not for terms - use {@link #getString(int)} for those.
+     */
+    public CharSequence getField(int field) {
+        checkField(field);
+        if (fields.length < fieldCount) {
+            Field[] grown = Arrays.copyOf(fields, fieldStarts.length);
+            for (int i = fields.length; i < grown.length; i++) {
+                grown[i] = new Field(i);
+            }
+            fields = grown;
+        }
+        return fields[field];
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= fieldCount) {
+            throw new ArrayIndexOutOfBoundsException("Row has " + fieldCount + " fields, no field " + field);
+        }
+    }
+
+    private String decode(int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(from + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return buffer == null ? "" : decode(start, end);
+    }
+
+    private class Field implements CharSequence {
+
+        private final int index;
+
+        Field(int index) {
+            this.index = index;
+        }
+
+        @Override
+        public int length() {
+            return fieldEnds[index] - fieldStarts[index];
+        }
+
+        @Override
+        public char charAt(int i) {
+            if (i < 0 || i >= length()) {
+                throw new IndexOutOfBoundsException("Index " + i + " outside field of length " + length());
+            }
+            return (char) (buffer.get(fieldStarts[index] + i) & 0xff);
+        }
+
+        @Override
+        public CharSequence subSequence(int from, int to) {
+            return toString().subSequence(from, to);
+        }
+
+        @Override
+        public String toString() {
+            return decode(fieldStarts[index], fieldEnds[index]);
+        }
+    }
+}
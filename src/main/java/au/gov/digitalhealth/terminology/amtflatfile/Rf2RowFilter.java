@@ -0,0 +1,75 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * The rows of an RF2 file a handler needs, declared as the values some of their fields must have, such as active or
+ * moduleId. Fields are compared by their raw bytes, so rows that aren't needed are dropped before anything in them is
+ * parsed or allocated, and an {@link Rf2FileReader} given a filter only hands the consumer the rows that pass it.
+ * Conditions are tested in the order they were added, so the one most rows fail should come first.
+ * <p>
+ * Filters are immutable, so can be shared between threads and held as constants.
+ */
+final class Rf2RowFilter implements Predicate<Rf2Row> {
+
+    /** Passes every row */
+    static final Rf2RowFilter ALL = new Rf2RowFilter(new int[0], new byte[0][][]);
+
+    private final int[] fields;
+
+    /** The values each of {@link #fields} may have */
+    private final byte[][][] values;
+
+    private Rf2RowFilter(int[] fields, byte[][][] values) {
+        this.fields = fields;
+        this.values = values;
+    }
+
+    /**
+     * @return a filter passing rows whose field has one of the values
+     */
+    static Rf2RowFilter where(int field, byte[]... values) {
+        return ALL.and(field, values);
+    }
+
+    /**
+     * @return a filter passing rows that pass this filter and whose field has one of the values
+     */
+    Rf2RowFilter and(int field, byte[]... values) {
+        if (values.length == 0) {
+            throw new IllegalArgumentException("Field " + field + " must be allowed at least one value");
+        }
+        int[] andFields = Arrays.copyOf(fields, fields.length + 1);
+        andFields[fields.length] = field;
+        byte[][][] andValues = Arrays.copyOf(this.values, this.values.length + 1);
+        andValues[this.values.length] = values.clone();
+        return new Rf2RowFilter(andFields, andValues);
+    }
+
+    /**
+     * @throws ArrayIndexOutOfBoundsException if the row is missing a field the filter tests
+     */
+    @Override
+    public boolean test(Rf2Row row) {
+        for (int i = 0; i < fields.length; i++) {
+            if (!matches(row, fields[i], values[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Rf2Row row, int field, byte[][] values) {
+        for (byte[] value : values) {
+            if (row.fieldEquals(field, value)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isAll() {
+        return fields.length == 0;
+    }
+}
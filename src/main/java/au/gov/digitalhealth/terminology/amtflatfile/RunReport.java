@@ -0,0 +1,214 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Records how long each phase of a run takes and what it uses, so that runs against different releases or versions
+ * of this tool can be compared. For each phase the wall time, the CPU time of the thread running it and of the whole
+ * process, the bytes allocated by the thread running it and the heap in use once it finishes are recorded, along with
+ * any counts the phase adds, such as the rows read and kept from an RF2 file. Phases can run concurrently, and can be
+ * nested within other phases.
+ * <p>
+ * CPU time and allocation are only recorded where the JVM supports measuring them, and are otherwise -1. The work of
+ * other threads a phase hands work to is included in the process CPU time but not the thread CPU time or allocation.
+ */
+public class RunReport {
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final OperatingSystemMXBean OPERATING_SYSTEM = ManagementFactory.getOperatingSystemMXBean();
+
+    private final Instant started = Instant.now();
+
+    private final long startNanos = System.nanoTime();
+
+    private final List<Phase> phases = new ArrayList<>();
+
+    private final Map<String, Object> counts = new LinkedHashMap<>();
+
+    public RunReport() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Starts timing a phase on the calling thread, which is recorded when the phase is closed
+     */
+    public Phase start(String name) {
+        return new Phase(name);
+    }
+
+    /**
+     * Records a count or value for the whole run, such as the number of concepts loaded
+     */
+    public synchronized RunReport add(String name, Object value) {
+        counts.put(name, value);
+        return this;
+    }
+
+    public synchronized List<Phase> getPhases() {
+        return new ArrayList<>(phases);
+    }
+
+    public synchronized Map<String, Object> getCounts() {
+        return new LinkedHashMap<>(counts);
+    }
+
+    private synchronized void finished(Phase phase) {
+        phases.add(phase);
+    }
+
+    /**
+     * @return the sum of the peak usage of each heap memory pool since the report was created, which can be more than
+     *         the heap ever used at once as the pools peak at different times
+     */
+    public long getPeakHeapBytes() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    /**
+     * Writes the report as a JSON object, with the phases in the order they finished
+     */
+    public void writeJson(Writer out) throws IOException {
+        JsonWriter json = new JsonWriter(out);
+        json.beginObject();
+        json.name("started").value(started.toString());
+        json.name("wallMillis").value(millis(System.nanoTime() - startNanos));
+        json.name("processCpuMillis").value(millis(processCpuNanos()));
+        json.name("peakHeapBytes").value(getPeakHeapBytes());
+        json.name("counts").beginObject();
+        for (Entry<String, Object> count : getCounts().entrySet()) {
+            json.name(count.getKey()).value(count.getValue());
+        }
+        json.endObject();
+        json.name("phases").beginArray();
+        for (Phase phase : getPhases()) {
+            json.beginObject();
+            json.name("name").value(phase.name);
+            json.name("thread").value(phase.thread);
+            json.name("startMillis").value(millis(phase.startNanos - startNanos));
+            json.name("wallMillis").value(millis(phase.wallNanos));
+            json.name("threadCpuMillis").value(millis(phase.threadCpuNanos));
+            json.name("processCpuMillis").value(millis(phase.processCpuNanos));
+            json.name("allocatedBytes").value(phase.allocatedBytes);
+            json.name("heapUsedBytes").value(phase.heapUsedBytes);
+            for (Entry<String, Long> count : phase.counts.entrySet()) {
+                json.name(count.getKey()).value(count.getValue());
+            }
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        out.write(System.lineSeparator());
+    }
+
+    private static long millis(long nanos) {
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    private static long threadCpuNanos() {
+        try {
+            return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        } catch (UnsupportedOperationException e) {
+            return -1;
+        }
+    }
+
+    private static long processCpuNanos() {
+        if (OPERATING_SYSTEM instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) OPERATING_SYSTEM).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long threadAllocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+        return -1;
+    }
+
+    private static long difference(long start, long end) {
+        return start < 0 || end < 0 ? -1 : end - start;
+    }
+
+    /**
+     * A phase being timed, which must be closed by the thread that started it
+     */
+    public class Phase implements AutoCloseable {
+
+        private final String name;
+
+        private final String thread = Thread.currentThread().getName();
+
+        private final Map<String, Long> counts = new LinkedHashMap<>();
+
+        private final long startNanos = System.nanoTime();
+
+        private final long startThreadCpuNanos = threadCpuNanos();
+
+        private final long startProcessCpuNanos = processCpuNanos();
+
+        private final long startAllocatedBytes = threadAllocatedBytes();
+
+        private long wallNanos, threadCpuNanos, processCpuNanos, allocatedBytes, heapUsedBytes;
+
+        private Phase(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Records a count for this phase, such as the number of rows read
+         */
+        public Phase add(String name, long value) {
+            counts.put(name, value);
+            return this;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getWallMillis() {
+            return millis(wallNanos);
+        }
+
+        public Map<String, Long> getCounts() {
+            return counts;
+        }
+
+        @Override
+        public void close() {
+            wallNanos = System.nanoTime() - startNanos;
+            threadCpuNanos = difference(startThreadCpuNanos, threadCpuNanos());
+            processCpuNanos = difference(startProcessCpuNanos, processCpuNanos());
+            allocatedBytes = difference(startAllocatedBytes, threadAllocatedBytes());
+            heapUsedBytes = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+            finished(this);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Holds terms, such as preferred terms and FSNs, as UTF-8 in one contiguous byte array rather than as a
+ * <code>String</code> per term. A term is referred to by a <code>long</code> handle holding its offset and length in
+ * the array, so concepts hold two primitive handles and terms are written to output as bytes without ever being
+ * decoded.
+ * <p>
+ * Identical terms are stored once while the release is being loaded. A term which is the start of a related term,
+ * like a preferred term and its concept's FSN which is usually the preferred term followed by a semantic tag, shares
+ * the related term's bytes. A term which starts with a related term added just before it extends that term in place.
+ * <p>
+ * Terms are only ever added by one thread at a time, but can be read by any number of threads while they are added.
+ */
+class TermStore {
+
+    /** Handle for no term, which is different to the handle of an empty term */
+    static final long NO_TERM = -1L;
+
+    private static final float LOAD_FACTOR = 0.6f;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private static final byte[] NULL = "null".getBytes(StandardCharsets.US_ASCII);
+
+    /** Replaced rather than modified in place when it grows, so readers always see complete terms */
+    private volatile byte[] arena = EMPTY;
+
+    private int size;
+
+    /** Handles of the terms stored so far by content, null until the first term is stored or once compacted */
+    private long[] index;
+
+    private boolean deduplicating = true;
+
+    private int indexed;
+
+    private int mask;
+
+    TermStore() {
+    }
+
+    /**
+     * Creates a compacted store holding terms previously written by {@link #writeTo(OutputStream)}, so that handles to
+     * those terms are valid in this store.
+     */
+    TermStore(byte[] terms) {
+        arena = terms;
+        size = terms.length;
+        deduplicating = false;
+    }
+
+    /**
+     * Adds the term held in a field of an RF2 row.
+     *
+     * @param related handle of a term this one is likely to share bytes with, or {@link #NO_TERM}
+     */
+    long add(Rf2Row row, int field, long related) {
+        int length = row.getFieldLength(field);
+        ensureCapacity(length);
+        row.copyField(field, arena, size);
+        return commit(length, related);
+    }
+
+    /**
+     * @param related handle of a term this one is likely to share bytes with, or {@link #NO_TERM}
+     */
+    long add(String term, long related) {
+        byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, arena, size, bytes.length);
+        return commit(bytes.length, related);
+    }
+
+    /**
+     * Decides where a term just copied to the end of the arena is kept, only moving the end of the arena past it if
+     * it can't share the bytes of a term already stored.
+     */
+    private long commit(int length, long related) {
+        byte[] bytes = arena;
+        if (related != NO_TERM) {
+            int relatedOffset = offset(related);
+            int relatedLength = length(related);
+            if (length <= relatedLength && regionEquals(bytes, relatedOffset, size, length)) {
+                return handle(relatedOffset, length);
+            }
+            if (relatedOffset + relatedLength == size && length > relatedLength
+                    && regionEquals(bytes, relatedOffset, size, relatedLength)) {
+                // the related term is the last one stored, so append just the rest of this term to it
+                System.arraycopy(bytes, size + relatedLength, bytes, size, length - relatedLength);
+                size += length - relatedLength;
+                return index(handle(relatedOffset, length));
+            }
+        }
+
+        if (index != null) {
+            int slot = hash(bytes, size, length) & mask;
+            while (index[slot] != NO_TERM) {
+                long existing = index[slot];
+                if (length(existing) == length && regionEquals(bytes, offset(existing), size, length)) {
+                    return existing;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        long handle = handle(size, length);
+        size += length;
+        return index(handle);
+    }
+
+    private long index(long handle) {
+        if (!deduplicating) {
+            return handle;
+        } else if (index == null) {
+            allocateIndex(16);
+        }
+        int slot = hash(arena, offset(handle), length(handle)) & mask;
+        while (index[slot] != NO_TERM) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = handle;
+        if (++indexed > index.length * LOAD_FACTOR) {
+            long[] old = index;
+            allocateIndex(old.length << 1);
+            for (long existing : old) {
+                if (existing != NO_TERM) {
+                    int newSlot = hash(arena, offset(existing), length(existing)) & mask;
+                    while (index[newSlot] != NO_TERM) {
+                        newSlot = (newSlot + 1) & mask;
+                    }
+                    index[newSlot] = existing;
+                }
+            }
+        }
+        return handle;
+    }
+
+    private void allocateIndex(int capacity) {
+        index = new long[capacity];
+        Arrays.fill(index, NO_TERM);
+        mask = capacity - 1;
+    }
+
+    private void ensureCapacity(int length) {
+        if ((long) size + length > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Term store is full, " + size + " bytes of terms stored");
+        }
+        if (size + length > arena.length) {
+            int capacity = Math.max(arena.length + (arena.length >> 1), 1 << 16);
+            arena = Arrays.copyOf(arena, (int) Math.min(Math.max(capacity, (long) size + length), Integer.MAX_VALUE - 8));
+        }
+    }
+
+    /**
+     * Releases the index used to find duplicate terms and trims the arena to the terms stored. Terms can still be
+     * added afterwards but are no longer deduplicated.
+     */
+    void compact() {
+        deduplicating = false;
+        index = null;
+        if (arena.length > size) {
+            arena = Arrays.copyOf(arena, size);
+        }
+    }
+
+    String getString(long handle) {
+        if (handle == NO_TERM) {
+            return null;
+        }
+        return new String(arena, offset(handle), length(handle), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the UTF-8 bytes of a term, or the characters <code>null</code> for {@link #NO_TERM} as concatenating a
+     * null string would.
+     */
+    void write(long handle, OutputStream out) throws IOException {
+        if (handle == NO_TERM) {
+            out.write(NULL);
+        } else {
+            out.write(arena, offset(handle), length(handle));
+        }
+    }
+
+    /**
+     * Writes all the bytes stored, which can be loaded back with {@link #TermStore(byte[])}
+     */
+    void writeTo(OutputStream out) throws IOException {
+        out.write(arena, 0, size);
+    }
+
+    /**
+     * @return the number of bytes stored, shared terms are only counted once
+     */
+    int size() {
+        return size;
+    }
+
+    static int length(long handle) {
+        return (int) handle;
+    }
+
+    private static int offset(long handle) {
+        return (int) (handle >>> 32);
+    }
+
+    private static long handle(int offset, int length) {
+        return ((long) offset << 32) | length;
+    }
+
+    private static boolean regionEquals(byte[] bytes, int first, int second, int length) {
+        for (int i = 0; i < length; i++) {
+            if (bytes[first + i] != bytes[second + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = length;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return LongObjectMap.hash(hash);
+    }
+}
@@ -1,99 +1,121 @@
 package au.gov.digitalhealth.terminology.amtflatfile;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 
-import org.apache.tika.Tika;
-
+/**
+ * Finds the RF2 files an {@link AmtCache} reads in a release, by default those of a Snapshot release. Files are picked
+ * by name and size alone, both of which a ZIP file system has from its central directory, so finding them doesn't read
+ * any entry however many other files the release bundles.
+ */
 class TerminologyFileVisitor extends SimpleFileVisitor<Path> {
 
+    static final String SNAPSHOT = "Snapshot";
+
+    static final String DELTA = "Delta";
+
     private static final Logger logger = Logger.getLogger(TerminologyFileVisitor.class.getCanonicalName());
 
     private static final int MAX_FILE_SIZE = 1000000000;
 
+    /** The part of an RF2 file name after its type and release type, with the release date */
+    private static final Pattern RF2_FILE_SUFFIX = Pattern.compile("_AU1000036_\\d{8}\\.txt$");
+
+    enum FileType {
+        CONCEPT, RELATIONSHIP, DESCRIPTION, LANGUAGE_REFSET, ARTG_ID_REFSET, HISTORICAL_ASSOCIATION_REFSET
+    }
+
+    /** The types of the RF2 files read, by their file names up to {@link #RF2_FILE_SUFFIX} */
+    private final Map<String, FileType> fileTypes = new HashMap<>();
+
     private Path conceptFile, relationshipFile, descriptionFile, languageRefsetFile, artgIdRefsetFile;
     private List<Path> historicalAssociationRefsetFiles = new ArrayList<>();
 
-    private Tika tika = new Tika();
+    TerminologyFileVisitor() {
+        this(SNAPSHOT);
+    }
+
+    TerminologyFileVisitor(String releaseType) {
+        fileTypes.put("sct2_Concept_" + releaseType, FileType.CONCEPT);
+        fileTypes.put("sct2_Relationship_" + releaseType, FileType.RELATIONSHIP);
+        fileTypes.put("sct2_Description_" + releaseType + "-en-AU", FileType.DESCRIPTION);
+        fileTypes.put("der2_cRefset_Language" + releaseType + "-en-AU", FileType.LANGUAGE_REFSET);
+        fileTypes.put("der2_iRefset_ARTGId" + releaseType, FileType.ARTG_ID_REFSET);
+        for (String association : Arrays.asList("AssociationReference", "AlternativeAssociation",
+            "MovedFromAssociationReference", "MovedToAssociationReference", "PossiblyEquivalentToAssociation",
+            "ReplacedByAssociation", "SameAsAssociation", "WasAAssociation")) {
+            fileTypes.put("der2_cRefset_" + association + releaseType, FileType.HISTORICAL_ASSOCIATION_REFSET);
+        }
+    }
 
     @Override
-    public FileVisitResult visitFile(Path file, BasicFileAttributes attr) throws IOException {
+    public FileVisitResult visitFile(Path file, BasicFileAttributes attr) {
         if (attr.isRegularFile()) {
-            String fileName = file.getFileName().toString();
-            if (fileName.matches("sct2_Concept_Snapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    conceptFile = file;
-                }
-            } else if (fileName.matches("sct2_Relationship_Snapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    relationshipFile = file;
-                }
-            } else if (fileName.matches("sct2_Description_Snapshot-en-AU_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    descriptionFile = file;
-                }
-            } else if (fileName.matches("der2_cRefset_LanguageSnapshot-en-AU_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    languageRefsetFile = file;
-                }
-            } else if (fileName.matches("der2_iRefset_ARTGIdSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    artgIdRefsetFile = file;
-                }
-            } else if (fileName.matches("der2_cRefset_AssociationReferenceSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_AlternativeAssociationSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_MovedFromAssociationReferenceSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_MovedToAssociationReferenceSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_PossiblyEquivalentToAssociationSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_ReplacedByAssociationSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_SameAsAssociationSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
-                }
-            } else if (fileName.matches("der2_cRefset_WasAAssociationSnapshot_AU1000036_\\d{8}\\.txt")) {
-                if (verifyFile(file)) {
-                    historicalAssociationRefsetFiles.add(file);
+            FileType type = classify(file.getFileName().toString());
+            if (type != null && verifySize(file, attr.size())) {
+                switch (type) {
+                    case CONCEPT:
+                        conceptFile = file;
+                        break;
+                    case RELATIONSHIP:
+                        relationshipFile = file;
+                        break;
+                    case DESCRIPTION:
+                        descriptionFile = file;
+                        break;
+                    case LANGUAGE_REFSET:
+                        languageRefsetFile = file;
+                        break;
+                    case ARTG_ID_REFSET:
+                        artgIdRefsetFile = file;
+                        break;
+                    case HISTORICAL_ASSOCIATION_REFSET:
+                        historicalAssociationRefsetFiles.add(file);
+                        break;
                 }
             }
         }
         return FileVisitResult.CONTINUE;
     }
 
-    private boolean verifyFile(Path file) throws IOException {
-        if (Files.size(file) > MAX_FILE_SIZE) {
+    /**
+     * @return the type of RF2 file with the name in a release of this visitor's type, or null if it isn't one read
+     */
+    FileType classify(String fileName) {
+        Matcher suffix = RF2_FILE_SUFFIX.matcher(fileName);
+        return suffix.find() ? fileTypes.get(fileName.substring(0, suffix.start())) : null;
+    }
+
+    /**
+     * Checks a file's size, which for a ZIP file system comes from the central directory without reading the entry.
+     * Whether the file is plain text is checked by {@link Rf2FileReader} as it is read.
+     */
+    private boolean verifySize(Path file, long size) {
+        if (size > MAX_FILE_SIZE) {
             logger.warning("File " + file + " was detected for reading but skipped because it is over the maximum file size theshold "
                     + MAX_FILE_SIZE);
             return false;
-        } else if (!tika.detect(file).equals("text/plain")) {
-            logger.warning(
-                "File " + file + " was detected for reading but skipped because it is not a plain text file as expected, detected type was "
-                        + tika.detect(file));
-            return false;
         }
         return true;
     }
@@ -121,6 +143,118 @@ class TerminologyFileVisitor extends SimpleFileVisitor<Path> {
     public List<Path> getHistoricalAssociationRefsetFiles() {
         return historicalAssociationRefsetFiles;
     }
+
+    /**
+     * Copies the detected files into <code>directory</code> and switches this visitor over to the copies. A file
+     * already in the directory with the same size, modification time and CRC as the ZIP entry, left by a previous
+     * extraction, is reused. Anything else in the directory with the name of a file, such as a symlink, is an error.
+     */
+    public void extractTo(Path directory) throws IOException {
+        extractTo(directory, 1);
+    }
+
+    /**
+     * Copies the detected files into <code>directory</code> as {@link #extractTo(Path)} does, inflating up to
+     * <code>parallelism</code> of them at once
+     */
+    public void extractTo(Path directory, int parallelism) throws IOException {
+        Files.createDirectories(directory);
+        List<Path> files = new ArrayList<>(Arrays.asList(conceptFile, relationshipFile, descriptionFile,
+            languageRefsetFile, artgIdRefsetFile));
+        files.addAll(historicalAssociationRefsetFiles);
+
+        List<Path> extracted = new ArrayList<>(files.size());
+        if (parallelism > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, files.size()), r -> {
+                Thread thread = new Thread(r, "amt-rf2-extractor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            try {
+                List<Future<Path>> extractions = new ArrayList<>(files.size());
+                for (Path file : files) {
+                    extractions.add(executor.submit(() -> extract(file, directory)));
+                }
+                for (Future<Path> extraction : extractions) {
+                    extracted.add(extraction.get());
+                }
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                } else if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Could not extract RF2 files", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted extracting RF2 files", e);
+            } finally {
+                executor.shutdownNow();
+            }
+        } else {
+            for (Path file : files) {
+                extracted.add(extract(file, directory));
+            }
+        }
+
+        conceptFile = extracted.get(0);
+        relationshipFile = extracted.get(1);
+        descriptionFile = extracted.get(2);
+        languageRefsetFile = extracted.get(3);
+        artgIdRefsetFile = extracted.get(4);
+        historicalAssociationRefsetFiles = new ArrayList<>(extracted.subList(5, extracted.size()));
+    }
+
+    private Path extract(Path file, Path directory) throws IOException {
+        if (file == null) {
+            return null;
+        }
+        Path target = directory.resolve(file.getFileName().toString());
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && !Files.isRegularFile(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new IOException("Cannot extract " + file + " to " + target + " as it is not a regular file");
+        }
+        if (Files.exists(target, LinkOption.NOFOLLOW_LINKS) && Files.size(target) == Files.size(file)
+                && Files.getLastModifiedTime(target).equals(Files.getLastModifiedTime(file))
+                && crcMatches(file, target)) {
+            logger.info("Reusing previously extracted " + target);
+        } else {
+            // never follow a symlink put in place of the file since it was checked
+            try (InputStream in = Files.newInputStream(file);
+                    OutputStream out = Files.newOutputStream(target, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS)) {
+                byte[] buffer = new byte[Rf2FileReader.READ_BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            Files.setLastModifiedTime(target, Files.getLastModifiedTime(file));
+            logger.info("Extracted " + file + " to " + target);
+        }
+        return target;
+    }
+
+    /**
+     * @return true if the CRC-32 of <code>target</code> is the one recorded for the ZIP entry <code>file</code>, or
+     *         false if it isn't or <code>file</code> isn't in a ZIP file
+     */
+    private static boolean crcMatches(Path file, Path target) throws IOException {
+        Object expected;
+        try {
+            expected = Files.getAttribute(file, "zip:crc");
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return false;
+        }
+        CRC32 crc = new CRC32();
+        try (InputStream in = Files.newInputStream(target, LinkOption.NOFOLLOW_LINKS)) {
+            byte[] buffer = new byte[Rf2FileReader.READ_BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return expected instanceof Number && ((Number) expected).longValue() == crc.getValue();
+    }
     
     public void ensureAllFilesExist() {
     	if(this.getConceptFile() == null) {
@@ -2,12 +2,26 @@ package au.gov.digitalhealth.terminology.amtflatfile;
 
 import static org.testng.Assert.assertTrue;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 import javax.xml.bind.JAXBException;
 import javax.xml.stream.XMLStreamException;
@@ -29,6 +43,8 @@ public class Amt2FlatFileTest {
     private String replacementFile = "target/test-out/replacement.csv";
     private String expectedFile = testResDirectory + "expected.csv";
     private String expectedReplacementFile = testResDirectory + "expectedReplacement.csv";
+
+    private static final String IS_A = "116680003";
 	
 	//Clean up files between tests
 	@AfterMethod()
@@ -97,4 +113,261 @@ public class Amt2FlatFileTest {
         assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(replacementFile), new File(expectedReplacementFile), null),
             "Replacements file as expected");
 	}
+
+    @Test(groups = "parse", priority = 2, description = "Reading the RF2 files in parallel should produce exactly the same output as reading them sequentially")
+    public void parallelOutputMatchesExpected() throws MojoExecutionException, MojoFailureException, IOException {
+
+        Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setInputZipFilePath(inFile);
+        amt2FlatFile.setOutputFilePath(outFile);
+        amt2FlatFile.setReplacementsFilePath(replacementFile);
+        amt2FlatFile.setParallelism(4);
+        amt2FlatFile.execute();
+
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(outFile), new File(expectedFile), null), "AMT flat file content as expected");
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(replacementFile), new File(expectedReplacementFile), null),
+            "Replacements file as expected");
+    }
+
+    @Test(groups = "files", priority = 1, description = "Resolving flat file rows in parallel should report the same errors in the same order as a single thread")
+    public void parallelJUnitMatchesSequential() throws MojoExecutionException, MojoFailureException, IOException {
+        Amt2FlatFile sequential = new Amt2FlatFile();
+        sequential.setInputZipFilePath("target/test-classes/rf2-fails-flat-file-generation-1.0.zip");
+        sequential.setOutputFilePath(outFile);
+        sequential.setJunitFilePath("target/SequentialErrors.xml");
+        sequential.execute();
+
+        Amt2FlatFile parallel = new Amt2FlatFile();
+        parallel.setInputZipFilePath("target/test-classes/rf2-fails-flat-file-generation-1.0.zip");
+        parallel.setOutputFilePath("target/test-out/parallel.csv");
+        parallel.setJunitFilePath("target/ParallelErrors.xml");
+        parallel.setParallelism(4);
+        parallel.execute();
+
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(outFile), new File("target/test-out/parallel.csv"), null),
+            "AMT flat file content the same");
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File("target/SequentialErrors.xml"), new File("target/ParallelErrors.xml"), null),
+            "JUnit results the same");
+    }
+
+    @Test(groups = "parse", priority = 2, description = "Loading only the terms needed should produce exactly the same output as loading all of them")
+    public void lazyTermsOutputMatchesExpected() throws MojoExecutionException, MojoFailureException, IOException {
+
+        Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setInputZipFilePath(inFile);
+        amt2FlatFile.setOutputFilePath(outFile);
+        amt2FlatFile.setReplacementsFilePath(replacementFile);
+        amt2FlatFile.setLazyTerms(true);
+        amt2FlatFile.execute();
+
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(outFile), new File(expectedFile), null), "AMT flat file content as expected");
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(replacementFile), new File(expectedReplacementFile), null),
+            "Replacements file as expected");
+    }
+
+    @Test(groups = "files", priority = 1, description = "Errors reported when terms are loaded lazily should still describe concepts by their FSNs")
+    public void lazyTermsJUnitMatchesEager() throws MojoExecutionException, MojoFailureException, IOException {
+        Amt2FlatFile eager = new Amt2FlatFile();
+        eager.setInputZipFilePath("target/test-classes/rf2-fails-flat-file-generation-1.0.zip");
+        eager.setOutputFilePath(outFile);
+        eager.setJunitFilePath("target/EagerErrors.xml");
+        eager.execute();
+
+        Amt2FlatFile lazy = new Amt2FlatFile();
+        lazy.setInputZipFilePath("target/test-classes/rf2-fails-flat-file-generation-1.0.zip");
+        lazy.setOutputFilePath(outFile);
+        lazy.setJunitFilePath("target/LazyErrors.xml");
+        lazy.setLazyTerms(true);
+        lazy.execute();
+
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File("target/EagerErrors.xml"), new File("target/LazyErrors.xml"), null),
+            "JUnit results the same");
+    }
+
+    @Test(groups = "files", priority = 1, description = "Active concepts with inactive TPs or parents are reported, but the flat file is still written unless exiting on errors")
+    public void inactiveTpsAndParentsOnlyReported() throws MojoExecutionException, MojoFailureException, IOException {
+        Path zip = Paths.get("target/test-out/inactive-links.zip");
+        SyntheticReleaseGenerator generator =
+                new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setInactiveLinks(1).setSeed(3);
+        generator.write(zip);
+
+        Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setInputZipFilePath(zip.toString());
+        amt2FlatFile.setOutputFilePath(outFile);
+        amt2FlatFile.setJunitFilePath("target/InactiveLinksErrors.xml");
+        amt2FlatFile.execute();
+
+        Assert.assertEquals(Files.readAllLines(Paths.get(outFile)).size(), generator.getExpectedRowCount() + 1,
+            "Header and every row written");
+        String errors = new String(Files.readAllBytes(Paths.get("target/InactiveLinksErrors.xml")), StandardCharsets.UTF_8);
+        assertTrue(errors.contains("Active_concept_inactive_TP"), "Inactive TP reported");
+        assertTrue(errors.contains("Active_concept_inactive_parents"), "Inactive parent reported");
+    }
+
+    @Test(groups = "parse", priority = 2, description = "Output from a release loaded from a snapshot should match the output from its RF2 files")
+    public void snapshotOutputMatchesExpected() throws MojoExecutionException, MojoFailureException, IOException {
+        File snapshotDirectory = new File("target/test-out/snapshots");
+        FileUtils.deleteQuietly(snapshotDirectory);
+
+        for (int run = 0; run < 2; run++) {
+            Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+            amt2FlatFile.setInputZipFilePath(inFile);
+            amt2FlatFile.setOutputFilePath(outFile);
+            amt2FlatFile.setReplacementsFilePath(replacementFile);
+            amt2FlatFile.setSnapshotDirectory(snapshotDirectory.getPath());
+            amt2FlatFile.execute();
+
+            Assert.assertEquals(snapshotDirectory.list().length, 1, "One snapshot written and then reused");
+            assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(outFile), new File(expectedFile), null), "AMT flat file content as expected");
+            assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(replacementFile), new File(expectedReplacementFile), null),
+                "Replacements file as expected");
+        }
+    }
+
+    @Test(groups = "parse", priority = 2, description = "Output from a Delta release applied to a snapshot of the earlier release should match the output from the later release's Snapshot release")
+    public void deltaOutputMatchesSnapshot() throws MojoExecutionException, MojoFailureException, IOException {
+        Path earlierZip = Paths.get("target/test-out/delta-earlier.zip");
+        Path laterZip = Paths.get("target/test-out/delta-later.zip");
+        Path deltaZip = Paths.get("target/test-out/delta.zip");
+        File snapshotDirectory = new File("target/test-out/delta-snapshots");
+        String earlierFile = "target/test-out/delta-earlier.csv";
+        String laterFile = "target/test-out/delta-later.csv";
+        FileUtils.deleteQuietly(snapshotDirectory);
+        // large enough that terms fill the start of the snapshot, as they do for a real release
+        new SyntheticReleaseGenerator().setScale(0.02).setFillerConcepts(10).setSeed(7).write(earlierZip);
+        writeChangedRelease(earlierZip, laterZip, deltaZip);
+
+        Amt2FlatFile earlier = new Amt2FlatFile();
+        earlier.setInputZipFilePath(earlierZip.toString());
+        earlier.setOutputFilePath(earlierFile);
+        earlier.setSnapshotDirectory(snapshotDirectory.getPath());
+        earlier.execute();
+
+        Amt2FlatFile later = new Amt2FlatFile();
+        later.setInputZipFilePath(laterZip.toString());
+        later.setOutputFilePath(laterFile);
+        later.execute();
+
+        Amt2FlatFile delta = new Amt2FlatFile();
+        delta.setInputZipFilePath(deltaZip.toString());
+        delta.setOutputFilePath(outFile);
+        delta.setDeltaBaseSnapshot(snapshotDirectory.listFiles()[0].getPath());
+        delta.setPreviousFlatFilePath(earlierFile);
+        delta.execute();
+
+        Assert.assertFalse(FileUtils.contentEqualsIgnoreEOL(new File(earlierFile), new File(laterFile), null),
+            "The releases' flat files differ");
+        assertTrue(FileUtils.contentEqualsIgnoreEOL(new File(outFile), new File(laterFile), null),
+            "AMT flat file content the same as from the Snapshot release");
+    }
+
+    /**
+     * Writes a later release changing some of the terms, ARTG ids, units and TPs of a release, each row keeping its
+     * id, and the Delta release of the rows changed
+     */
+    private static void writeChangedRelease(Path release, Path changed, Path delta) throws IOException {
+        try (ZipInputStream in = new ZipInputStream(Files.newInputStream(release));
+                ZipOutputStream changedOut = new ZipOutputStream(Files.newOutputStream(changed));
+                ZipOutputStream deltaOut = new ZipOutputStream(Files.newOutputStream(delta))) {
+            for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+                String name = entry.getName();
+                List<String> rows = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)).lines()
+                    .collect(Collectors.toList());
+                StringBuilder changedRows = new StringBuilder(rows.get(0)).append('\n');
+                StringBuilder deltaRows = new StringBuilder(rows.get(0)).append('\n');
+                for (int i = 1; i < rows.size(); i++) {
+                    String[] fields = rows.get(i).split("\t", -1);
+                    if (name.contains("sct2_Description_") && i % 40 == 0) {
+                        fields[7] = fields[7] + " changed";
+                    } else if ((name.contains("ARTGId") && i % 25 == 0)
+                            || (name.contains("Relationship") && !fields[7].equals(IS_A) && i % 60 == 0)) {
+                        fields[2] = "0";
+                    }
+                    String row = String.join("\t", fields);
+                    changedRows.append(row).append('\n');
+                    if (!row.equals(rows.get(i))) {
+                        deltaRows.append(row).append('\n');
+                    }
+                }
+                changedOut.putNextEntry(new ZipEntry(name));
+                changedOut.write(changedRows.toString().getBytes(StandardCharsets.UTF_8));
+                deltaOut.putNextEntry(new ZipEntry(name.replace("Snapshot", "Delta")));
+                deltaOut.write(deltaRows.toString().getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Test(groups = "parse", priority = 2, description = "Rows of CTPPs with an MPUU with several MPs should match those written, in the same order, before concepts were stored by primitive ids")
+    public void multipleMpRowsMatchBaseline() throws MojoExecutionException, MojoFailureException, IOException {
+        Path zip = Paths.get("target/test-out/multiple-mps.zip");
+        new SyntheticReleaseGenerator().setScale(0.01).setSeed(1).write(zip);
+
+        Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setInputZipFilePath(zip.toString());
+        amt2FlatFile.setOutputFilePath(outFile);
+        amt2FlatFile.execute();
+
+        // rows the release gave before the change, in the order they were written then, for the CTPPs with such MPUUs
+        List<String> baseline = Files.readAllLines(Paths.get(testResDirectory + "multipleMpsBaseline.csv"));
+        baseline = baseline.subList(1, baseline.size());
+        Set<String> ctpps = baseline.stream().map(r -> field(r, 0)).collect(Collectors.toSet());
+        List<String> rows = Files.readAllLines(Paths.get(outFile))
+            .stream()
+            .skip(1)
+            .filter(r -> ctpps.contains(field(r, 0)))
+            .collect(Collectors.toList());
+
+        Assert.assertEquals(rows, baseline);
+    }
+
+    /**
+     * @return a field of a flat file row, whose quoted terms may contain commas
+     */
+    private static String field(String row, int field) {
+        return row.split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)", -1)[field];
+    }
+
+    @Test(groups = "parse", priority = 2, description = "Rows resolved from TPPs and TPUUs already resolved for another CTPP should be the same as those resolved afresh")
+    public void cachedResolutionsMatchFresh() throws IOException {
+        Path zip = Paths.get("target/test-out/resolutions.zip");
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setSeed(5).write(zip);
+
+        try (FileSystem release = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+            AmtCache cache = new AmtCache(release, testSuite, true);
+            Amt2FlatFile cached = new Amt2FlatFile();
+            cached.setConceptCache(cache, testSuite);
+
+            List<String> first = resolveAll(cached, cache);
+            long misses = cached.getResolutionCacheMisses();
+            Assert.assertTrue(cached.getResolutionCacheHits() > 0, "Some TPPs or TPUUs shared between CTPPs");
+            Assert.assertEquals(resolveAll(cached, cache), first);
+            Assert.assertEquals(cached.getResolutionCacheMisses(), misses, "Nothing resolved twice");
+
+            for (Concept ctpp : cache.getCtpps().values()) {
+                Amt2FlatFile fresh = new Amt2FlatFile();
+                fresh.setConceptCache(cache, testSuite);
+                List<String> rows = new ArrayList<>();
+                fresh.resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> rows.add(
+                    row(ctpp, artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp)), testSuite);
+                Assert.assertEquals(first.stream().filter(r -> r.startsWith(ctpp.getId() + ",")).collect(Collectors.toList()),
+                    rows, "Rows of " + ctpp.getId());
+            }
+        }
+    }
+
+    private static List<String> resolveAll(Amt2FlatFile amt2FlatFile, AmtCache cache) throws IOException {
+        List<String> rows = new ArrayList<>();
+        JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+        for (Concept ctpp : cache.getCtpps().values()) {
+            amt2FlatFile.resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> rows.add(
+                row(ctpp, artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp)), testSuite);
+        }
+        return rows;
+    }
+
+    private static String row(Concept ctpp, String artgid, Concept... concepts) {
+        return ctpp.getId() + "," + artgid + ","
+                + Arrays.stream(concepts).map(c -> Long.toString(c.getId())).collect(Collectors.joining(","));
+    }
 }
@@ -0,0 +1,84 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.testng.annotations.Test;
+
+public class AmtCacheDeltaTest {
+
+    private static final String AMT = "900062011000036108";
+
+    private static final String IS_A = "116680003";
+
+    private static final String SYNONYM = "900000000000013009";
+
+    private Rf2Row row(String... fields) {
+        byte[] bytes = (String.join("\t", fields) + "\n").getBytes(StandardCharsets.UTF_8);
+        return new Rf2Row().set(ByteBuffer.wrap(bytes), 0, bytes.length - 1);
+    }
+
+    @Test(groups = "delta", description = "Delta rows change the concepts they name, removing before adding, and record what changed")
+    public void appliesRows() {
+        TermStore terms = new TermStore();
+        LongObjectMap<Concept> concepts = new LongObjectMap<>();
+        Concept root = new Concept(1, true, terms);
+        Concept oldParent = new Concept(2, true, terms);
+        Concept newParent = new Concept(3, true, terms);
+        Concept child = new Concept(4, true, terms);
+        Concept unchanged = new Concept(5, true, terms);
+        for (Concept concept : Arrays.asList(root, oldParent, newParent, child, unchanged)) {
+            concepts.put(concept.getId(), concept);
+        }
+        oldParent.addParent(root);
+        newParent.addParent(root);
+        child.addParent(oldParent);
+        unchanged.addParent(root);
+        child.setPreferredTerm("old term");
+        IsaClosure.calculate(concepts.values());
+        LongSet preferred = new LongSet();
+        preferred.add(41);
+
+        AmtCacheDelta delta = new AmtCacheDelta(concepts, new HashSet<>(), terms, preferred);
+        assertTrue(delta.handleConceptRow(row("6", "20180531", "1", AMT, "0")));
+        assertFalse(delta.handleConceptRow(row("5", "20180531", "1", AMT, "0")), "status is unchanged");
+        assertTrue(delta.handleRelationshipRow(row("71", "20180531", "1", AMT, "4", "3", "0", IS_A)));
+        assertTrue(delta.handleRelationshipRow(row("72", "20180531", "0", AMT, "4", "2", "0", IS_A)));
+        assertTrue(delta.handleRelationshipRow(row("73", "20180531", "1", AMT, "6", "4", "0", IS_A)));
+        assertTrue(delta.handleDescriptionRow(row("41", "20180531", "0", AMT, "4", "en", SYNONYM, "old term", "0")));
+        assertTrue(delta.handleDescriptionRow(row("42", "20180531", "1", AMT, "4", "en", SYNONYM, "new term", "0")));
+        assertTrue(delta.handleLanguageRefsetRow(
+            row("a", "20180531", "0", AMT, "32570271000036106", "41", "900000000000548007")));
+        assertTrue(delta.handleLanguageRefsetRow(
+            row("b", "20180531", "1", AMT, "32570271000036106", "42", "900000000000548007")));
+        delta.apply();
+        delta.recalculateTransitiveClosure();
+
+        assertEquals(child.getParents().values(), Arrays.asList(newParent));
+        assertEquals(child.getAncestors(), Arrays.asList(root, newParent));
+        assertEquals(concepts.get(6).getAncestors(), Arrays.asList(root, newParent, child));
+        assertEquals(child.getPreferredTerm(), "new term");
+        assertFalse(preferred.contains(41));
+        assertTrue(preferred.contains(42));
+        assertTrue(delta.getChanged().contains(4));
+        assertTrue(delta.getChanged().contains(6));
+        assertFalse(delta.getChanged().contains(5));
+        assertFalse(delta.getChanged().contains(3));
+    }
+
+    @Test(groups = "delta", description = "A description made preferred without its term in the delta can't be applied", expectedExceptions = IllegalStateException.class)
+    public void rejectsPreferredDescriptionWithoutTerm() {
+        TermStore terms = new TermStore();
+        LongObjectMap<Concept> concepts = new LongObjectMap<>();
+        concepts.put(4, new Concept(4, true, terms));
+        AmtCacheDelta delta = new AmtCacheDelta(concepts, new HashSet<>(), terms, new LongSet());
+        delta.handleLanguageRefsetRow(row("b", "20180531", "1", AMT, "32570271000036106", "42", "900000000000548007"));
+        delta.apply();
+    }
+}
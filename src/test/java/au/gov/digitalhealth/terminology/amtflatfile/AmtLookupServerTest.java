@@ -0,0 +1,170 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+public class AmtLookupServerTest {
+
+    private final Path firstZip = Paths.get("target/test-out/server-first.zip");
+
+    private final Path secondZip = Paths.get("target/test-out/server-second.zip");
+
+    private AmtLookupServer server;
+
+    @BeforeClass(groups = "server")
+    public void startServer() throws IOException {
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setSeed(4).write(firstZip);
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setSeed(5).write(secondZip);
+        server = new AmtLookupServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), this::load);
+        server.load(firstZip);
+        server.start();
+    }
+
+    @AfterClass(groups = "server", alwaysRun = true)
+    public void stopServer() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private Amt2FlatFile load(Path zip) throws IOException {
+        try (FileSystem release = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+            Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+            amt2FlatFile.setConceptCache(new AmtCache(release, testSuite, false), testSuite);
+            return amt2FlatFile;
+        }
+    }
+
+    private String flatFile(Path zip, String name) throws IOException {
+        Path flatFile = Paths.get("target/test-out/server-" + name + ".csv");
+        load(zip).writeFlatFile(flatFile);
+        return new String(Files.readAllBytes(flatFile), StandardCharsets.UTF_8);
+    }
+
+    private HttpURLConnection request(String method, String pathAndQuery) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(
+            "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + pathAndQuery)
+                .openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+
+    private String get(String pathAndQuery) throws IOException {
+        HttpURLConnection connection = request("GET", pathAndQuery);
+        assertEquals(connection.getResponseCode(), 200, pathAndQuery);
+        return read(connection.getInputStream());
+    }
+
+    private static String read(InputStream in) throws IOException {
+        try (InputStream body = in) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            for (int read = body.read(buffer); read >= 0; read = body.read(buffer)) {
+                bytes.write(buffer, 0, read);
+            }
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    @Test(groups = "server", description = "Rows, replacements and concepts are served as CSV and JSON from the loaded release")
+    public void servesLookups() throws IOException {
+        String flatFile = flatFile(firstZip, "first");
+        assertEquals(get("/rows"), flatFile);
+
+        String row = flatFile.split(System.lineSeparator())[1];
+        String ctpp = row.substring(0, row.indexOf(','));
+        String rows = get("/rows?ctpp=" + ctpp);
+        assertTrue(rows.startsWith(Amt2FlatFile.FLAT_FILE_HEADER + System.lineSeparator() + ctpp + ","), rows);
+        assertTrue(rows.contains(row), rows);
+        assertTrue(get("/rows?ctpp=" + ctpp + "&format=json").startsWith("[{\"ctpp\":{\"id\":\"" + ctpp + "\""));
+        assertEquals(get("/rows?product=" + ctpp), Amt2FlatFile.FLAT_FILE_HEADER + System.lineSeparator());
+
+        String concept = get("/concept?sctid=" + ctpp);
+        assertTrue(concept.startsWith("{\"id\":\"" + ctpp + "\",\"active\":true,"), concept);
+
+        String replacements = get("/replacements");
+        assertTrue(replacements.startsWith(Amt2FlatFile.REPLACEMENTS_HEADER), replacements);
+        String replacement = replacements.split(System.lineSeparator())[1];
+        String inactive = replacement.substring(0, replacement.indexOf(','));
+        assertTrue(get("/replacements?sctid=" + inactive).contains(replacement));
+        assertTrue(get("/replacements?sctid=" + inactive + "&format=json")
+            .startsWith("[{\"inactive\":{\"id\":\"" + inactive + "\""));
+
+        assertEquals(request("GET", "/concept?sctid=1").getResponseCode(), 404);
+        assertEquals(request("GET", "/concept?sctid=abc").getResponseCode(), 400);
+        assertEquals(request("GET", "/rows?format=xml").getResponseCode(), 400);
+        assertEquals(request("POST", "/rows").getResponseCode(), 405);
+        assertEquals(request("GET", "/reload").getResponseCode(), 405);
+    }
+
+    @Test(groups = "server", dependsOnMethods = "servesLookups", description = "Only the release being served is reloaded unless release selection is turned on, and never for a request from another site")
+    public void reloadsServedRelease() throws IOException {
+        assertEquals(request("POST", "/reload?release=" + secondZip).getResponseCode(), 403);
+        assertTrue(get("/status").contains(firstZip.toString()));
+
+        // HttpURLConnection won't set an Origin header, so send the request as a browser would
+        try (Socket socket = new Socket(server.getAddress().getAddress(), server.getAddress().getPort())) {
+            socket.getOutputStream()
+                .write(("POST /reload HTTP/1.1\r\nHost: localhost\r\nOrigin: http://example.com\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            String statusLine = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII)).readLine();
+            assertEquals(statusLine, "HTTP/1.1 403 Forbidden");
+        }
+
+        HttpURLConnection reload = request("POST", "/reload");
+        assertEquals(reload.getResponseCode(), 200);
+        assertTrue(read(reload.getInputStream()).contains(firstZip.toString()));
+    }
+
+    @Test(groups = "server", dependsOnMethods = "reloadsServedRelease", description = "A request in flight when a new release is loaded is answered in full from the release it started with")
+    public void swapsReleases() throws IOException {
+        server.setReleaseSelection(true);
+        String first = flatFile(firstZip, "first");
+        String second = flatFile(secondZip, "second");
+
+        HttpURLConnection inFlight = request("GET", "/rows");
+        assertEquals(inFlight.getResponseCode(), 200);
+        StringBuilder body = new StringBuilder();
+        try (BufferedReader reader =
+                new BufferedReader(new InputStreamReader(inFlight.getInputStream(), StandardCharsets.UTF_8))) {
+            body.append(reader.readLine()).append(System.lineSeparator());
+
+            HttpURLConnection reload = request("POST", "/reload?release=" + secondZip);
+            assertEquals(reload.getResponseCode(), 200);
+            assertTrue(read(reload.getInputStream()).contains(secondZip.toString()));
+
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                body.append(line).append(System.lineSeparator());
+            }
+        }
+        assertEquals(body.toString(), first);
+        assertEquals(get("/rows"), second);
+        assertTrue(get("/status").contains(secondZip.toString()));
+
+        assertEquals(request("POST", "/reload?release=target/test-out/missing.zip").getResponseCode(), 400);
+        assertEquals(get("/rows"), second);
+    }
+}
@@ -0,0 +1,77 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.commons.lang3.tuple.Triple;
+import org.testng.annotations.Test;
+
+public class AmtQueryIndexTest {
+
+    @Test(groups = "query", description = "Lookups find the same CTPPs, by product and ARTG id, as the flat file rows")
+    public void matchesFlatFileRows() throws IOException {
+        Path zip = Paths.get("target/test-out/query.zip");
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setSeed(3).write(zip);
+
+        try (FileSystem release = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+            AmtCache cache = new AmtCache(release, testSuite, true);
+            Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+            amt2FlatFile.setConceptCache(cache, testSuite);
+            AmtQueryIndex index = new AmtQueryIndex(cache);
+
+            Map<Long, Set<Long>> byProduct = new TreeMap<>();
+            Map<String, Set<Long>> byArtgId = new TreeMap<>();
+            for (Concept ctpp : cache.getCtpps().values()) {
+                amt2FlatFile.resolveRows(ctpp, (artgid, tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp) -> {
+                    Stream.of(tpp, tpuu, tppTp, tpuuTp, mpp, mpuu, mp)
+                        .forEach(c -> byProduct.computeIfAbsent(c.getId(), id -> new TreeSet<>()).add(ctpp.getId()));
+                    if (!artgid.isEmpty()) {
+                        byArtgId.computeIfAbsent(artgid, id -> new TreeSet<>()).add(ctpp.getId());
+                    }
+                }, testSuite);
+            }
+
+            assertTrue(byProduct.size() > 0 && byArtgId.size() > 0);
+            for (Map.Entry<Long, Set<Long>> entry : byProduct.entrySet()) {
+                assertEquals(ids(index.getCtpps(entry.getKey())), new ArrayList<>(entry.getValue()),
+                    "CTPPs of " + entry.getKey());
+                assertEquals(index.getConcept(entry.getKey()).getId(), (long) entry.getKey());
+            }
+            for (Map.Entry<String, Set<Long>> entry : byArtgId.entrySet()) {
+                assertEquals(ids(index.getCtppsByArtgId(" " + entry.getKey())), new ArrayList<>(entry.getValue()),
+                    "CTPPs of ARTG id " + entry.getKey());
+            }
+            assertTrue(index.getCtpps(AmtConcept.MP.getId()).isEmpty());
+            assertTrue(index.getCtppsByArtgId("no such id").isEmpty());
+
+            Set<Triple<Concept, Concept, Concept>> replacements = new HashSet<>();
+            for (Concept concept : cache.getConcepts()) {
+                List<Triple<Concept, Concept, Concept>> found = index.getReplacements(concept.getId());
+                found.forEach(r -> assertEquals(r.getLeft(), concept));
+                replacements.addAll(found);
+            }
+            assertTrue(replacements.size() > 0);
+            assertEquals(replacements, cache.getReplacementConcepts());
+        }
+    }
+
+    private static List<Long> ids(List<Concept> concepts) {
+        return concepts.stream().map(Concept::getId).collect(Collectors.toList());
+    }
+}
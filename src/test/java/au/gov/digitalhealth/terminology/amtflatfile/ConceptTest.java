@@ -0,0 +1,41 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class ConceptTest {
+
+    @Test(groups = "concept", description = "The units, TPs and ARTG ids of a concept with none can be added to through their getters")
+    public void addsThroughGetters() {
+        TermStore terms = new TermStore();
+        Concept tpp = new Concept(1, true, terms);
+        Concept tpuu = new Concept(2, true, terms);
+        Concept tp = new Concept(3, true, terms);
+
+        Set<Concept> units = tpp.getUnits();
+        assertTrue(units.isEmpty());
+        assertFalse(units.contains(tpuu));
+        assertFalse(units.remove(tpuu), "nothing to remove");
+        assertTrue(units.add(tpuu));
+        assertFalse(units.add(tpuu), "already added");
+        assertEquals(tpp.getUnits(), Collections.singleton(tpuu));
+        assertTrue(units.contains(tpuu), "reads through to the set allocated");
+        assertSame(tpp.getUnits(), tpp.getUnits(), "the set allocated is returned once there is one");
+
+        assertTrue(tpp.getTps().addAll(Arrays.asList(tp)));
+        assertEquals(tpp.getTps(), Collections.singleton(tp));
+        assertTrue(tpp.getArtgIds().add("12345"));
+        assertEquals(tpp.getArtgIds(), Collections.singleton("12345"));
+
+        assertTrue(tpp.getUnits().remove(tpuu));
+        assertTrue(units.isEmpty(), "writes through to the set allocated");
+    }
+}
@@ -0,0 +1,64 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.testng.annotations.Test;
+
+public class ConceptValidatorTest {
+
+    @Test(groups = "validation", description = "Rules checked in parallel find the same violations, in the same order, as a sequential scan")
+    public void parallelMatchesSequential() {
+        List<Concept> concepts = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            concepts.add(new Concept(1000000 + i * 7919L % 100000, i % 13 != 0));
+        }
+
+        for (int parallelism : new int[] { 1, 4 }) {
+            ConceptValidator validator = new ConceptValidator();
+            ConceptValidator.Rule inactive = validator.addCheck(c -> !c.isActive());
+            ConceptValidator.Rule even = validator.addCheck(c -> c.getId() % 2 == 0);
+            validator.validate(concepts, parallelism);
+
+            Set<Concept> expectedInactive = concepts.stream().filter(c -> !c.isActive()).collect(Collectors.toSet());
+            Set<Concept> expectedEven = concepts.stream().filter(c -> c.getId() % 2 == 0).collect(Collectors.toSet());
+            assertEquals(new ArrayList<>(validator.getViolations(inactive)), new ArrayList<>(expectedInactive));
+            assertEquals(new ArrayList<>(validator.getViolations(even)), new ArrayList<>(expectedEven));
+        }
+    }
+
+    @Test(groups = "validation", description = "Rules are reported in order, and fixed concepts are checked again against later rules")
+    public void fixesInOrder() {
+        Concept parent = new Concept(1, false);
+        Concept child = new Concept(2, true);
+        Concept other = new Concept(3, true);
+        child.addParent(parent);
+        other.addParent(parent);
+
+        ConceptValidator validator = new ConceptValidator();
+        validator.addRule("Active concepts with inactive parents", "inactive_parents",
+            c -> c.isActive() && c.getParents().values().stream().anyMatch(p -> !p.isActive()),
+            c -> c.getParentMap().removeIf(p -> !p.isActive()));
+        validator.addRule("Unfixable", "unfixable", c -> c.getId() == 3, null);
+        ConceptValidator.Rule orphans = validator.addCheck(c -> c.isActive() && c.getParents().isEmpty());
+        validator.validate(Arrays.asList(parent, child, other), 1);
+
+        assertTrue(validator.getViolations(orphans).isEmpty(), "no orphans until the parents are removed");
+
+        List<String> reported = new ArrayList<>();
+        validator.report((rule, violations) -> {
+            reported.add(rule.getTestCaseName() + " " + violations.stream().map(Concept::getId).sorted().collect(Collectors.toList()));
+        });
+
+        assertEquals(reported, Arrays.asList("inactive_parents [2, 3]", "unfixable [3]"));
+        assertTrue(child.getParents().isEmpty());
+        assertEquals(validator.getViolations(orphans), new HashSet<>(Arrays.asList(child, other)));
+    }
+}
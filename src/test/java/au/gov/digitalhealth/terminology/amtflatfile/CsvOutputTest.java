@@ -0,0 +1,149 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.annotations.Test;
+
+public class CsvOutputTest {
+
+    private static final String HEADER = "A,B\n";
+
+    private static String rows(int count) {
+        StringBuilder rows = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            rows.append(i).append(",\"row ").append(i).append("\"\n");
+        }
+        return rows.toString();
+    }
+
+    /**
+     * Writes the header and rows in blocks of random sizes, as the flat file's buffered and parallel writers do
+     */
+    private static CsvOutput write(Path path, OutputOptions options, String rows) throws IOException {
+        byte[] bytes = (HEADER + rows).getBytes(StandardCharsets.UTF_8);
+        Random random = new Random(1);
+        try (CsvOutput output = new CsvOutput(path, options)) {
+            int off = 0;
+            while (off < bytes.length) {
+                int len = Math.min(bytes.length - off, random.nextInt(40));
+                output.write(bytes, off, len);
+                off += len;
+            }
+            return output;
+        }
+    }
+
+    private static String read(Path path, Compression compression) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        if (compression == Compression.GZIP) {
+            try (InputStream in = new GZIPInputStream(Files.newInputStream(path))) {
+                ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+                byte[] buffer = new byte[4096];
+                for (int read = in.read(buffer); read >= 0; read = in.read(buffer)) {
+                    inflated.write(buffer, 0, read);
+                }
+                bytes = inflated.toByteArray();
+            }
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String sha256(Path path) throws IOException, NoSuchAlgorithmException {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(path))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    @Test(groups = "output", description = "Rows are split into chunks of the given size, each starting with the header, with each chunk's rows and checksum recorded")
+    public void splitsIntoChunks() throws IOException, NoSuchAlgorithmException {
+        for (Compression compression : Compression.values()) {
+            Path path = Paths.get("target/test-out/chunks/rows.csv" + (compression == Compression.GZIP ? ".gz" : ""));
+            Files.createDirectories(path.getParent());
+            OutputOptions options = new OutputOptions().setCompression(compression).setChunkRows(7).setChecksums(true);
+            String rows = rows(30);
+            CsvOutput output = write(path, options, rows);
+
+            assertEquals(output.getParts().size(), 5);
+            assertEquals(output.getRows(), 30);
+            assertEquals(output.getParts().get(0).getPath().getFileName().toString(),
+                compression == Compression.GZIP ? "rows-00001.csv.gz" : "rows-00001.csv");
+            StringBuilder joined = new StringBuilder();
+            long bytes = 0;
+            for (CsvOutput.Part part : output.getParts()) {
+                String chunk = read(part.getPath(), compression);
+                List<String> lines = new ArrayList<>();
+                for (String line : chunk.split("\n")) {
+                    lines.add(line);
+                }
+                assertEquals(lines.get(0) + "\n", HEADER);
+                assertEquals(part.getRows(), lines.size() - 1);
+                assertEquals(part.getBytes(), Files.size(part.getPath()));
+                assertEquals(part.getSha256(), sha256(part.getPath()));
+                joined.append(chunk.substring(HEADER.length()));
+                bytes += part.getBytes();
+            }
+            assertEquals(output.getParts().get(4).getRows(), 2);
+            assertEquals(joined.toString(), rows);
+            assertEquals(output.getBytesWritten(), bytes);
+        }
+    }
+
+    @Test(groups = "output", description = "Without chunking the rows are written to the path itself, compressed or not, and a full last chunk leaves no empty chunk after it")
+    public void writesSingleFile() throws IOException {
+        Path path = Paths.get("target/test-out/single/rows.csv.gz");
+        Files.createDirectories(path.getParent());
+        CsvOutput output = write(path, new OutputOptions().setCompression(Compression.GZIP), rows(20));
+        assertEquals(output.getParts().size(), 1);
+        assertEquals(output.getParts().get(0).getPath(), path);
+        assertEquals(output.getParts().get(0).getSha256(), null);
+        assertEquals(read(path, Compression.GZIP), HEADER + rows(20));
+
+        CsvOutput exact = write(Paths.get("target/test-out/single/exact.csv"), new OutputOptions().setChunkRows(10),
+            rows(20));
+        assertEquals(exact.getParts().size(), 2);
+        assertEquals(exact.getParts().get(1).getRows(), 10);
+
+        CsvOutput empty = write(Paths.get("target/test-out/single/empty"), new OutputOptions().setChunkRows(10), "");
+        assertEquals(empty.getParts().size(), 1);
+        assertEquals(empty.getParts().get(0).getPath().getFileName().toString(), "empty-00001");
+        assertEquals(empty.getRows(), 0);
+    }
+
+    @Test(groups = "output", description = "Chunk files left by an earlier run with more chunks are deleted, but an unchunked output deletes nothing")
+    public void deletesStaleChunks() throws IOException {
+        Path path = Paths.get("target/test-out/stale/rows.csv");
+        Files.createDirectories(path.getParent());
+        CsvOutput first = write(path, new OutputOptions().setChunkRows(7), rows(30));
+        assertEquals(first.getParts().size(), 5);
+
+        CsvOutput second = write(path, new OutputOptions().setChunkRows(7), rows(10));
+        assertEquals(second.getParts().size(), 2);
+        assertTrue(Files.exists(second.chunkPath(2)));
+        for (int chunk = 3; chunk <= 5; chunk++) {
+            assertFalse(Files.exists(second.chunkPath(chunk)));
+        }
+
+        write(path, new OutputOptions(), rows(10));
+        assertTrue(Files.exists(path));
+        assertTrue(Files.exists(second.chunkPath(1)), "files named like chunks need not be this tool's");
+        assertTrue(Files.exists(second.chunkPath(2)));
+    }
+}
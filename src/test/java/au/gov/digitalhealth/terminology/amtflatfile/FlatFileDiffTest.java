@@ -0,0 +1,101 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.testng.annotations.Test;
+
+public class FlatFileDiffTest {
+
+    @Test(groups = "diff", description = "Rows are added, removed and changed by CTPP and ARTG id, as comparing the two flat files finds")
+    public void matchesFlatFiles() throws IOException {
+        Path previousZip = Paths.get("target/test-out/diff-previous.zip");
+        Path currentZip = Paths.get("target/test-out/diff-current.zip");
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).setSeed(1).write(previousZip);
+        new SyntheticReleaseGenerator().setScale(0.006).setFillerConcepts(10).setSeed(2).write(currentZip);
+
+        try (FileSystem previousRelease = FileSystems.newFileSystem(previousZip, (ClassLoader) null);
+                FileSystem currentRelease = FileSystems.newFileSystem(currentZip, (ClassLoader) null)) {
+            Amt2FlatFile previous = load(previousRelease);
+            Amt2FlatFile current = load(currentRelease);
+
+            FlatFileDiff diff = new FlatFileDiff(previous, current);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            diff.write(out, "header");
+            List<String> lines =
+                    Arrays.asList(new String(out.toByteArray(), StandardCharsets.UTF_8).split(System.lineSeparator()));
+
+            List<String> expected = expectedDiff(flatFileRows(previous, "previous"), flatFileRows(current, "current"));
+            assertTrue(diff.getAdded() > 0 && diff.getRemoved() > 0 && diff.getChanged() > 0, lines.toString());
+            assertEquals(lines.get(0), "CHANGE,header");
+            assertEquals(lines.subList(1, lines.size()), expected);
+            assertEquals(diff.getRows(), expected.size());
+
+            ByteArrayOutputStream same = new ByteArrayOutputStream();
+            new FlatFileDiff(current, current).write(same, "header");
+            assertEquals(new String(same.toByteArray(), StandardCharsets.UTF_8), "CHANGE,header" + System.lineSeparator());
+        }
+    }
+
+    private Amt2FlatFile load(FileSystem release) throws IOException {
+        JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+        Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+        amt2FlatFile.setConceptCache(new AmtCache(release, testSuite, true), testSuite);
+        return amt2FlatFile;
+    }
+
+    /**
+     * @return the rows of the flat file written for a release by CTPP and ARTG id
+     */
+    private Map<String, List<String>> flatFileRows(Amt2FlatFile amt2FlatFile, String name) throws IOException {
+        Path flatFile = Paths.get("target/test-out/diff-" + name + ".csv");
+        amt2FlatFile.writeFlatFile(flatFile);
+        Map<String, List<String>> rows = new TreeMap<>();
+        List<String> lines = Files.readAllLines(flatFile);
+        for (String row : lines.subList(1, lines.size())) {
+            // the CTPP id, then its quoted term, then the ARTG id
+            int idEnd = row.indexOf(',');
+            int termEnd = row.indexOf("\",", idEnd + 2) + 1;
+            String artgId = row.substring(termEnd + 1, row.indexOf(',', termEnd + 1));
+            rows.computeIfAbsent(String.format("%020d,%s", Long.parseLong(row.substring(0, idEnd)), artgId),
+                k -> new ArrayList<>()).add(row);
+        }
+        rows.values().forEach(Collections::sort);
+        return rows;
+    }
+
+    private List<String> expectedDiff(Map<String, List<String>> previous, Map<String, List<String>> current) {
+        TreeSet<String> keys = new TreeSet<>(previous.keySet());
+        keys.addAll(current.keySet());
+        List<String> expected = new ArrayList<>();
+        for (String key : keys) {
+            List<String> before = previous.getOrDefault(key, Collections.emptyList());
+            List<String> after = current.getOrDefault(key, Collections.emptyList());
+            if (before.isEmpty()) {
+                after.forEach(row -> expected.add("ADDED," + row));
+            } else if (after.isEmpty()) {
+                before.forEach(row -> expected.add("REMOVED," + row));
+            } else if (!before.equals(after)) {
+                before.forEach(row -> expected.add("CHANGED_FROM," + row));
+                after.forEach(row -> expected.add("CHANGED_TO," + row));
+            }
+        }
+        return expected;
+    }
+}
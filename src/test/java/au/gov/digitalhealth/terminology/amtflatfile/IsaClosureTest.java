@@ -0,0 +1,92 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class IsaClosureTest {
+
+    @Test(groups = "closure", description = "Ancestors include every concept reachable through parents, once, sorted by id")
+    public void diamond() {
+        Concept root = new Concept(1, true);
+        Concept left = new Concept(30, true);
+        Concept right = new Concept(20, true);
+        Concept bottom = new Concept(4, true);
+        Concept below = new Concept(5, true);
+        left.addParent(root);
+        right.addParent(root);
+        bottom.addParent(left);
+        bottom.addParent(right);
+        below.addParent(bottom);
+
+        // deliberately not in hierarchy order
+        IsaClosure.calculate(Arrays.asList(below, root, left, bottom, right));
+
+        assertEquals(root.getAncestors().size(), 0);
+        assertEquals(left.getAncestors(), Arrays.asList(root));
+        assertEquals(bottom.getAncestors(), Arrays.asList(root, right, left));
+        assertEquals(below.getAncestors(), Arrays.asList(root, bottom, right, left));
+        assertTrue(below.hasAncestor(1));
+        assertTrue(below.hasAncestor(30));
+        assertFalse(below.hasAncestor(5));
+        assertFalse(left.hasAncestor(20));
+    }
+
+    @Test(groups = "closure", description = "Hierarchies much deeper than the stack are closed")
+    public void deepHierarchy() {
+        Concept[] chain = new Concept[5000];
+        for (int i = 0; i < chain.length; i++) {
+            chain[i] = new Concept(i + 1, true);
+            if (i > 0) {
+                chain[i].addParent(chain[i - 1]);
+            }
+        }
+        // leaf first, so the whole chain has to be walked before anything can be calculated
+        List<Concept> concepts = new ArrayList<>(Arrays.asList(chain));
+        Collections.reverse(concepts);
+        IsaClosure.calculate(concepts);
+        assertEquals(chain[chain.length - 1].getAncestors().size(), chain.length - 1);
+        assertTrue(chain[chain.length - 1].hasAncestor(1));
+    }
+
+    @Test(groups = "closure", description = "Reparenting recalculates only the reparented concept and its descendants")
+    public void recalculate() {
+        Concept root = new Concept(1, true);
+        Concept left = new Concept(30, true);
+        Concept right = new Concept(20, true);
+        Concept moved = new Concept(4, true);
+        Concept below = new Concept(5, true);
+        left.addParent(root);
+        right.addParent(root);
+        moved.addParent(left);
+        below.addParent(moved);
+        List<Concept> concepts = Arrays.asList(root, left, right, moved, below);
+        IsaClosure.calculate(concepts);
+        List<Concept> rightAncestors = right.getAncestors();
+
+        moved.getParents().remove(left.getId());
+        moved.addParent(right);
+        List<Concept> recalculated = IsaClosure.recalculate(concepts, Arrays.asList(moved));
+
+        assertEquals(recalculated, Arrays.asList(moved, below));
+        assertEquals(moved.getAncestors(), Arrays.asList(root, right));
+        assertEquals(below.getAncestors(), Arrays.asList(root, moved, right));
+        assertEquals(right.getAncestors(), rightAncestors);
+    }
+
+    @Test(groups = "closure", description = "Cycles are reported", expectedExceptions = IllegalStateException.class)
+    public void cycle() {
+        Concept a = new Concept(1, true);
+        Concept b = new Concept(2, true);
+        a.addParent(b);
+        b.addParent(a);
+        IsaClosure.calculate(Arrays.asList(a, b));
+    }
+}
@@ -0,0 +1,66 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class JUnitTestSuite_EXTTest {
+
+    @Test(groups = "junit", description = "An empty suite is written as a single empty testsuite element")
+    public void writesEmptySuite() throws IOException {
+        String xml = write(new JUnitTestSuite_EXT());
+        String nl = System.lineSeparator();
+        assertEquals(xml, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>" + nl
+                + "<testsuite errors=\"0\" failures=\"0\" name=\"validation.errors\" tests=\"0\"/>" + nl);
+    }
+
+    @Test(groups = "junit", description = "Failures are grouped by test case, indented, and escaped so they parse back unchanged")
+    public void writesFailures() throws Exception {
+        JUnitTestSuite_EXT suite = new JUnitTestSuite_EXT();
+        suite.addTestCase("Mismatch", "MPUUs [1, 2] & <3>\n\"quoted\" \u00b5g", "MPP mismatch (1)", "ERROR");
+        suite.addTestCase("Mismatch", "second", "MPP mismatch (1)", "ERROR");
+        suite.addTestCase("Inactive \"concepts\" & <parents>", "[]", "Inactive_with_parents", "ERROR");
+
+        String xml = write(suite);
+        String nl = System.lineSeparator();
+        assertTrue(xml.contains(nl + "    <testcase classname=\"flatfile.MPP mismatch (1)\" name=\"MPP mismatch (1)\">" + nl
+                + "        <failure message=\"Mismatch\" type=\"ERROR\">"), xml);
+        assertTrue(xml.endsWith(nl + "    </testcase>" + nl + "</testsuite>" + nl), xml);
+
+        Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder()
+            .parse(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)));
+        Element testSuite = document.getDocumentElement();
+        assertEquals(testSuite.getAttribute("failures"), "3");
+        assertEquals(testSuite.getAttribute("tests"), "3");
+
+        NodeList testCases = testSuite.getElementsByTagName("testcase");
+        assertEquals(testCases.getLength(), 2);
+        NodeList failures = ((Element) testCases.item(0)).getElementsByTagName("failure");
+        assertEquals(failures.getLength(), 2);
+        assertEquals(failures.item(0).getTextContent(), "MPUUs [1, 2] & <3>\n\"quoted\" \u00b5g");
+        assertEquals(failures.item(1).getTextContent(), "second");
+        Element failure = (Element) ((Element) testCases.item(1)).getElementsByTagName("failure").item(0);
+        assertEquals(failure.getAttribute("message"), "Inactive \"concepts\" & <parents>");
+    }
+
+    private String write(JUnitTestSuite_EXT suite) throws IOException {
+        StringWriter out = new StringWriter();
+        try (BufferedWriter writer = new BufferedWriter(out)) {
+            suite.writeToFile(writer);
+        }
+        return out.toString();
+    }
+}
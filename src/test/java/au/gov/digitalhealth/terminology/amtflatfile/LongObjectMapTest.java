@@ -0,0 +1,150 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.testng.annotations.Test;
+
+public class LongObjectMapTest {
+
+    @Test(groups = "collections", description = "Random puts and removes behave the same as a HashMap")
+    public void matchesHashMap() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Map<Long, String> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            // a small key range forces plenty of collisions, removals and reinsertions
+            long key = random.nextInt(5000) * 1000036101L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(map.remove(key), expected.remove(key));
+            } else {
+                assertEquals(map.put(key, "v" + i), expected.put(key, "v" + i));
+            }
+        }
+        assertEquals(map.size(), expected.size());
+        for (Map.Entry<Long, String> entry : expected.entrySet()) {
+            assertEquals(map.get(entry.getKey()), entry.getValue());
+        }
+        assertEquals(new HashSet<>(map.values()), new HashSet<>(expected.values()));
+        assertEquals(map.keys().length, expected.size());
+    }
+
+    @Test(groups = "collections", description = "Maps allocate lazily, can be cleared and filtered")
+    public void lazyClearAndRemoveIf() {
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(1L));
+        assertFalse(map.containsKey(0L));
+        for (int i = 0; i < 100; i++) {
+            map.put(i, i);
+        }
+        assertTrue(map.containsKey(0L));
+        assertTrue(map.removeIf(v -> v % 2 == 0));
+        assertEquals(map.size(), 50);
+        assertNull(map.get(10L));
+        assertEquals(map.get(11L), Integer.valueOf(11));
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(map.toString(), "{}");
+    }
+
+    @Test(groups = "collections", description = "Null values are rejected as they mark empty slots", expectedExceptions = NullPointerException.class)
+    public void rejectsNullValues() {
+        new LongObjectMap<String>().put(1L, null);
+    }
+
+    @Test(groups = "collections", description = "Long sets hold any value including zero")
+    public void longSet() {
+        LongSet set = new LongSet();
+        assertFalse(set.contains(0L));
+        assertTrue(set.add(0L));
+        assertFalse(set.add(0L));
+        for (long i = 1; i < 10000; i++) {
+            assertTrue(set.add(i * 1000036101L));
+        }
+        assertEquals(set.size(), 10000);
+        assertTrue(set.contains(0L));
+        assertTrue(set.contains(9999 * 1000036101L));
+        assertFalse(set.contains(10000 * 1000036101L));
+    }
+
+    @Test(groups = "collections", description = "Random adds and removes on a long set behave the same as a HashSet")
+    public void longSetMatchesHashSet() {
+        LongSet set = new LongSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextInt(5000) * 1000036101L;
+            if (random.nextInt(3) == 0) {
+                assertEquals(set.remove(value), expected.remove(value));
+            } else {
+                assertEquals(set.add(value), expected.add(value));
+            }
+        }
+        assertEquals(set.size(), expected.size());
+        for (long value : expected) {
+            assertTrue(set.contains(value));
+        }
+        Set<Long> values = new HashSet<>();
+        for (long value : set.toArray()) {
+            values.add(value);
+        }
+        assertEquals(values, expected);
+    }
+
+    @Test(groups = "collections", description = "Copying a map in layout order reproduces its iteration order")
+    public void layoutOrderCopy() {
+        LongObjectMap<String> map = new LongObjectMap<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 3000; i++) {
+            long key = random.nextInt(4000) * 1000036101L;
+            if (random.nextInt(4) == 0) {
+                map.remove(key);
+            } else {
+                map.put(key, "v" + key);
+            }
+        }
+
+        LongObjectMap<String> copy = LongObjectMap.withCapacity(map.capacity());
+        for (long key : map.keysInLayoutOrder()) {
+            copy.put(key, map.get(key));
+        }
+        assertEquals(copy.keys(), map.keys());
+        assertEquals(copy.capacity(), map.capacity());
+    }
+
+    @Test(groups = "collections", description = "A map viewed as a Map reads and writes through to it, including removing while iterating")
+    public void mapViewWritesThrough() {
+        LongObjectMap<Integer> map = new LongObjectMap<>();
+        Map<Long, Integer> view = map.asMap();
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100; i++) {
+            view.put((long) i, i);
+            expected.put((long) i, i);
+        }
+        assertEquals(view, expected);
+        assertEquals(view.get(5L), Integer.valueOf(5));
+        assertNull(view.get("5"));
+        assertTrue(view.containsKey(99L));
+
+        view.values().removeIf(v -> v % 2 == 0);
+        view.entrySet().iterator().next().setValue(-1);
+        view.remove(1L);
+        expected.values().removeIf(v -> v % 2 == 0);
+        expected.remove(1L);
+        assertEquals(map.size(), 49);
+        assertEquals(view.keySet(), expected.keySet());
+        assertTrue(map.values().contains(-1));
+
+        view.clear();
+        assertTrue(map.isEmpty());
+    }
+}
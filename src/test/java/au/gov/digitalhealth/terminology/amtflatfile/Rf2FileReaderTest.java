@@ -0,0 +1,130 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class Rf2FileReaderTest {
+
+    /**
+     * Returns the bytes a few at a time, as an inflating stream does, then optionally fails
+     */
+    private static InputStream stream(byte[] bytes, boolean fail) {
+        Random random = new Random(1);
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                int read = super.read(b, off, Math.min(len, 1 + random.nextInt(100000)));
+                if (read == -1 && fail) {
+                    throw new IllegalStateException("Stream failed");
+                }
+                return read;
+            }
+        };
+    }
+
+    private static byte[] file() {
+        StringBuilder file = new StringBuilder("id\tterm\n");
+        Random random = new Random(2);
+        for (int i = 0; file.length() < Rf2FileReader.READ_BUFFER_SIZE * (Rf2FileReader.STAGED_BLOCKS + 2); i++) {
+            file.append(i).append('\t').append("term \u00e9 ").append(random.nextInt());
+            file.append(i % 3 == 0 ? "\r\n" : "\n");
+            if (i == 1000) {
+                // a line longer than a block, and a blank line
+                for (int j = 0; j < Rf2FileReader.READ_BUFFER_SIZE / 4; j++) {
+                    file.append("long");
+                }
+                file.append("\n\n");
+            }
+        }
+        file.append("last\tline");
+        return file.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<String> read(byte[] bytes, boolean staged) throws IOException {
+        List<String> rows = new ArrayList<>();
+        Rf2FileReader reader = new Rf2FileReader(row -> rows.add(row.toString()), true).setStaged(staged);
+        reader.read(stream(bytes, false));
+        assertEquals(reader.getRowsRead(), rows.size());
+        assertEquals(reader.getBytesRead(), bytes.length);
+        assertEquals(reader.hasStageTimes(), staged);
+        return rows;
+    }
+
+    @Test(groups = "parse", description = "Reading in stages hands the consumer the same rows in the same order as reading on one thread")
+    public void stagedReadMatchesSequential() throws IOException {
+        byte[] bytes = file();
+        List<String> sequential = read(bytes, false);
+        assertEquals(sequential.get(sequential.size() - 1), "last\tline");
+        assertEquals(read(bytes, true), sequential);
+    }
+
+    @Test(groups = "parse", description = "Only rows passing the filter reach the consumer, whether read in stages or not")
+    public void filtersRows() throws IOException {
+        StringBuilder file = new StringBuilder("id\teffectiveTime\tactive\tmoduleId\n");
+        for (int i = 0; i < 300000; i++) {
+            file.append(i).append("\t20180430\t").append(i % 2).append('\t');
+            file.append(i % 3 == 0 ? "900062011000036108" : "900000000000207008").append('\n');
+        }
+        byte[] bytes = file.toString().getBytes(StandardCharsets.UTF_8);
+        Rf2RowFilter filter = Rf2RowFilter.where(3, "900062011000036108".getBytes(StandardCharsets.US_ASCII))
+            .and(2, "1".getBytes(StandardCharsets.US_ASCII));
+        for (boolean staged : new boolean[] { false, true }) {
+            List<Long> ids = new ArrayList<>();
+            Rf2FileReader reader = new Rf2FileReader(row -> ids.add(row.getLong(0)), true).setFilter(filter)
+                .setStaged(staged);
+            reader.read(stream(bytes, false));
+            assertEquals(ids.size(), 50000);
+            assertEquals(ids.get(0).longValue(), 3);
+            assertEquals(ids.get(49999).longValue(), 299997);
+            assertEquals(reader.getRowsRead(), 300000);
+            assertEquals(reader.getRowsFiltered(), 250000);
+        }
+
+        try {
+            new Rf2FileReader(row -> {
+            }, true).setFilter(Rf2RowFilter.where(7, "1".getBytes(StandardCharsets.US_ASCII)))
+                .read(stream(bytes, false));
+            fail("Row without the filtered field was not reported");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Failed filtering row: 0\t20180430"), e.getMessage());
+        }
+    }
+
+    @Test(groups = "parse", description = "A failure in any stage of a staged read is thrown to the caller")
+    public void stagedReadFailures() throws IOException {
+        byte[] bytes = file();
+        try {
+            new Rf2FileReader(row -> {
+            }, true).setStaged(true).read(stream(bytes, true));
+            fail("Stream failure was not thrown");
+        } catch (IllegalStateException e) {
+            assertEquals(e.getMessage(), "Stream failed");
+        }
+
+        int[] handled = new int[1];
+        try {
+            new Rf2FileReader(row -> {
+                if (++handled[0] == 50000) {
+                    throw new IllegalArgumentException("Bad row");
+                }
+            }, true).setStaged(true).read(stream(bytes, false));
+            fail("Consumer failure was not thrown");
+        } catch (IllegalArgumentException e) {
+            assertEquals(e.getMessage(), "Bad row");
+        }
+        assertEquals(handled[0], 50000);
+        Thread.getAllStackTraces().keySet().forEach(thread -> assertTrue(!thread.getName().startsWith("amt-rf2-")
+                || !thread.isAlive(), thread.getName() + " is still running"));
+    }
+}
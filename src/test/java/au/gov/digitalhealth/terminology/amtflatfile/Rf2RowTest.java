@@ -0,0 +1,64 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+
+public class Rf2RowTest {
+
+    private Rf2Row row(String line) {
+        byte[] bytes = ("xx" + line + "\n").getBytes(StandardCharsets.UTF_8);
+        return new Rf2Row().set(ByteBuffer.wrap(bytes), 2, bytes.length - 1);
+    }
+
+    @Test(groups = "parse", description = "Fields are split on tabs, including empty trailing fields")
+    public void splitsFields() {
+        Rf2Row row = row("1234\t20180430\t1\t\t");
+        assertEquals(row.getFieldCount(), 5);
+        assertEquals(row.getString(0), "1234");
+        assertEquals(row.getFieldLength(3), 0);
+        assertEquals(row.getString(4), "");
+    }
+
+    @Test(groups = "parse", description = "Numeric fields are parsed without creating Strings")
+    public void parsesLongs() {
+        Rf2Row row = row("900062011000036108\t30537011000036101\tabc");
+        assertEquals(row.getLong(0), 900062011000036108L);
+        assertEquals(row.getLong(1), 30537011000036101L);
+    }
+
+    @Test(groups = "parse", description = "Non numeric fields are rejected like Long.parseLong", expectedExceptions = NumberFormatException.class)
+    public void rejectsNonNumericLongs() {
+        row("12a4").getLong(0);
+    }
+
+    @Test(groups = "parse", description = "Fields are compared by their raw bytes")
+    public void comparesFields() {
+        Rf2Row row = row("1\t900062011000036108");
+        assertTrue(row.fieldEquals(0, "1".getBytes(StandardCharsets.US_ASCII)));
+        assertFalse(row.fieldEquals(0, "0".getBytes(StandardCharsets.US_ASCII)));
+        assertTrue(row.fieldEquals(1, "900062011000036108".getBytes(StandardCharsets.US_ASCII)));
+        assertFalse(row.fieldEquals(1, "90006201100003610".getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test(groups = "parse", description = "Terms are decoded as UTF-8 and the cursor can be reused")
+    public void decodesTermsAndReuses() {
+        byte[] bytes = "a\tparacetamol 500 mg \u00b5g\nb\tc\n".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Rf2Row row = new Rf2Row();
+        int firstEnd = "a\tparacetamol 500 mg \u00b5g".getBytes(StandardCharsets.UTF_8).length;
+        row.set(buffer, 0, firstEnd);
+        assertEquals(row.getString(1), "paracetamol 500 mg \u00b5g");
+        CharSequence field = row.getField(0);
+        assertEquals(field.toString(), "a");
+        row.set(buffer, firstEnd + 1, bytes.length - 1);
+        assertEquals(row.getFieldCount(), 2);
+        assertEquals(field.toString(), "b");
+        assertEquals(row.toString(), "b\tc");
+    }
+}
@@ -0,0 +1,50 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class RunReportTest {
+
+    @Test(groups = "report", description = "Phases are recorded with their counts in the order they finish")
+    @SuppressWarnings("try")
+    public void recordsPhases() {
+        RunReport report = new RunReport();
+        try (RunReport.Phase outer = report.start("outer")) {
+            try (RunReport.Phase inner = report.start("inner")) {
+                inner.add("rowsRead", 3).add("rowsKept", 2);
+            }
+        }
+
+        List<RunReport.Phase> phases = report.getPhases();
+        assertEquals(phases.size(), 2);
+        assertEquals(phases.get(0).getName(), "inner");
+        assertEquals(phases.get(0).getCounts().get("rowsRead"), Long.valueOf(3));
+        assertEquals(phases.get(0).getCounts().get("rowsKept"), Long.valueOf(2));
+        assertEquals(phases.get(1).getName(), "outer");
+        assertTrue(phases.get(1).getWallMillis() >= phases.get(0).getWallMillis());
+        assertTrue(report.getPeakHeapBytes() > 0);
+    }
+
+    @Test(groups = "report", description = "The report is written as JSON with names and strings escaped")
+    public void writesJson() throws IOException {
+        RunReport report = new RunReport().add("concepts", 512).add("release", "a \"quoted\"\tname");
+        try (RunReport.Phase phase = report.start("Read sct2_Concept_Snapshot.txt")) {
+            phase.add("bytesRead", 36619);
+        }
+
+        StringWriter out = new StringWriter();
+        report.writeJson(out);
+        String json = out.toString().trim();
+
+        assertTrue(json.startsWith("{\"started\":\""), json);
+        assertTrue(json.contains("\"counts\":{\"concepts\":512,\"release\":\"a \\\"quoted\\\"\\u0009name\"}"), json);
+        assertTrue(json.contains("\"phases\":[{\"name\":\"Read sct2_Concept_Snapshot.txt\",\"thread\":\""), json);
+        assertTrue(json.endsWith(",\"bytesRead\":36619}]}"), json);
+    }
+}
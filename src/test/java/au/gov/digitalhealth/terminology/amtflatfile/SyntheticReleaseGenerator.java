@@ -0,0 +1,851 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes a synthetic SNOMED CT-AU snapshot release ZIP file holding a valid AMT model of any size, so loading and
+ * writing the flat file can be tested and benchmarked at sizes the bundled test release can't show. The default counts
+ * of each type of AMT concept are roughly those of a current AMT release, and {@link #setScale(double)} multiplies
+ * them all. The same settings and seed always write the same release.
+ * <p>
+ * Every CTPP resolves to exactly one TPP, MPP and TP, and every TPUU to one TP and MPUU, so a generated release loads
+ * without any validation failures. Alongside the AMT content the release has inactive concepts with historical
+ * associations to active ones, and filler concepts, descriptions and relationships in the international module which
+ * are read but not kept.
+ * <p>
+ * Nothing but the structure of the packs and units is held while writing, with ids and terms calculated from each
+ * concept's position, so large releases can be written without a large heap. Note that from around 50 times the
+ * default size the description file is over the size {@link TerminologyFileVisitor} will read.
+ */
+public class SyntheticReleaseGenerator {
+
+    private static final String EFFECTIVE_TIME = "20180430";
+
+    private static final String RELEASE_DIRECTORY = "SnomedCT_Release_AU1000036_" + EFFECTIVE_TIME + "/RF2Release/Snapshot/";
+
+    private static final String AMT_MODULE = "900062011000036108";
+
+    private static final String METADATA_MODULE = "900000000000012004";
+
+    private static final String CORE_MODULE = "900000000000207008";
+
+    private static final String AU_NAMESPACE = "1000036";
+
+    private static final String CONCEPT_PARTITION = "10";
+
+    private static final String DESCRIPTION_PARTITION = "11";
+
+    private static final String RELATIONSHIP_PARTITION = "12";
+
+    private static final String FSN = "900000000000003001";
+
+    private static final String SYNONYM = "900000000000013009";
+
+    private static final String PREFERRED = "900000000000548007";
+
+    private static final String ACCEPTABLE = "900000000000549004";
+
+    private static final String LANGUAGE_REFSET = "32570271000036106";
+
+    private static final String ARTG_ID_REFSET = "11000168105";
+
+    private static final String ROOT = "138875005";
+
+    private static final AmtConcept[] ROOTS = { AmtConcept.MP, AmtConcept.MPUU, AmtConcept.MPP, AmtConcept.TP,
+            AmtConcept.TPUU, AmtConcept.TPP, AmtConcept.CTPP, AmtConcept.SUBSTANCE };
+
+    private static final AmtConcept[] ASSOCIATIONS =
+            { AmtConcept.REPLACED_BY, AmtConcept.POSSIBLY_EQUIVALENT_TO, AmtConcept.SAME_AS };
+
+    /** Item identifiers of generated concepts start here, well clear of the AMT concepts' own ids */
+    private static final long FIRST_ITEM = 1000000;
+
+    // @formatter:off
+    private static final int[][] VERHOEFF_D = {
+        { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, { 1, 2, 3, 4, 0, 6, 7, 8, 9, 5 }, { 2, 3, 4, 0, 1, 7, 8, 9, 5, 6 },
+        { 3, 4, 0, 1, 2, 8, 9, 5, 6, 7 }, { 4, 0, 1, 2, 3, 9, 5, 6, 7, 8 }, { 5, 9, 8, 7, 6, 0, 4, 3, 2, 1 },
+        { 6, 5, 9, 8, 7, 1, 0, 4, 3, 2 }, { 7, 6, 5, 9, 8, 2, 1, 0, 4, 3 }, { 8, 7, 6, 5, 9, 3, 2, 1, 0, 4 },
+        { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 } };
+
+    private static final int[][] VERHOEFF_P = {
+        { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 }, { 1, 5, 7, 6, 2, 8, 3, 0, 9, 4 }, { 5, 8, 0, 3, 7, 9, 6, 1, 4, 2 },
+        { 8, 9, 1, 6, 0, 4, 3, 5, 2, 7 }, { 9, 4, 5, 3, 1, 2, 6, 8, 7, 0 }, { 4, 2, 8, 6, 5, 7, 3, 9, 0, 1 },
+        { 2, 7, 9, 3, 8, 0, 6, 4, 1, 5 }, { 7, 0, 4, 6, 9, 1, 3, 2, 8, 5 } };
+
+    private static final int[] VERHOEFF_INV = { 0, 4, 3, 2, 1, 5, 6, 7, 8, 9 };
+    // @formatter:on
+
+    private int mps = 3000;
+
+    private int mpuus = 8000;
+
+    private int mpps = 11000;
+
+    private int tps = 6800;
+
+    private int tpuus = 15000;
+
+    private int tpps = 19000;
+
+    private int ctpps = 22000;
+
+    private int artgIds = 24000;
+
+    private int historicalAssociations = 2000;
+
+    private int inactiveLinks;
+
+    private int fillerConcepts = 100000;
+
+    private int depth = 1;
+
+    private double multipleMpFraction = 0.1;
+
+    private long seed = 1;
+
+    /** Position of the first concept of each type, in the order the types are laid out */
+    private long mpGroupStart, mpStart, mpuuStart, tpStart, tpuuStart, mppStart, tppStart, ctppStart, inactiveStart,
+            fillerStart;
+
+    /** Number of MP grouping concepts at each level below the MP root, the last level being the MPs themselves */
+    private int[] levelSizes;
+
+    private int[][] mpsOfMpuu;
+
+    private int[] mpuuOfTpuu;
+
+    private int[] tpOfTpuu;
+
+    private int[][] mpuusOfMpp;
+
+    private int[] mppOfTpp;
+
+    private int[][] tpuusOfTpp;
+
+    private int[] tppOfCtpp;
+
+    private int[] artgIdsOfCtpp;
+
+    private int[] artgIdBaseOfCtpp;
+
+    /** Generates refset member ids, restarted for each release written */
+    private Random uuids;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("usage: SyntheticReleaseGenerator <ZIP_FILE> [SCALE] [SEED]");
+            System.exit(1);
+        }
+        SyntheticReleaseGenerator generator = new SyntheticReleaseGenerator();
+        if (args.length > 1) {
+            generator.setScale(Double.parseDouble(args[1]));
+        }
+        if (args.length > 2) {
+            generator.setSeed(Long.parseLong(args[2]));
+        }
+        generator.write(Paths.get(args[0]));
+        System.out.println("Wrote " + generator.getExpectedRowCount() + " flat file rows to " + args[0]);
+    }
+
+    /**
+     * Multiplies the count of every type of AMT concept, ARTG id and historical association, but not the filler
+     * concepts. Each count is kept at one or more.
+     */
+    public SyntheticReleaseGenerator setScale(double scale) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("Scale must be greater than 0, was " + scale);
+        }
+        mps = scale(mps, scale);
+        mpuus = scale(mpuus, scale);
+        mpps = scale(mpps, scale);
+        tps = scale(tps, scale);
+        tpuus = scale(tpuus, scale);
+        tpps = scale(tpps, scale);
+        ctpps = scale(ctpps, scale);
+        artgIds = scale(artgIds, scale);
+        historicalAssociations = scale(historicalAssociations, scale);
+        return this;
+    }
+
+    private static int scale(int count, double scale) {
+        long scaled = Math.round(count * scale);
+        if (scaled > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Scale " + scale + " is too large");
+        }
+        return (int) Math.max(1, scaled);
+    }
+
+    public SyntheticReleaseGenerator setMps(int mps) {
+        this.mps = positive(mps, "MPs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setMpuus(int mpuus) {
+        this.mpuus = positive(mpuus, "MPUUs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setMpps(int mpps) {
+        this.mpps = positive(mpps, "MPPs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setTps(int tps) {
+        this.tps = positive(tps, "TPs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setTpuus(int tpuus) {
+        this.tpuus = positive(tpuus, "TPUUs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setTpps(int tpps) {
+        this.tpps = positive(tpps, "TPPs");
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setCtpps(int ctpps) {
+        this.ctpps = positive(ctpps, "CTPPs");
+        return this;
+    }
+
+    /**
+     * @param artgIds number of ARTG ids, each given to a random CTPP so some CTPPs have several and some none
+     */
+    public SyntheticReleaseGenerator setArtgIds(int artgIds) {
+        this.artgIds = notNegative(artgIds, "ARTG ids");
+        return this;
+    }
+
+    /**
+     * @param historicalAssociations number of inactive concepts, each with a historical association to an active MP
+     */
+    public SyntheticReleaseGenerator setHistoricalAssociations(int historicalAssociations) {
+        this.historicalAssociations = notNegative(historicalAssociations, "historical associations");
+        return this;
+    }
+
+    /**
+     * @param inactiveLinks number of TPUUs given one of the inactive concepts as both a parent and a TP, which is
+     *            reported as an error but doesn't change the flat file
+     */
+    public SyntheticReleaseGenerator setInactiveLinks(int inactiveLinks) {
+        this.inactiveLinks = notNegative(inactiveLinks, "inactive links");
+        return this;
+    }
+
+    /**
+     * @param fillerConcepts number of concepts in the international module, each with two descriptions and a
+     *            relationship, which are not part of AMT
+     */
+    public SyntheticReleaseGenerator setFillerConcepts(int fillerConcepts) {
+        this.fillerConcepts = notNegative(fillerConcepts, "filler concepts");
+        return this;
+    }
+
+    /**
+     * @param depth number of levels of the IS_A hierarchy from the MP root down to the MPs, 1 puts the MPs directly
+     *            below the root and each extra level adds a level of grouping MPs with ten times fewer concepts than
+     *            the level below
+     */
+    public SyntheticReleaseGenerator setDepth(int depth) {
+        this.depth = positive(depth, "Depth");
+        return this;
+    }
+
+    /**
+     * @param multipleMpFraction fraction of MPUUs that are a combination of two or three MPs, giving flat file rows
+     *            for each
+     */
+    public SyntheticReleaseGenerator setMultipleMpFraction(double multipleMpFraction) {
+        if (multipleMpFraction < 0 || multipleMpFraction > 1) {
+            throw new IllegalArgumentException("Multiple MP fraction must be between 0 and 1, was " + multipleMpFraction);
+        }
+        this.multipleMpFraction = multipleMpFraction;
+        return this;
+    }
+
+    public SyntheticReleaseGenerator setSeed(long seed) {
+        this.seed = seed;
+        return this;
+    }
+
+    public int getCtpps() {
+        return ctpps;
+    }
+
+    private static int positive(int count, String name) {
+        if (count < 1) {
+            throw new IllegalArgumentException(name + " must be at least 1, was " + count);
+        }
+        return count;
+    }
+
+    private static int notNegative(int count, String name) {
+        if (count < 0) {
+            throw new IllegalArgumentException(name + " must not be negative, was " + count);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of rows, excluding the header, the flat file written from the release will have
+     */
+    public long getExpectedRowCount() {
+        generate();
+        long rows = 0;
+        for (int ctpp = 0; ctpp < ctpps; ctpp++) {
+            long mpRows = 0;
+            for (int tpuu : tpuusOfTpp[tppOfCtpp[ctpp]]) {
+                mpRows += mpsOfMpuu[mpuuOfTpuu[tpuu]].length;
+            }
+            rows += mpRows * Math.max(1, artgIdsOfCtpp[ctpp]);
+        }
+        return rows;
+    }
+
+    /**
+     * Works out the structure of the packs and units, which is all that is held in memory while writing. The same
+     * settings always give the same structure.
+     */
+    private void generate() {
+        if (inactiveLinks > 0 && historicalAssociations == 0) {
+            throw new IllegalStateException("Inactive links need the inactive concepts of historical associations");
+        }
+        Random random = new Random(seed);
+
+        levelSizes = new int[depth];
+        levelSizes[depth - 1] = mps;
+        for (int level = depth - 2; level >= 0; level--) {
+            levelSizes[level] = Math.max(1, levelSizes[level + 1] / 10);
+        }
+        long mpGroups = 0;
+        for (int level = 0; level < depth - 1; level++) {
+            mpGroups += levelSizes[level];
+        }
+
+        mpGroupStart = 0;
+        mpStart = mpGroupStart + mpGroups;
+        mpuuStart = mpStart + mps;
+        tpStart = mpuuStart + mpuus;
+        tpuuStart = tpStart + tps;
+        mppStart = tpuuStart + tpuus;
+        tppStart = mppStart + mpps;
+        ctppStart = tppStart + tpps;
+        inactiveStart = ctppStart + ctpps;
+        fillerStart = inactiveStart + historicalAssociations;
+
+        mpsOfMpuu = new int[mpuus][];
+        for (int mpuu = 0; mpuu < mpuus; mpuu++) {
+            int count = random.nextDouble() < multipleMpFraction ? 2 + random.nextInt(2) : 1;
+            mpsOfMpuu[mpuu] = distinct(random, Math.min(count, mps), mps, mpuu % mps);
+        }
+
+        // every MPUU has a TPUU if there are enough TPUUs, MPPs are only made of MPUUs that have one
+        mpuuOfTpuu = new int[tpuus];
+        tpOfTpuu = new int[tpuus];
+        int mpuusWithTpuus = Math.min(mpuus, tpuus);
+        for (int tpuu = 0; tpuu < tpuus; tpuu++) {
+            mpuuOfTpuu[tpuu] = tpuu < mpuusWithTpuus ? tpuu : random.nextInt(mpuusWithTpuus);
+            tpOfTpuu[tpuu] = tpuu < tps ? tpuu : random.nextInt(tps);
+        }
+        int[][] tpuusOfMpuu = invert(mpuuOfTpuu, mpuusWithTpuus);
+
+        mpuusOfMpp = new int[mpps][];
+        for (int mpp = 0; mpp < mpps; mpp++) {
+            double units = random.nextDouble();
+            int count = units < 0.8 ? 1 : units < 0.95 ? 2 : 3;
+            mpuusOfMpp[mpp] = distinct(random, Math.min(count, mpuusWithTpuus), mpuusWithTpuus, mpp % mpuusWithTpuus);
+        }
+
+        mppOfTpp = new int[tpps];
+        tpuusOfTpp = new int[tpps][];
+        for (int tpp = 0; tpp < tpps; tpp++) {
+            int mpp = tpp < mpps ? tpp : random.nextInt(mpps);
+            mppOfTpp[tpp] = mpp;
+            int[] units = new int[mpuusOfMpp[mpp].length];
+            for (int i = 0; i < units.length; i++) {
+                int[] candidates = tpuusOfMpuu[mpuusOfMpp[mpp][i]];
+                units[i] = candidates[random.nextInt(candidates.length)];
+            }
+            tpuusOfTpp[tpp] = units;
+        }
+
+        tppOfCtpp = new int[ctpps];
+        for (int ctpp = 0; ctpp < ctpps; ctpp++) {
+            tppOfCtpp[ctpp] = ctpp < tpps ? ctpp : random.nextInt(tpps);
+        }
+
+        artgIdsOfCtpp = new int[ctpps];
+        for (int i = 0; i < artgIds; i++) {
+            artgIdsOfCtpp[random.nextInt(ctpps)]++;
+        }
+        artgIdBaseOfCtpp = new int[ctpps];
+        for (int ctpp = 0; ctpp < ctpps; ctpp++) {
+            artgIdBaseOfCtpp[ctpp] = 10000 + random.nextInt(900000);
+        }
+    }
+
+    /**
+     * @return <code>count</code> distinct values below <code>bound</code>, starting with <code>first</code>
+     */
+    private static int[] distinct(Random random, int count, int bound, int first) {
+        int[] values = new int[count];
+        values[0] = first;
+        for (int i = 1; i < count; i++) {
+            int value;
+            do {
+                value = random.nextInt(bound);
+            } while (contains(values, i, value));
+            values[i] = value;
+        }
+        return values;
+    }
+
+    private static boolean contains(int[] values, int length, int value) {
+        for (int i = 0; i < length; i++) {
+            if (values[i] == value) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return for each of <code>size</code> targets, the positions in <code>targets</code> that refer to it
+     */
+    private static int[][] invert(int[] targets, int size) {
+        int[] counts = new int[size];
+        for (int target : targets) {
+            counts[target]++;
+        }
+        int[][] sources = new int[size][];
+        for (int i = 0; i < size; i++) {
+            sources[i] = new int[counts[i]];
+        }
+        Arrays.fill(counts, 0);
+        for (int source = 0; source < targets.length; source++) {
+            sources[targets[source]][counts[targets[source]]++] = source;
+        }
+        return sources;
+    }
+
+    /**
+     * Writes the release to a ZIP file, replacing any existing file
+     */
+    public void write(Path zipFile) throws IOException {
+        generate();
+        uuids = new Random(seed);
+        if (zipFile.toAbsolutePath().getParent() != null) {
+            Files.createDirectories(zipFile.toAbsolutePath().getParent());
+        }
+        try (ZipOutputStream zip =
+                new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(zipFile), Rf2FileReader.READ_BUFFER_SIZE))) {
+            Rf2Writer concepts = new Rf2Writer(zip, "Terminology/sct2_Concept_Snapshot_AU1000036_" + EFFECTIVE_TIME + ".txt",
+                "id", "effectiveTime", "active", "moduleId", "definitionStatusId");
+            writeConcepts(concepts);
+            concepts.close();
+
+            Rf2Writer relationships = new Rf2Writer(zip,
+                "Terminology/sct2_Relationship_Snapshot_AU1000036_" + EFFECTIVE_TIME + ".txt", "id", "effectiveTime",
+                "active", "moduleId", "sourceId", "destinationId", "relationshipGroup", "typeId", "characteristicTypeId",
+                "modifierId");
+            writeRelationships(relationships);
+            relationships.close();
+
+            Rf2Writer descriptions = new Rf2Writer(zip,
+                "Terminology/sct2_Description_Snapshot-en-AU_AU1000036_" + EFFECTIVE_TIME + ".txt", "id", "effectiveTime",
+                "active", "moduleId", "conceptId", "languageCode", "typeId", "term", "caseSignificanceId");
+            Rf2Writer language = new Rf2Writer(null,
+                "Refset/Language/der2_cRefset_LanguageSnapshot-en-AU_AU1000036_" + EFFECTIVE_TIME + ".txt", "id",
+                "effectiveTime", "active", "moduleId", "refsetId", "referencedComponentId", "acceptabilityId");
+            writeDescriptions(descriptions, language);
+            descriptions.close();
+            language.copyTo(zip);
+
+            Rf2Writer artgIdRefset = new Rf2Writer(zip,
+                "Refset/Map/der2_iRefset_ARTGIdSnapshot_AU1000036_" + EFFECTIVE_TIME + ".txt", "id", "effectiveTime",
+                "active", "moduleId", "refsetId", "referencedComponentId", "schemeValue");
+            writeArtgIds(artgIdRefset);
+            artgIdRefset.close();
+
+            Rf2Writer associations = new Rf2Writer(zip,
+                "Refset/Content/der2_cRefset_AssociationReferenceSnapshot_AU1000036_" + EFFECTIVE_TIME + ".txt", "id",
+                "effectiveTime", "active", "moduleId", "refsetId", "referencedComponentId", "targetComponentId");
+            writeAssociations(associations);
+            associations.close();
+        }
+    }
+
+    private void writeConcepts(Rf2Writer out) throws IOException {
+        for (AmtConcept root : ROOTS) {
+            out.row(Long.toString(root.getId()), EFFECTIVE_TIME, "1", AMT_MODULE, "900000000000074008");
+        }
+        for (AmtConcept association : ASSOCIATIONS) {
+            out.row(Long.toString(association.getId()), EFFECTIVE_TIME, "1", METADATA_MODULE, "900000000000074008");
+        }
+        for (long concept = 0; concept < fillerStart; concept++) {
+            out.row(conceptId(concept), EFFECTIVE_TIME, concept < inactiveStart ? "1" : "0", AMT_MODULE,
+                "900000000000074008");
+        }
+        for (long filler = 0; filler < fillerConcepts; filler++) {
+            out.row(fillerId(filler, "00"), EFFECTIVE_TIME, "1", CORE_MODULE, "900000000000074008");
+        }
+    }
+
+    private void writeRelationships(Rf2Writer out) throws IOException {
+        RelationshipWriter relationships = new RelationshipWriter(out);
+        relationships.isA(Long.toString(AmtConcept.CTPP.getId()), Long.toString(AmtConcept.TPP.getId()));
+
+        long group = mpGroupStart;
+        for (int level = 0; level < depth - 1; level++) {
+            long parentLevelStart = group - (level == 0 ? 0 : levelSizes[level - 1]);
+            for (int i = 0; i < levelSizes[level]; i++) {
+                String parent = level == 0
+                        ? Long.toString(AmtConcept.MP.getId())
+                        : conceptId(parentLevelStart + i % levelSizes[level - 1]);
+                relationships.isA(conceptId(group + i), parent);
+            }
+            group += levelSizes[level];
+        }
+        long lastGroupLevelStart = depth == 1 ? 0 : mpStart - levelSizes[depth - 2];
+        for (int mp = 0; mp < mps; mp++) {
+            relationships.isA(conceptId(mpStart + mp), depth == 1
+                    ? Long.toString(AmtConcept.MP.getId())
+                    : conceptId(lastGroupLevelStart + mp % levelSizes[depth - 2]));
+        }
+
+        for (int mpuu = 0; mpuu < mpuus; mpuu++) {
+            String id = conceptId(mpuuStart + mpuu);
+            relationships.isA(id, Long.toString(AmtConcept.MPUU.getId()));
+            for (int mp : mpsOfMpuu[mpuu]) {
+                relationships.isA(id, conceptId(mpStart + mp));
+            }
+        }
+
+        for (int tp = 0; tp < tps; tp++) {
+            relationships.isA(conceptId(tpStart + tp), Long.toString(AmtConcept.TP.getId()));
+        }
+
+        for (int tpuu = 0; tpuu < tpuus; tpuu++) {
+            String id = conceptId(tpuuStart + tpuu);
+            String tp = conceptId(tpStart + tpOfTpuu[tpuu]);
+            relationships.isA(id, Long.toString(AmtConcept.TPUU.getId()));
+            relationships.isA(id, conceptId(mpuuStart + mpuuOfTpuu[tpuu]));
+            relationships.isA(id, tp);
+            relationships.add(id, tp, AttributeType.HAS_TP);
+        }
+
+        for (int i = 0; i < inactiveLinks; i++) {
+            String id = conceptId(tpuuStart + i % tpuus);
+            String inactive = conceptId(inactiveStart + i % historicalAssociations);
+            relationships.isA(id, inactive);
+            relationships.add(id, inactive, AttributeType.HAS_TP);
+        }
+
+        for (int mpp = 0; mpp < mpps; mpp++) {
+            String id = conceptId(mppStart + mpp);
+            relationships.isA(id, Long.toString(AmtConcept.MPP.getId()));
+            for (int mpuu : mpuusOfMpp[mpp]) {
+                relationships.add(id, conceptId(mpuuStart + mpuu), AttributeType.HAS_MPUU);
+            }
+        }
+
+        for (int tpp = 0; tpp < tpps; tpp++) {
+            String id = conceptId(tppStart + tpp);
+            relationships.isA(id, Long.toString(AmtConcept.TPP.getId()));
+            relationships.isA(id, conceptId(mppStart + mppOfTpp[tpp]));
+            writePackContents(relationships, id, tpp);
+        }
+
+        for (int ctpp = 0; ctpp < ctpps; ctpp++) {
+            String id = conceptId(ctppStart + ctpp);
+            relationships.isA(id, Long.toString(AmtConcept.CTPP.getId()));
+            relationships.isA(id, conceptId(tppStart + tppOfCtpp[ctpp]));
+            writePackContents(relationships, id, tppOfCtpp[ctpp]);
+        }
+
+        for (long filler = 0; filler < fillerConcepts; filler++) {
+            relationships.add(fillerId(filler, "00"), filler == 0 ? ROOT : fillerId(filler / 2, "00"), AttributeType.IS_A,
+                fillerId(filler, "02"), CORE_MODULE);
+        }
+    }
+
+    /**
+     * Writes the TPUUs and TP of a TPP for it or one of its CTPPs, the TP being that of its first TPUU
+     */
+    private void writePackContents(RelationshipWriter relationships, String id, int tpp) throws IOException {
+        int[] units = tpuusOfTpp[tpp];
+        for (int tpuu : units) {
+            relationships.add(id, conceptId(tpuuStart + tpuu), AttributeType.HAS_TPUU);
+        }
+        relationships.add(id, conceptId(tpStart + tpOfTpuu[units[0]]), AttributeType.HAS_TP);
+    }
+
+    private void writeDescriptions(Rf2Writer descriptions, Rf2Writer language) throws IOException {
+        for (AmtConcept root : ROOTS) {
+            writeDescriptions(descriptions, language, Long.toString(root.getId()), root.name() + " root",
+                "Australian Medicines Terminology", AMT_MODULE);
+        }
+        for (AmtConcept association : ASSOCIATIONS) {
+            writeDescriptions(descriptions, language, Long.toString(association.getId()), association.name(),
+                "foundation metadata concept", METADATA_MODULE);
+        }
+        for (long concept = 0; concept < fillerStart; concept++) {
+            writeDescriptions(descriptions, language, conceptId(concept), term(concept), semanticTag(concept),
+                AMT_MODULE);
+        }
+        for (long filler = 0; filler < fillerConcepts; filler++) {
+            String concept = fillerId(filler, "00");
+            String term = "Filler finding " + filler;
+            descriptions.row(fillerId(2 * filler, "01"), EFFECTIVE_TIME, "1", CORE_MODULE, concept, "en", FSN,
+                term + " (finding)", "900000000000448009");
+            descriptions.row(fillerId(2 * filler + 1, "01"), EFFECTIVE_TIME, "1", CORE_MODULE, concept, "en", SYNONYM,
+                term, "900000000000448009");
+            language.row(uuid(), EFFECTIVE_TIME, "1", CORE_MODULE, LANGUAGE_REFSET, fillerId(2 * filler, "01"), PREFERRED);
+            language.row(uuid(), EFFECTIVE_TIME, "1", CORE_MODULE, LANGUAGE_REFSET, fillerId(2 * filler + 1, "01"),
+                ACCEPTABLE);
+        }
+    }
+
+    private void writeDescriptions(Rf2Writer descriptions, Rf2Writer language, String concept, String term,
+            String semanticTag, String module) throws IOException {
+        String fsnId = descriptionId(concept, 0);
+        String ptId = descriptionId(concept, 1);
+        descriptions.row(fsnId, EFFECTIVE_TIME, "1", module, concept, "en", FSN, term + " (" + semanticTag + ")",
+            "900000000000448009");
+        descriptions.row(ptId, EFFECTIVE_TIME, "1", module, concept, "en", SYNONYM, term, "900000000000448009");
+        language.row(uuid(), EFFECTIVE_TIME, "1", AMT_MODULE, LANGUAGE_REFSET, fsnId, PREFERRED);
+        language.row(uuid(), EFFECTIVE_TIME, "1", AMT_MODULE, LANGUAGE_REFSET, ptId, PREFERRED);
+    }
+
+    private void writeArtgIds(Rf2Writer out) throws IOException {
+        for (int ctpp = 0; ctpp < ctpps; ctpp++) {
+            for (int i = 0; i < artgIdsOfCtpp[ctpp]; i++) {
+                out.row(uuid(), EFFECTIVE_TIME, "1", AMT_MODULE, ARTG_ID_REFSET, conceptId(ctppStart + ctpp),
+                    Integer.toString(artgIdBaseOfCtpp[ctpp] + i));
+            }
+        }
+    }
+
+    private void writeAssociations(Rf2Writer out) throws IOException {
+        for (int i = 0; i < historicalAssociations; i++) {
+            out.row(uuid(), EFFECTIVE_TIME, "1", AMT_MODULE, Long.toString(ASSOCIATIONS[i % ASSOCIATIONS.length].getId()),
+                conceptId(inactiveStart + i), conceptId(mpStart + i % mps));
+        }
+    }
+
+    private String term(long concept) {
+        if (concept < mpStart) {
+            return "MP group " + concept;
+        } else if (concept < mpuuStart) {
+            return "substance " + (concept - mpStart);
+        } else if (concept < tpStart) {
+            return "substance " + (concept - mpuuStart) + " 10 mg tablet";
+        } else if (concept < tpuuStart) {
+            return "Brand " + (concept - tpStart);
+        } else if (concept < mppStart) {
+            return "Brand " + tpOfTpuu[(int) (concept - tpuuStart)] + " " + (concept - tpuuStart) + " 10 mg tablet";
+        } else if (concept < tppStart) {
+            return "substance pack " + (concept - mppStart) + " tablet, 20";
+        } else if (concept < ctppStart) {
+            return "Brand pack " + (concept - tppStart) + " tablet, 20";
+        } else if (concept < inactiveStart) {
+            return "Brand pack " + tppOfCtpp[(int) (concept - ctppStart)] + " tablet, 20, blister pack "
+                    + (concept - ctppStart);
+        }
+        return "retired substance " + (concept - inactiveStart);
+    }
+
+    private String semanticTag(long concept) {
+        if (concept < mpuuStart || concept >= inactiveStart) {
+            return "medicinal product";
+        } else if (concept < tpStart) {
+            return "medicinal product unit of use";
+        } else if (concept < tpuuStart) {
+            return "trade product";
+        } else if (concept < mppStart) {
+            return "trade product unit of use";
+        } else if (concept < tppStart) {
+            return "medicinal product pack";
+        } else if (concept < ctppStart) {
+            return "trade product pack";
+        }
+        return "containered trade product pack";
+    }
+
+    private String uuid() {
+        return new UUID(uuids.nextLong(), uuids.nextLong()).toString();
+    }
+
+    private static String conceptId(long concept) {
+        return sctid(Long.toString(FIRST_ITEM + concept) + AU_NAMESPACE + CONCEPT_PARTITION);
+    }
+
+    private static String descriptionId(String conceptId, int description) {
+        // the description's item identifier is the concept's item identifier with the description's number appended
+        String item = conceptId.length() > 10 ? conceptId.substring(0, conceptId.length() - 10) : conceptId;
+        return sctid(item + description + AU_NAMESPACE + DESCRIPTION_PARTITION);
+    }
+
+    private static String fillerId(long item, String partition) {
+        return sctid(Long.toString(FIRST_ITEM + item) + partition);
+    }
+
+    /**
+     * @return the identifier with its Verhoeff check digit appended
+     */
+    static String sctid(String withoutCheckDigit) {
+        int check = 0;
+        for (int i = 0; i < withoutCheckDigit.length(); i++) {
+            int digit = withoutCheckDigit.charAt(withoutCheckDigit.length() - 1 - i) - '0';
+            check = VERHOEFF_D[check][VERHOEFF_P[(i + 1) % 8][digit]];
+        }
+        return withoutCheckDigit + VERHOEFF_INV[check];
+    }
+
+    /**
+     * @return true if the identifier's last digit is its Verhoeff check digit
+     */
+    static boolean isValidSctid(String sctid) {
+        int check = 0;
+        for (int i = 0; i < sctid.length(); i++) {
+            check = VERHOEFF_D[check][VERHOEFF_P[i % 8][sctid.charAt(sctid.length() - 1 - i) - '0']];
+        }
+        return check == 0;
+    }
+
+    /**
+     * Numbers relationships as they are written
+     */
+    private class RelationshipWriter {
+
+        private final Rf2Writer out;
+
+        private long next;
+
+        RelationshipWriter(Rf2Writer out) {
+            this.out = out;
+        }
+
+        void isA(String source, String destination) throws IOException {
+            add(source, destination, AttributeType.IS_A);
+        }
+
+        void add(String source, String destination, AttributeType type) throws IOException {
+            add(source, destination, type,
+                sctid(Long.toString(FIRST_ITEM + next++) + AU_NAMESPACE + RELATIONSHIP_PARTITION), AMT_MODULE);
+        }
+
+        void add(String source, String destination, AttributeType type, String id, String module) throws IOException {
+            out.row(id, EFFECTIVE_TIME, "1", module, source, destination, "0", Long.toString(type.getId()),
+                "900000000000011006", "900000000000451002");
+        }
+    }
+
+    /**
+     * Writes one tab delimited RF2 file with CRLF line endings, either straight into a ZIP entry or, when the ZIP file
+     * is being written to for another file, to a temporary file copied into the ZIP file afterwards
+     */
+    private static class Rf2Writer {
+
+        private final String name;
+
+        private final Path temporary;
+
+        private final ZipOutputStream zip;
+
+        private final Writer writer;
+
+        private final StringBuilder line = new StringBuilder(256);
+
+        Rf2Writer(ZipOutputStream zip, String name, String... header) throws IOException {
+            this.name = name;
+            this.zip = zip;
+            OutputStream out;
+            if (zip == null) {
+                temporary = Files.createTempFile("synthetic-rf2-", ".txt");
+                out = new BufferedOutputStream(Files.newOutputStream(temporary), Rf2FileReader.READ_BUFFER_SIZE);
+            } else {
+                temporary = null;
+                zip.putNextEntry(new ZipEntry(RELEASE_DIRECTORY + name));
+                out = new NonClosingOutputStream(zip);
+            }
+            writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+            row(header);
+        }
+
+        void row(String... fields) throws IOException {
+            line.setLength(0);
+            for (int i = 0; i < fields.length; i++) {
+                if (i > 0) {
+                    line.append('\t');
+                }
+                line.append(fields[i]);
+            }
+            line.append("\r\n");
+            writer.append(line);
+        }
+
+        void close() throws IOException {
+            writer.close();
+            if (zip != null) {
+                zip.closeEntry();
+            }
+        }
+
+        void copyTo(ZipOutputStream zip) throws IOException {
+            close();
+            try {
+                zip.putNextEntry(new ZipEntry(RELEASE_DIRECTORY + name));
+                Files.copy(temporary, zip);
+                zip.closeEntry();
+            } finally {
+                Files.delete(temporary);
+            }
+        }
+    }
+
+    private static class NonClosingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+
+        NonClosingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
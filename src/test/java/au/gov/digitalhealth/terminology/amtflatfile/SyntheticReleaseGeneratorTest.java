@@ -0,0 +1,67 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+public class SyntheticReleaseGeneratorTest {
+
+    @Test(groups = "synthetic", description = "Generated identifiers have Verhoeff check digits, as real ones do")
+    public void checkDigits() {
+        for (AmtConcept concept : AmtConcept.values()) {
+            assertTrue(SyntheticReleaseGenerator.isValidSctid(Long.toString(concept.getId())), concept.name());
+        }
+        assertEquals(SyntheticReleaseGenerator.sctid("3049701100003610"), "30497011000036103");
+        assertEquals(SyntheticReleaseGenerator.sctid("11668000"), "116680003");
+        assertFalse(SyntheticReleaseGenerator.isValidSctid("30497011000036104"));
+    }
+
+    @Test(groups = "synthetic", description = "A generated release loads without validation failures and writes the expected rows")
+    public void generatedReleaseLoads() throws IOException {
+        SyntheticReleaseGenerator generator = new SyntheticReleaseGenerator().setScale(0.02)
+            .setFillerConcepts(1000)
+            .setDepth(3)
+            .setMultipleMpFraction(0.3);
+        Path zip = Paths.get("target/test-out/synthetic.zip");
+        generator.write(zip);
+
+        JUnitTestSuite_EXT testSuite = new JUnitTestSuite_EXT();
+        try (FileSystem release = FileSystems.newFileSystem(URI.create("jar:file:" + zip.toAbsolutePath()), new HashMap<>())) {
+            AmtCache cache = new AmtCache(release, testSuite, true);
+            assertEquals(cache.getCtpps().size(), generator.getCtpps());
+            assertFalse(cache.getReplacementConcepts().isEmpty());
+
+            Amt2FlatFile amt2FlatFile = new Amt2FlatFile();
+            amt2FlatFile.setExitOnError(true);
+            amt2FlatFile.setConceptCache(cache, testSuite);
+            Path flatFile = Paths.get("target/test-out/synthetic.csv");
+            amt2FlatFile.writeFlatFile(flatFile);
+
+            List<String> lines = Files.readAllLines(flatFile);
+            assertEquals(lines.size() - 1, generator.getExpectedRowCount());
+        }
+        assertTrue(testSuite.getTestCases() == null || testSuite.getTestCases().isEmpty(), "" + testSuite.getTestCases());
+    }
+
+    @Test(groups = "synthetic", description = "The same settings write the same release")
+    public void generatedReleaseRepeats() throws IOException {
+        Path first = Paths.get("target/test-out/synthetic-1.zip");
+        Path second = Paths.get("target/test-out/synthetic-2.zip");
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).write(first);
+        new SyntheticReleaseGenerator().setScale(0.005).setFillerConcepts(10).write(second);
+        assertTrue(Arrays.equals(Files.readAllBytes(first), Files.readAllBytes(second)));
+    }
+}
@@ -0,0 +1,76 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.testng.annotations.Test;
+
+public class TermStoreTest {
+
+    @Test(groups = "terms", description = "Identical terms and preferred terms which start their FSN share bytes")
+    public void sharesTerms() {
+        TermStore store = new TermStore();
+        long fsn = store.add("Panadol 500 mg tablet, 20 (trade product pack)", TermStore.NO_TERM);
+        int size = store.size();
+        long pt = store.add("Panadol 500 mg tablet, 20", fsn);
+        assertEquals(store.size(), size, "preferred term is a prefix of the FSN");
+        long duplicate = store.add("Panadol 500 mg tablet, 20 (trade product pack)", TermStore.NO_TERM);
+        assertEquals(duplicate, fsn);
+        assertEquals(store.size(), size, "identical term stored once");
+
+        assertEquals(store.getString(pt), "Panadol 500 mg tablet, 20");
+        assertEquals(store.getString(fsn), "Panadol 500 mg tablet, 20 (trade product pack)");
+    }
+
+    @Test(groups = "terms", description = "An FSN added straight after its preferred term extends it")
+    public void extendsLastTerm() {
+        TermStore store = new TermStore();
+        store.add("paracetamol", TermStore.NO_TERM);
+        long pt = store.add("Panadol 500 mg tablet", TermStore.NO_TERM);
+        int size = store.size();
+        long fsn = store.add("Panadol 500 mg tablet (trade product unit of use)", pt);
+        assertEquals(store.size(), size + " (trade product unit of use)".length());
+        assertEquals(store.getString(pt), "Panadol 500 mg tablet");
+        assertEquals(store.getString(fsn), "Panadol 500 mg tablet (trade product unit of use)");
+    }
+
+    @Test(groups = "terms", description = "Terms read from RF2 rows are written out as the same UTF-8 bytes")
+    public void writesRowTerms() throws IOException {
+        String term = "insulin 100 units/mL injection, 10 mL vial \u00b5";
+        byte[] line = ("1\t20180430\t1\t900062011000036108\t2\ten\t900000000000013009\t" + term + "\t900000000000448009")
+            .getBytes(StandardCharsets.UTF_8);
+        Rf2Row row = new Rf2Row().set(ByteBuffer.wrap(line), 0, line.length);
+
+        TermStore store = new TermStore();
+        long handle = store.add(row, 7, TermStore.NO_TERM);
+        store.compact();
+        assertEquals(store.getString(handle), term);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.write(handle, out);
+        store.write(TermStore.NO_TERM, out);
+        assertEquals(new String(out.toByteArray(), StandardCharsets.UTF_8), term + "null");
+        assertNull(store.getString(TermStore.NO_TERM));
+    }
+
+    @Test(groups = "terms", description = "Concepts tell missing terms from empty ones")
+    public void conceptTerms() {
+        Concept concept = new Concept(1, true);
+        assertNull(concept.getPreferredTerm());
+        assertFalse(concept.hasPreferredTerm());
+        concept.setPreferredTerm("");
+        assertEquals(concept.getPreferredTerm(), "");
+        assertFalse(concept.hasPreferredTerm());
+        concept.setFullSpecifiedName("paracetamol (medicinal product)");
+        concept.setPreferredTerm("paracetamol");
+        assertTrue(concept.hasFullySpecifiedName());
+        assertEquals(concept.getPreferredTerm(), "paracetamol");
+    }
+}
@@ -0,0 +1,106 @@
+package au.gov.digitalhealth.terminology.amtflatfile;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.annotations.Test;
+
+import au.gov.digitalhealth.terminology.amtflatfile.TerminologyFileVisitor.FileType;
+
+public class TerminologyFileVisitorTest {
+
+    @Test(groups = "files", description = "RF2 files are recognised by name for the visitor's release type only")
+    public void classifiesFileNames() {
+        TerminologyFileVisitor snapshot = new TerminologyFileVisitor();
+        assertEquals(snapshot.classify("sct2_Concept_Snapshot_AU1000036_20180430.txt"), FileType.CONCEPT);
+        assertEquals(snapshot.classify("sct2_Description_Snapshot-en-AU_AU1000036_20180430.txt"), FileType.DESCRIPTION);
+        assertEquals(snapshot.classify("der2_cRefset_LanguageSnapshot-en-AU_AU1000036_20180430.txt"),
+            FileType.LANGUAGE_REFSET);
+        assertEquals(snapshot.classify("der2_iRefset_ARTGIdSnapshot_AU1000036_20180430.txt"), FileType.ARTG_ID_REFSET);
+        assertEquals(snapshot.classify("der2_cRefset_WasAAssociationSnapshot_AU1000036_20180430.txt"),
+            FileType.HISTORICAL_ASSOCIATION_REFSET);
+        assertNull(snapshot.classify("sct2_Concept_Full_AU1000036_20180430.txt"));
+        assertNull(snapshot.classify("sct2_Concept_Delta_AU1000036_20180430.txt"));
+        assertNull(snapshot.classify("sct2_Concept_Snapshot_AU1000036_2018043.txt"));
+        assertNull(snapshot.classify("sct2_Concept_Snapshot_AU1000036_20180430.txt.bak"));
+        assertNull(snapshot.classify("xsct2_Concept_Snapshot_AU1000036_20180430.txt"));
+        assertNull(snapshot.classify("der2_cRefset_UnknownAssociationSnapshot_AU1000036_20180430.txt"));
+
+        TerminologyFileVisitor delta = new TerminologyFileVisitor(TerminologyFileVisitor.DELTA);
+        assertEquals(delta.classify("sct2_Relationship_Delta_AU1000036_20180430.txt"), FileType.RELATIONSHIP);
+        assertNull(delta.classify("sct2_Relationship_Snapshot_AU1000036_20180430.txt"));
+    }
+
+    @Test(groups = "files", description = "A binary file is rejected as it is read, before any of its rows are handled")
+    public void rejectsBinaryFiles() throws IOException {
+        List<String> rows = new ArrayList<>();
+        Rf2FileReader reader = new Rf2FileReader(row -> rows.add(row.toString()), true);
+        reader.read(new ByteArrayInputStream("id\tactive\n1\t1\r\n2\t0\n".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(rows.size(), 2);
+
+        byte[] zip = new byte[] { 'P', 'K', 3, 4, '\n', 'a', '\n' };
+        try {
+            new Rf2FileReader(row -> rows.add(row.toString()), false).read(new ByteArrayInputStream(zip));
+            fail("Binary file was read");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("not a plain text file"), e.getMessage());
+        }
+        assertEquals(rows.size(), 2);
+    }
+
+    @Test(groups = "files", description = "Extracted files are reused only if their CRC matches, and symlinks in their place are never followed")
+    public void extractsSafely() throws IOException {
+        Path zip = Paths.get("target/test-out/extract.zip");
+        new SyntheticReleaseGenerator().setScale(0.001).setFillerConcepts(10).setSeed(6).write(zip);
+        Path directory = Paths.get("target/test-out/extract");
+        FileUtils.deleteQuietly(directory.toFile());
+
+        try (FileSystem release = FileSystems.newFileSystem(zip, (ClassLoader) null)) {
+            Path concepts = extract(release, directory).getConceptFile();
+            byte[] extracted = Files.readAllBytes(concepts);
+
+            // changed in place, but with the same size and modification time
+            byte[] changed = extracted.clone();
+            changed[changed.length - 2] ^= 1;
+            FileTime modified = Files.getLastModifiedTime(concepts);
+            Files.write(concepts, changed);
+            Files.setLastModifiedTime(concepts, modified);
+            extract(release, directory);
+            assertEquals(Files.readAllBytes(concepts), extracted);
+
+            Path outside = Paths.get("target/test-out/extract-outside.txt");
+            Files.write(outside, "outside".getBytes(StandardCharsets.UTF_8));
+            Files.delete(concepts);
+            Files.createSymbolicLink(concepts, outside.toAbsolutePath());
+            try {
+                extract(release, directory);
+                fail("Extracted through a symlink");
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("not a regular file"), e.getMessage());
+            }
+            assertEquals(new String(Files.readAllBytes(outside), StandardCharsets.UTF_8), "outside");
+        }
+    }
+
+    private static TerminologyFileVisitor extract(FileSystem release, Path directory) throws IOException {
+        TerminologyFileVisitor visitor = new TerminologyFileVisitor();
+        Files.walkFileTree(release.getPath("/"), visitor);
+        visitor.extractTo(directory);
+        return visitor;
+    }
+}